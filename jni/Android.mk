@@ -299,9 +299,9 @@ LOCAL_SRC_FILES := \
 	mupdf/mupdf/pdf_interpret.c \
 	mupdf/mupdf/pdf_page.c \
 	mupdf/mupdf/pdf_pagetree.c \
-	mupdf/mupdf/pdf_store.c \
+	mupdf-overlay/mupdf/pdf_store.c \
 	mupdf/draw/archport.c \
-	mupdf/draw/glyphcache.c \
+	mupdf-overlay/draw/glyphcache.c \
 	mupdf/draw/porterduff.c \
 	mupdf/draw/meshdraw.c \
 	mupdf/draw/imagedraw.c \
@@ -363,7 +363,8 @@ LOCAL_MODULE    := pdfrender
 # debugging:
 #LOCAL_CFLAGS	:= -DPDFRENDER_DEBUG=yes
 LOCAL_SRC_FILES := \
-	pdfrender.c
+	pdfrender.c \
+	pixelkernels.c
 
 LOCAL_C_INCLUDES := \
 	$(LOCAL_PATH)/mupdf/fitz \
@@ -371,8 +372,22 @@ LOCAL_C_INCLUDES := \
 
 LOCAL_STATIC_LIBRARIES := mupdf freetype jpeg openjpeg jbig2dec
 
+# NEON pixel kernels, ARMv7 CPUs without NEON are told apart at runtime
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES += pixelkernels_neon.c.neon
+LOCAL_CFLAGS += -DHAVE_NEON_KERNELS
+LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+LOCAL_SRC_FILES += pixelkernels_neon.c
+LOCAL_CFLAGS += -DHAVE_NEON_KERNELS
+endif
+
 # uses Android log and z library (Android-3 Native API)
 LOCAL_LDLIBS := -llog -lz
 
 include $(BUILD_SHARED_LIBRARY)
 
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+$(call import-module,android/cpufeatures)
+endif
@@ -0,0 +1,353 @@
+#include "fitz.h"
+
+#include <pthread.h>
+
+#define MAXFONTSIZE 32
+#define MAXGLYPHSIZE 256
+#define DEFAULTCACHESIZE (1024*1024)
+
+/* DroidReader: the glyph cache has a configurable size limit, keeps
+ * statistics and no longer throws away everything once it is full.
+ * When the limit is hit, glyphs of fonts that nobody but the cache
+ * references any more are dropped first (those can never be hit again),
+ * then the least recently used ones until we're down to 3/4 of the limit.
+ *
+ * The cache has a lock of its own, so the size and the statistics can
+ * be changed and read by threads other than the one rendering.
+ */
+
+typedef struct fz_glyphkey_s fz_glyphkey;
+typedef struct fz_glyphval_s fz_glyphval;
+
+struct fz_glyphcache_s
+{
+	pthread_mutex_t lock;
+	fz_hashtable *hash;
+	int count;
+	int total;
+	int limit;
+	unsigned int clock;
+	int hits;
+	int misses;
+	int evictions;
+};
+
+struct fz_glyphkey_s
+{
+	fz_font *font;
+	int a, b;
+	int c, d;
+	unsigned short cid;
+	unsigned char e, f;
+};
+
+struct fz_glyphval_s
+{
+	fz_pixmap *pixmap;
+	unsigned int lastuse;
+};
+
+typedef struct fz_glyphvictim_s fz_glyphvictim;
+
+struct fz_glyphvictim_s
+{
+	fz_glyphkey key;
+	unsigned int lastuse;
+	int orphan;
+};
+
+fz_glyphcache *
+fz_newglyphcache(void)
+{
+	fz_glyphcache *cache;
+
+	cache = fz_malloc(sizeof(fz_glyphcache));
+	pthread_mutex_init(&cache->lock, NULL);
+	cache->hash = fz_newhash(509, sizeof(fz_glyphkey));
+	cache->count = 0;
+	cache->total = 0;
+	cache->limit = DEFAULTCACHESIZE;
+	cache->clock = 0;
+	cache->hits = 0;
+	cache->misses = 0;
+	cache->evictions = 0;
+
+	return cache;
+}
+
+static void
+fz_dropglyphentry(fz_glyphcache *cache, fz_glyphkey *key)
+{
+	fz_glyphval *val;
+	fz_font *font;
+
+	val = fz_hashfind(cache->hash, key);
+	if (!val)
+		return;
+
+	font = key->font;
+	fz_hashremove(cache->hash, key);
+
+	cache->count--;
+	cache->total -= val->pixmap->w * val->pixmap->h;
+	cache->evictions++;
+	fz_droppixmap(val->pixmap);
+	fz_free(val);
+	fz_dropfont(font);
+}
+
+static int
+fz_cmpvictimfont(const void *a, const void *b)
+{
+	const fz_glyphvictim *va = a;
+	const fz_glyphvictim *vb = b;
+
+	if (va->key.font < vb->key.font)
+		return -1;
+	return va->key.font > vb->key.font;
+}
+
+static int
+fz_cmpvictim(const void *a, const void *b)
+{
+	const fz_glyphvictim *va = a;
+	const fz_glyphvictim *vb = b;
+
+	if (va->orphan != vb->orphan)
+		return vb->orphan - va->orphan;
+	if (va->lastuse < vb->lastuse)
+		return -1;
+	return va->lastuse > vb->lastuse;
+}
+
+/*
+ * Drop glyphs until at most target bytes are used. With orphansonly
+ * set, only glyphs whose font is referenced by nobody but the cache
+ * are dropped. Must be called with the lock held.
+ */
+static void
+fz_trimglyphcache(fz_glyphcache *cache, int target, int orphansonly)
+{
+	fz_glyphvictim *victims;
+	fz_glyphkey *key;
+	fz_glyphval *val;
+	int count = 0;
+	int i, j, n;
+
+	n = fz_hashlen(cache->hash);
+	if (cache->total <= target && !orphansonly)
+		return;
+
+	/* collect first, the hash table reorganizes itself on removal */
+	victims = fz_calloc(n ? n : 1, sizeof(fz_glyphvictim));
+	for (i = 0; i < n; i++)
+	{
+		key = fz_hashgetkey(cache->hash, i);
+		val = fz_hashgetval(cache->hash, i);
+		if (!val)
+			continue;
+		victims[count].key = *key;
+		victims[count].lastuse = val->lastuse;
+		count++;
+	}
+
+	/* every entry holds a reference to its font, so a font is orphaned
+	 * when its reference count equals its number of cached glyphs */
+	qsort(victims, count, sizeof(fz_glyphvictim), fz_cmpvictimfont);
+	for (i = 0; i < count; i = j)
+	{
+		for (j = i; j < count && victims[j].key.font == victims[i].key.font; j++)
+			;
+		if (victims[i].key.font->refs == j - i)
+			while (i < j)
+				victims[i++].orphan = 1;
+	}
+
+	qsort(victims, count, sizeof(fz_glyphvictim), fz_cmpvictim);
+
+	for (i = 0; i < count; i++)
+	{
+		if (orphansonly ? !victims[i].orphan : cache->total <= target)
+			break;
+		fz_dropglyphentry(cache, &victims[i].key);
+	}
+
+	fz_free(victims);
+}
+
+/* must be called with the lock held */
+static void
+fz_emptyglyphcache(fz_glyphcache *cache)
+{
+	fz_glyphkey *key;
+	fz_glyphval *val;
+	int i;
+
+	for (i = 0; i < fz_hashlen(cache->hash); i++)
+	{
+		key = fz_hashgetkey(cache->hash, i);
+		val = fz_hashgetval(cache->hash, i);
+		if (val)
+		{
+			fz_droppixmap(val->pixmap);
+			fz_free(val);
+			fz_dropfont(key->font);
+			cache->evictions++;
+		}
+	}
+
+	cache->count = 0;
+	cache->total = 0;
+
+	fz_emptyhash(cache->hash);
+}
+
+void
+fz_evictglyphcache(fz_glyphcache *cache)
+{
+	pthread_mutex_lock(&cache->lock);
+	fz_emptyglyphcache(cache);
+	pthread_mutex_unlock(&cache->lock);
+}
+
+/* drop all glyphs of fonts that are not in use anywhere else */
+void
+fz_evictorphanglyphs(fz_glyphcache *cache)
+{
+	pthread_mutex_lock(&cache->lock);
+	fz_trimglyphcache(cache, 0, 1);
+	pthread_mutex_unlock(&cache->lock);
+}
+
+/* drop glyphs until no more than target bytes are used */
+void
+fz_shrinkglyphcache(fz_glyphcache *cache, int target)
+{
+	pthread_mutex_lock(&cache->lock);
+	fz_trimglyphcache(cache, target, 0);
+	pthread_mutex_unlock(&cache->lock);
+}
+
+void
+fz_setglyphcachelimit(fz_glyphcache *cache, int limit)
+{
+	if (limit < MAXGLYPHSIZE * MAXGLYPHSIZE)
+		limit = MAXGLYPHSIZE * MAXGLYPHSIZE;
+	/* the cache shrinks when the next glyph is added, by the thread
+	 * rendering, so no glyph is freed behind its back */
+	pthread_mutex_lock(&cache->lock);
+	cache->limit = limit;
+	pthread_mutex_unlock(&cache->lock);
+}
+
+/*
+ * Fills stats with: hits, misses, evictions, bytes used, number of
+ * cached glyphs and the size limit.
+ */
+void
+fz_glyphcachestats(fz_glyphcache *cache, int *stats)
+{
+	pthread_mutex_lock(&cache->lock);
+	stats[0] = cache->hits;
+	stats[1] = cache->misses;
+	stats[2] = cache->evictions;
+	stats[3] = cache->total;
+	stats[4] = cache->count;
+	stats[5] = cache->limit;
+	pthread_mutex_unlock(&cache->lock);
+}
+
+void
+fz_freeglyphcache(fz_glyphcache *cache)
+{
+	fz_emptyglyphcache(cache);
+	fz_freehash(cache->hash);
+	pthread_mutex_destroy(&cache->lock);
+	fz_free(cache);
+}
+
+fz_pixmap *
+fz_renderglyph(fz_glyphcache *cache, fz_font *font, int cid, fz_matrix ctm)
+{
+	fz_glyphkey key;
+	fz_glyphval *val;
+	fz_pixmap *pixmap;
+	float size = fz_matrixexpansion(ctm);
+
+	if (size > MAXFONTSIZE)
+	{
+		/* TODO: this case should be handled by rendering glyph as a path fill */
+		fz_warn("font size too large (%g), not rendering glyph", size);
+		return nil;
+	}
+
+	memset(&key, 0, sizeof key);
+	key.font = font;
+	key.cid = cid;
+	key.a = ctm.a * 65536;
+	key.b = ctm.b * 65536;
+	key.c = ctm.c * 65536;
+	key.d = ctm.d * 65536;
+	key.e = (ctm.e - floorf(ctm.e)) * 256;
+	key.f = (ctm.f - floorf(ctm.f)) * 256;
+
+	pthread_mutex_lock(&cache->lock);
+	val = fz_hashfind(cache->hash, &key);
+	if (val)
+	{
+		cache->hits++;
+		val->lastuse = ++cache->clock;
+		pixmap = fz_keeppixmap(val->pixmap);
+		pthread_mutex_unlock(&cache->lock);
+		return pixmap;
+	}
+
+	cache->misses++;
+	pthread_mutex_unlock(&cache->lock);
+
+	ctm.e = floorf(ctm.e) + key.e / 256.0f;
+	ctm.f = floorf(ctm.f) + key.f / 256.0f;
+
+	if (font->ftface)
+	{
+		pixmap = fz_renderftglyph(font, cid, ctm);
+	}
+	else if (font->t3procs)
+	{
+		pixmap = fz_rendert3glyph(font, cid, ctm);
+	}
+	else
+	{
+		fz_warn("assert: uninitialized font structure");
+		return nil;
+	}
+
+	if (pixmap)
+	{
+		if (pixmap->w < MAXGLYPHSIZE && pixmap->h < MAXGLYPHSIZE)
+		{
+			pthread_mutex_lock(&cache->lock);
+			/* another thread may have rendered the same glyph meanwhile */
+			if (fz_hashfind(cache->hash, &key))
+			{
+				pthread_mutex_unlock(&cache->lock);
+				return pixmap;
+			}
+			if (cache->total + pixmap->w * pixmap->h > cache->limit)
+				fz_trimglyphcache(cache, cache->limit * 3 / 4, 0);
+			val = fz_malloc(sizeof(fz_glyphval));
+			val->pixmap = pixmap;
+			val->lastuse = ++cache->clock;
+			fz_keepfont(key.font);
+			fz_hashinsert(cache->hash, &key, val);
+			cache->count++;
+			cache->total += pixmap->w * pixmap->h;
+			pixmap = fz_keeppixmap(pixmap);
+			pthread_mutex_unlock(&cache->lock);
+			return pixmap;
+		}
+		return pixmap;
+	}
+
+	return nil;
+}
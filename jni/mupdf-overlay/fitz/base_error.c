@@ -12,6 +12,7 @@ fz_printerror(int type, const char *file, int line, const char *func, char *msg)
 	int len;
 
 	snprintf(buf, sizeof buf, "%c %s:%d: %s(): %s", type, file, line, func, msg);
+	len = strlen(buf);
 
 	__android_log_print(ANDROID_LOG_DEBUG, "MuPDF/Fitz", "Error: %s", buf);
 
@@ -1,58 +1,69 @@
 #include "fitz.h"
 #include "mupdf.h"
 
-#define BIG_MEM_THRESHOLD   (30 * 1024 * 1024)
-
-static int tracing;
-static int memTotal;
-static int mayFlushCache;
-static pdf_store *pCache;
-
-/* When loading a page, trace the memory allocations. If they're
- * above BIG_MEM_THRESHOLD, flush the mupdf cache and let the
- * caller know about it. This enables DroidReader to flag the
- * document as a memory hog and be more careful with memory
- * (this also makes it slower, unfortunately).
+/* DroidReader: every allocation carries a small header holding its
+ * size, so we always know how much memory the MuPDF side holds. The
+ * memory governor in pdfrender.c uses this to balance the resource
+ * store, display lists and glyph cache against its budget.
  */
-void fz_start_tracing (pdf_store *pStore)
+
+typedef union fz_memheader_u fz_memheader;
+
+union fz_memheader_u
+{
+	int size;
+	/* keep the payload aligned for any type */
+	double align;
+	void *palign;
+};
+
+static int memUsed;
+static int memPeak;
+static int memTraceStart;
+
+int fz_memory_used (void)
+{
+	return memUsed;
+}
+
+int fz_memory_peak (void)
+{
+	return memPeak;
+}
+
+/* Tracing reports the growth of the used memory between the two
+ * calls, e.g. during loading a page.
+ */
+void fz_start_tracing (void)
 {
-    pCache = pStore;
-    tracing = 1;
-    mayFlushCache = 1;
-    memTotal = 0;
+	memTraceStart = memUsed;
 }
 
 int fz_stop_tracing (void)
 {
-    if (!tracing) {
-        return -1;
-    }
+	return memUsed - memTraceStart;
+}
 
-    tracing = 0;
-    return 1 - mayFlushCache;
+static void fz_memaccount (int n)
+{
+	int used = __sync_add_and_fetch(&memUsed, n);
+	if (used > memPeak)
+		memPeak = used;
 }
 
 void *fz_malloc(int n)
 {
-	void *p;
+	fz_memheader *p;
 
-    if (tracing)
-    {
-        memTotal += n;
-        if ((memTotal > BIG_MEM_THRESHOLD) && (mayFlushCache))
-        {
-            pdf_agestore(pCache, 0);
-            mayFlushCache = 0;
-        }
-    }
-
-    p = malloc(n);
+	p = malloc(sizeof(fz_memheader) + n);
 	if (!p)
 	{
 		fprintf(stderr, "fatal error: out of memory\n");
 		abort();
 	}
-	return p;
+	p->size = n;
+	fz_memaccount(n);
+	return p + 1;
 }
 
 void *
@@ -82,7 +93,8 @@ fz_calloc(int count, int size)
 void *
 fz_realloc(void *p, int count, int size)
 {
-	void *np;
+	fz_memheader *np;
+	int oldsize;
 
 	if (count == 0 || size == 0)
 	{
@@ -90,25 +102,40 @@ fz_realloc(void *p, int count, int size)
 		return 0;
 	}
 
-	if (count < 0 || size < 0 || count > INT_MAX / size)
+	if (count < 0 || size < 0 || count > (INT_MAX - (int)sizeof(fz_memheader)) / size)
 	{
 		fprintf(stderr, "fatal error: out of memory (integer overflow)\n");
 		abort();
 	}
 
-	np = realloc(p, count * size);
+	if (!p)
+		return fz_malloc(count * size);
+
+	np = ((fz_memheader *)p) - 1;
+	oldsize = np->size;
+
+	np = realloc(np, sizeof(fz_memheader) + count * size);
 	if (np == nil)
 	{
 		fprintf(stderr, "fatal error: out of memory\n");
 		abort();
 	}
-	return np;
+	np->size = count * size;
+	fz_memaccount(count * size - oldsize);
+	return np + 1;
 }
 
 void
 fz_free(void *p)
 {
-	free(p);
+	fz_memheader *h;
+
+	if (!p)
+		return;
+
+	h = ((fz_memheader *)p) - 1;
+	fz_memaccount(-h->size);
+	free(h);
 }
 
 char *
@@ -0,0 +1,507 @@
+#include "fitz.h"
+#include "mupdf.h"
+
+/* DroidReader: the resource store keeps decoded images, fonts, shadings
+ * and the like for as long as there is room for them, so that resources
+ * shared between pages stay decoded across page turns. Every item knows
+ * how much memory it takes. Once the store grows beyond its size limit,
+ * the least recently used items are dropped until we're down to 3/4 of
+ * the limit. Items that are still referenced from elsewhere (e.g. from
+ * the display list of a cached page) are never dropped, since that
+ * would not free any memory but only lose the cache entry.
+ *
+ * The size of an item is measured with the allocation accounting in
+ * fitz/base_memory.c: a lookup that misses remembers the amount of
+ * memory in use, storing the item for the same key takes the difference.
+ * Items loaded while loading another item (e.g. a colorspace of an
+ * image) are subtracted from the outer item.
+ */
+
+#define DEFAULTSTORESIZE (8*1024*1024)
+#define MAXMARKS 32
+
+/* from fitz/base_memory.c */
+int fz_memory_used(void);
+
+typedef struct pdf_item_s pdf_item;
+typedef struct pdf_storemark_s pdf_storemark;
+
+struct pdf_item_s
+{
+	void *dropfunc;
+	fz_obj *key;
+	void *val;
+	int age;
+	int size;
+	pdf_item *next;
+	pdf_item *lruprev;
+	pdf_item *lrunext;
+};
+
+struct refkey
+{
+	void *dropfunc;
+	int num;
+	int gen;
+};
+
+/* Marks must not dereference their key, the object may be gone by the
+ * time the mark is looked at. Direct keys are compared by address.
+ */
+struct pdf_storemark_s
+{
+	struct refkey refkey;
+	fz_obj *key;
+	int start;
+	int children;
+};
+
+struct pdf_store_s
+{
+	fz_hashtable *hash;	/* hash for num/gen keys */
+	pdf_item *root;		/* linked list for everything else */
+	pdf_item *lruhead;	/* most recently used */
+	pdf_item *lrutail;	/* least recently used */
+	int size;
+	int limit;
+	int count;
+	int hits;
+	int misses;
+	int evictions;
+	pdf_storemark marks[MAXMARKS];
+	int nmarks;
+};
+
+pdf_store *
+pdf_newstore(void)
+{
+	pdf_store *store;
+	store = fz_malloc(sizeof(pdf_store));
+	store->hash = fz_newhash(4096, sizeof(struct refkey));
+	store->root = nil;
+	store->lruhead = nil;
+	store->lrutail = nil;
+	store->size = 0;
+	store->limit = DEFAULTSTORESIZE;
+	store->count = 0;
+	store->hits = 0;
+	store->misses = 0;
+	store->evictions = 0;
+	store->nmarks = 0;
+	return store;
+}
+
+static void
+makerefkey(struct refkey *refkey, void *dropfunc, fz_obj *key)
+{
+	memset(refkey, 0, sizeof(struct refkey));
+	refkey->dropfunc = dropfunc;
+	refkey->num = fz_tonum(key);
+	refkey->gen = fz_togen(key);
+}
+
+
+/* The store holds one reference to each value. All the resource types
+ * that go into the store start with their reference count.
+ */
+static int
+isinuse(pdf_item *item)
+{
+	return *(int *)item->val > 1;
+}
+
+static void
+lruunlink(pdf_store *store, pdf_item *item)
+{
+	if (item->lruprev)
+		item->lruprev->lrunext = item->lrunext;
+	else
+		store->lruhead = item->lrunext;
+	if (item->lrunext)
+		item->lrunext->lruprev = item->lruprev;
+	else
+		store->lrutail = item->lruprev;
+	item->lruprev = nil;
+	item->lrunext = nil;
+}
+
+static void
+lrupush(pdf_store *store, pdf_item *item)
+{
+	item->lruprev = nil;
+	item->lrunext = store->lruhead;
+	if (store->lruhead)
+		store->lruhead->lruprev = item;
+	else
+		store->lrutail = item;
+	store->lruhead = item;
+}
+
+static void
+dropitem(pdf_store *store, pdf_item *item)
+{
+	void (*dropfunc)(void*) = item->dropfunc;
+
+	lruunlink(store, item);
+	store->size -= item->size;
+	store->count --;
+
+	dropfunc(item->val);
+	fz_dropobj(item->key);
+	fz_free(item);
+}
+
+/* unlink from the hash or the list of direct keys, and free the item */
+static void
+removeitem(pdf_store *store, pdf_item *item)
+{
+	struct refkey refkey;
+	pdf_item *prev;
+
+	if (fz_isindirect(item->key))
+	{
+		makerefkey(&refkey, item->dropfunc, item->key);
+		fz_hashremove(store->hash, &refkey);
+	}
+	else
+	{
+		if (store->root == item)
+			store->root = item->next;
+		else
+		{
+			for (prev = store->root; prev; prev = prev->next)
+			{
+				if (prev->next == item)
+				{
+					prev->next = item->next;
+					break;
+				}
+			}
+		}
+	}
+
+	dropitem(store, item);
+}
+
+/* Drop the least recently used items that nobody else references
+ * until the store is down to the target size.
+ */
+void
+pdf_trimstore(pdf_store *store, int target)
+{
+	pdf_item *item, *prev;
+
+	for (item = store->lrutail; item && store->size > target; item = prev)
+	{
+		prev = item->lruprev;
+		if (isinuse(item))
+			continue;
+		removeitem(store, item);
+		store->evictions ++;
+	}
+}
+
+static pdf_item *
+findvalue(pdf_store *store, void *val)
+{
+	pdf_item *item;
+
+	for (item = store->lruhead; item; item = item->lrunext)
+		if (item->val == val)
+			return item;
+	return nil;
+}
+
+/* Drops the item holding the given value, so the next lookup for its
+ * key loads it again.
+ */
+void
+pdf_removevalue(pdf_store *store, void *val)
+{
+	pdf_item *item = findvalue(store, val);
+	if (item)
+		removeitem(store, item);
+}
+
+/* Finds the object number an item was stored for, so it can be loaded
+ * again by reference later on. Values are compared through the match
+ * function if there is one (e.g. to find a pdf_fontdesc by its fz_font),
+ * otherwise by address. Returns 0 if the value isn't in the store or
+ * was stored for a direct object.
+ */
+int
+pdf_findref(pdf_store *store, void *dropfunc, void *val,
+	int (*match)(void *itemval, void *val), int *num, int *gen)
+{
+	pdf_item *item;
+
+	for (item = store->lruhead; item; item = item->lrunext)
+	{
+		if (item->dropfunc != dropfunc || !fz_isindirect(item->key))
+			continue;
+		if (match ? match(item->val, val) : (item->val == val))
+		{
+			*num = fz_tonum(item->key);
+			*gen = fz_togen(item->key);
+			return 1;
+		}
+	}
+	return 0;
+}
+
+/* Corrects the size of an item after its value has been changed in place */
+void
+pdf_resizevalue(pdf_store *store, void *val, int delta)
+{
+	pdf_item *item = findvalue(store, val);
+	if (item)
+	{
+		item->size += delta;
+		store->size += delta;
+	}
+}
+
+void
+pdf_setstorelimit(pdf_store *store, int limit)
+{
+	store->limit = limit;
+	if (store->size > store->limit)
+		pdf_trimstore(store, store->limit / 4 * 3);
+}
+
+int
+pdf_storesize(pdf_store *store)
+{
+	return store->size;
+}
+
+/* hits, misses, evictions, bytes, items, limit */
+void
+pdf_storestats(pdf_store *store, int *stats)
+{
+	stats[0] = store->hits;
+	stats[1] = store->misses;
+	stats[2] = store->evictions;
+	stats[3] = store->size;
+	stats[4] = store->count;
+	stats[5] = store->limit;
+}
+
+static void
+pushmark(pdf_store *store, void *dropfunc, fz_obj *key)
+{
+	pdf_storemark *mark;
+
+	if (store->nmarks == MAXMARKS)
+	{
+		/* the oldest mark is most likely one that never got stored */
+		memmove(store->marks, store->marks + 1, (MAXMARKS - 1) * sizeof(pdf_storemark));
+		store->nmarks --;
+	}
+
+	mark = &store->marks[store->nmarks++];
+	if (fz_isindirect(key))
+	{
+		makerefkey(&mark->refkey, dropfunc, key);
+		mark->key = nil;
+	}
+	else
+	{
+		memset(&mark->refkey, 0, sizeof(struct refkey));
+		mark->refkey.dropfunc = dropfunc;
+		mark->key = key;
+	}
+	mark->start = fz_memory_used();
+	mark->children = 0;
+}
+
+/* Returns the memory that was allocated since the lookup for this key
+ * missed, or 0 if we don't know. Marks pushed later than that one
+ * belong to lookups that were never followed by storing a value, their
+ * memory stays accounted to this item.
+ */
+static int
+popmark(pdf_store *store, void *dropfunc, fz_obj *key)
+{
+	struct refkey refkey;
+	int i, grown, size;
+
+	if (fz_isindirect(key))
+		makerefkey(&refkey, dropfunc, key);
+
+	for (i = store->nmarks - 1; i >= 0; i--)
+	{
+		if (store->marks[i].refkey.dropfunc != dropfunc)
+			continue;
+		if (fz_isindirect(key) ?
+			(!store->marks[i].key && !memcmp(&store->marks[i].refkey, &refkey, sizeof refkey)) :
+			(store->marks[i].key == key))
+		{
+			grown = fz_memory_used() - store->marks[i].start;
+			size = grown - store->marks[i].children;
+			store->nmarks = i;
+			if (i > 0)
+				store->marks[i - 1].children += grown;
+			return size > 0 ? size : 0;
+		}
+	}
+
+	return 0;
+}
+
+void
+pdf_storeitem(pdf_store *store, void *keepfunc, void *dropfunc, fz_obj *key, void *val)
+{
+	pdf_item *item;
+	struct refkey refkey;
+	int size;
+
+	if (!store)
+		return;
+
+	size = popmark(store, dropfunc, key);
+
+	item = fz_malloc(sizeof(pdf_item));
+	item->dropfunc = dropfunc;
+	item->key = fz_keepobj(key);
+	item->val = ((void*(*)(void*))keepfunc)(val);
+	item->age = 0;
+	item->next = nil;
+	item->size = size + sizeof(pdf_item);
+
+	if (fz_isindirect(key))
+	{
+		pdf_logrsrc("store item (%d %d R) ptr=%p size=%d\n", fz_tonum(key), fz_togen(key), val, item->size);
+
+		makerefkey(&refkey, dropfunc, key);
+		fz_hashinsert(store->hash, &refkey, item);
+	}
+	else
+	{
+		pdf_logrsrc("store item (...) = %p size=%d\n", val, item->size);
+
+		item->next = store->root;
+		store->root = item;
+	}
+
+	lrupush(store, item);
+	store->size += item->size;
+	store->count ++;
+
+	if (store->size > store->limit)
+		pdf_trimstore(store, store->limit / 4 * 3);
+}
+
+void *
+pdf_finditem(pdf_store *store, void *dropfunc, fz_obj *key)
+{
+	struct refkey refkey;
+	pdf_item *item;
+
+	if (!store)
+		return nil;
+
+	if (key == nil)
+		return nil;
+
+	if (fz_isindirect(key))
+	{
+		makerefkey(&refkey, dropfunc, key);
+		item = fz_hashfind(store->hash, &refkey);
+	}
+	else
+	{
+		for (item = store->root; item; item = item->next)
+			if (item->dropfunc == dropfunc && !fz_objcmp(item->key, key))
+				break;
+	}
+
+	if (item)
+	{
+		item->age = 0;
+		lruunlink(store, item);
+		lrupush(store, item);
+		store->hits ++;
+		return item->val;
+	}
+
+	store->misses ++;
+	pushmark(store, dropfunc, key);
+	return nil;
+}
+
+void
+pdf_removeitem(pdf_store *store, void *dropfunc, fz_obj *key)
+{
+	struct refkey refkey;
+	pdf_item *item;
+
+	if (fz_isindirect(key))
+	{
+		makerefkey(&refkey, dropfunc, key);
+		item = fz_hashfind(store->hash, &refkey);
+		if (item)
+			removeitem(store, item);
+	}
+	else
+	{
+		for (item = store->root; item; item = item->next)
+		{
+			if (item->dropfunc == dropfunc && !fz_objcmp(item->key, key))
+			{
+				removeitem(store, item);
+				break;
+			}
+		}
+	}
+}
+
+/* Ages all items and drops the ones that have not been used for more
+ * than maxage calls and are not referenced from elsewhere.
+ */
+void
+pdf_agestore(pdf_store *store, int maxage)
+{
+	pdf_item *item, *prev;
+
+	for (item = store->lrutail; item; item = prev)
+	{
+		prev = item->lruprev;
+		if (++item->age > maxage && !isinuse(item))
+			removeitem(store, item);
+	}
+}
+
+void
+pdf_freestore(pdf_store *store)
+{
+	while (store->lruhead)
+		removeitem(store, store->lruhead);
+	fz_freehash(store->hash);
+	fz_free(store);
+}
+
+void
+pdf_debugstore(pdf_store *store)
+{
+	pdf_item *item;
+
+	printf("-- resource store contents: %d items, %d/%d bytes, %d hits, %d misses, %d evictions --\n",
+		store->count, store->size, store->limit,
+		store->hits, store->misses, store->evictions);
+
+	for (item = store->lruhead; item; item = item->lrunext)
+	{
+		if (fz_isindirect(item->key))
+			printf("store[(%d %d R)] = %p, %d bytes, age %d%s\n",
+				fz_tonum(item->key), fz_togen(item->key), item->val,
+				item->size, item->age, isinuse(item) ? ", in use" : "");
+		else
+		{
+			printf("store[*] ");
+			fz_debugobj(item->key);
+			printf(" = %p, %d bytes, age %d%s\n", item->val,
+				item->size, item->age, isinuse(item) ? ", in use" : "");
+		}
+	}
+}
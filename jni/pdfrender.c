@@ -25,10 +25,20 @@ the Free Software Foundation, either version 3 of the License, or
 #include <jni.h>
 
 #include <android/log.h>
+#include <dirent.h>
 #include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdarg.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <unistd.h>
 
 #include <fitz.h>
 #include <mupdf.h>
+#include "pixelkernels.h"
 #include <time.h>
 
 /************************************************************************/
@@ -38,14 +48,19 @@ the Free Software Foundation, either version 3 of the License, or
 
 #define BYPP 4
 
-/* Number of cache structs for page preloading */
-#define NUM_CACHE_STRUCTS               (2)
-
-/* Bit masks for page load options */
-#define PDF_PAGE_MEMORY_HOG             (1)
+/* Number of cache structs for page preloading, this needs to be more
+ * than the number of pages the Java side keeps open at the same time */
+#define NUM_CACHE_STRUCTS               (6)
 
 /* Bit masks for rendering options */
 #define PDF_RENDER_DISPLAY_INVERT		(1)
+#define PDF_RENDER_LOD					(2)
+/* output formats besides 32 bit ARGB, a short or byte per pixel */
+#define PDF_RENDER_FORMAT_RGB565		(4)
+#define PDF_RENDER_FORMAT_ALPHA8		(8)
+
+/* Bit masks for page load options */
+#define PDF_PAGE_TRANSIENT				(1)
 
 /* Debugging helper */
 
@@ -77,24 +92,54 @@ the Free Software Foundation, either version 3 of the License, or
  */
 /************************************************************************/
 
+typedef struct listindex_s listindex_t;
+
 typedef struct renderpage_s renderpage_t;
 struct renderpage_s
 {
     fz_displaylist *list;
+    /* spatial index of the list, built on demand, see index_build() */
+    listindex_t *index;
     fz_rect contentbox;
+    int havecontentbox;
     fz_rect pagebox;
     int rotate;
     int pageNo;
+    /* bytes held by the display list */
+    int listsize;
+    /* zoom bucket the images were decoded for, see downsample_images() */
+    int zoombucket;
+    int downsampled;
+    /* not part of the page cache, freed when the page is closed */
+    int transient;
+    /* number of PdfPage objects that have this page open */
+    int users;
+    /* COLORS_*, see page_is_gray() */
+    int colors;
 };
 
+#define COLORS_UNKNOWN 0
+#define COLORS_GRAY 1
+#define COLORS_COLOR 2
+
 typedef struct renderdocument_s renderdocument_t;
 struct renderdocument_s
 {
     pdf_xref *xref;
-    pdf_outline *outline;
-    int isMemoryHog;
+    /* page object number -> page number, see page_number() */
+    fz_hashtable *pagenums;
+    /* images we reduced in resolution, mapped to zoom bucket + 1 */
+    fz_hashtable *downsampled;
     int currentlyDisplayedPage;
     renderpage_t *pages[NUM_CACHE_STRUCTS];
+    /* directory for display lists of pages, see listcache_save() */
+    char *listcache;
+    /* bytes the files in it take, and may take */
+    int listcachesize;
+    int listcachelimit;
+    /* render buffer for output formats MuPDF doesn't draw to directly */
+    void *scratch;
+    int scratchsize;
 };
 
 /**
@@ -105,6 +150,46 @@ JavaVM *cached_jvm;
 /* Fitz info */
 fz_glyphcache *glyphcache;
 
+/* Functions from our MuPDF overlay (see mupdf-overlay/): */
+
+void fz_evictorphanglyphs(fz_glyphcache *cache);
+void fz_setglyphcachelimit(fz_glyphcache *cache, int limit);
+void fz_glyphcachestats(fz_glyphcache *cache, int *stats);
+void fz_shrinkglyphcache(fz_glyphcache *cache, int target);
+int fz_memory_used(void);
+int fz_memory_peak(void);
+void pdf_trimstore(pdf_store *store, int target);
+void pdf_setstorelimit(pdf_store *store, int limit);
+int pdf_storesize(pdf_store *store);
+void pdf_storestats(pdf_store *store, int *stats);
+void pdf_removevalue(pdf_store *store, void *val);
+void pdf_resizevalue(pdf_store *store, void *val, int delta);
+int pdf_findref(pdf_store *store, void *dropfunc, void *val,
+        int (*match)(void *itemval, void *val), int *num, int *gen);
+
+/* Memory governor.
+ *
+ * The governor balances what the MuPDF side holds (display lists, the
+ * resource store and the glyph cache) plus the render buffers on the
+ * Java side against a budget given by the Java code. When the budget is
+ * exceeded, every category that can give memory back does so in
+ * proportion to its size, instead of dropping everything at once.
+ *
+ * There is one governor for the process, as the glyph cache and the
+ * render buffers are shared by all documents. DroidReader has one
+ * document open at a time. Each open sets the budget to the one given
+ * by the Java side, which is the same for all documents.
+ */
+typedef struct memgovernor_s memgovernor_t;
+struct memgovernor_s
+{
+    int budget;
+    /* bytes in render buffers, reported by the Java side */
+    int pixels;
+};
+
+static memgovernor_t governor = { 32 * 1024 * 1024, 0 };
+
 /************************************************************************/
 
 /* our own helper functions: */
@@ -122,6 +207,196 @@ void throw_exception(JNIEnv *env, char *exception_class, char *message)
     (*env)->ThrowNew(env, new_exception, message);
 }
 
+/* Font provider upcalls.
+ *
+ * The JNI class, field and method IDs needed to call into the Java
+ * FontProvider are resolved once in JNI_OnLoad(). Results of the upcalls
+ * (including negative ones) are kept in a small native cache keyed by
+ * request, so a font or cmap that has been asked for once never crosses
+ * the JNI boundary again until the cache gets flushed.
+ */
+
+typedef struct fontcache_s fontcache_t;
+struct fontcache_s
+{
+    char *key;
+    /* global reference to the direct ByteBuffer, keeps data valid */
+    jobject buffer;
+    unsigned char *data;
+    unsigned int len;
+    char *filename;
+    fontcache_t *next;
+};
+
+static fontcache_t *fontcache = (fontcache_t *)0;
+static pthread_mutex_t fontcache_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static jclass pdfrender_class;
+static jfieldID fontprovider_field;
+static jmethodID getfontfile_method;
+static jmethodID getfontbuffer_method;
+static jmethodID getcmapbuffer_method;
+
+static int resolve_fontprovider_ids(JNIEnv *env)
+{
+    jclass cls;
+
+    cls = (*env)->FindClass(env, "de/hilses/droidreader/PdfRender");
+    if(cls == NULL)
+        return -1;
+    pdfrender_class = (*env)->NewGlobalRef(env, cls);
+    (*env)->DeleteLocalRef(env, cls);
+    if(pdfrender_class == NULL)
+        return -1;
+
+    fontprovider_field = (*env)->GetStaticFieldID(env, pdfrender_class,
+            "fontProvider", "Lde/hilses/droidreader/FontProvider;");
+    if(fontprovider_field == NULL)
+        return -1;
+
+    /* method IDs taken from the interface are valid for any implementation */
+    cls = (*env)->FindClass(env, "de/hilses/droidreader/FontProvider");
+    if(cls == NULL)
+        return -1;
+    getfontfile_method = (*env)->GetMethodID(env, cls, "getFontFile",
+            "(Ljava/lang/String;Ljava/lang/String;I)Ljava/lang/String;");
+    getfontbuffer_method = (*env)->GetMethodID(env, cls, "getFontBuffer",
+            "(Ljava/lang/String;Ljava/lang/String;I)Ljava/nio/ByteBuffer;");
+    getcmapbuffer_method = (*env)->GetMethodID(env, cls, "getCMapBuffer",
+            "(Ljava/lang/String;)Ljava/nio/ByteBuffer;");
+    (*env)->DeleteLocalRef(env, cls);
+
+    if((getfontfile_method == NULL) || (getfontbuffer_method == NULL)
+            || (getcmapbuffer_method == NULL))
+        return -1;
+
+    return 0;
+}
+
+/* Builds the cache key of a request. Names can be of any length, so
+ * the key is allocated to fit.
+ */
+static char *fontcache_key(const char *format, ...)
+{
+    va_list args;
+    char *key;
+    int len;
+
+    va_start(args, format);
+    len = vsnprintf(NULL, 0, format, args);
+    va_end(args);
+    if(len < 0)
+        return (char *)0;
+
+    key = fz_malloc(len + 1);
+    va_start(args, format);
+    vsnprintf(key, len + 1, format, args);
+    va_end(args);
+    return key;
+}
+
+/* must be called with fontcache_lock held */
+static fontcache_t *fontcache_find(char *key)
+{
+    fontcache_t *entry;
+
+    for(entry = fontcache; entry; entry = entry->next) {
+        if(!strcmp(entry->key, key))
+            return entry;
+    }
+    return (fontcache_t *)0;
+}
+
+/* Adds the result of an upcall to the cache. If another thread added
+ * the same request meanwhile, that entry is kept and the result is
+ * dropped. Must be called with fontcache_lock held.
+ */
+static fontcache_t *fontcache_add(JNIEnv *env, char *key, fontcache_t *found)
+{
+    fontcache_t *entry = fontcache_find(key);
+
+    if(entry) {
+        if(found->buffer)
+            (*env)->DeleteGlobalRef(env, found->buffer);
+        if(found->filename)
+            fz_free(found->filename);
+        return entry;
+    }
+
+    entry = fz_malloc(sizeof(fontcache_t));
+    *entry = *found;
+    entry->key = fz_strdup(key);
+    entry->next = fontcache;
+    fontcache = entry;
+    return entry;
+}
+
+static void fontcache_flush(JNIEnv *env)
+{
+    fontcache_t *entry;
+
+    pthread_mutex_lock(&fontcache_lock);
+    while(fontcache) {
+        entry = fontcache;
+        fontcache = entry->next;
+        if(entry->buffer && env)
+            (*env)->DeleteGlobalRef(env, entry->buffer);
+        if(entry->filename)
+            fz_free(entry->filename);
+        fz_free(entry->key);
+        fz_free(entry);
+    }
+    pthread_mutex_unlock(&fontcache_lock);
+}
+
+static fz_error get_fontprovider(JNIEnv **env, jobject *fontprovider)
+{
+    if((*cached_jvm)->GetEnv(cached_jvm, (void **)env, JNI_VERSION_1_2) != JNI_OK)
+        return fz_throw("cannot find our JNI env!");
+
+    if(pdfrender_class == NULL)
+        return fz_throw("JNI interface IDs were not resolved");
+
+    *fontprovider = (*(*env))->GetStaticObjectField(*env, pdfrender_class, fontprovider_field);
+    if(*fontprovider == NULL)
+        return fz_throw("cannot access fontProvider field");
+
+    return fz_okay;
+}
+
+/* Calls a FontProvider method returning a direct ByteBuffer and stores
+ * the result in the given entry, which is not in the cache yet.
+ */
+static fz_error fetch_buffer(JNIEnv *env, fontcache_t *entry, jobject result)
+{
+    unsigned char *data;
+    jlong len;
+
+    if(result == NULL)
+        return fz_throw("no buffer returned");
+
+    data = (unsigned char *) (*env)->GetDirectBufferAddress(env, result);
+    len = (*env)->GetDirectBufferCapacity(env, result);
+    if((data == NULL) || (len == -1)) {
+        (*env)->DeleteLocalRef(env, result);
+        return fz_throw("could not get buffer (JNI trouble!)");
+    }
+
+    entry->buffer = (*env)->NewGlobalRef(env, result);
+    (*env)->DeleteLocalRef(env, result);
+    if(entry->buffer == NULL)
+        return fz_throw("cannot create global reference for buffer");
+
+    entry->data = data;
+    entry->len = (unsigned int) len;
+    return fz_okay;
+}
+
+/* The upcalls below are made without fontcache_lock held, so the Java
+ * side can take as long as it likes, or call back into us, without
+ * holding up other threads.
+ */
+
 /* a callback to retrieve font file names */
 
 fz_error
@@ -129,65 +404,68 @@ pdf_getfontfile(pdf_fontdesc *font, char *fontname, char *collection, char **fil
 {
     JNIEnv *env;
     jboolean iscopy;
-    jclass pdfrender;
-    jclass fontproviderclass;
-    jfieldID fontproviderfield;
     jobject fontprovider;
-    jmethodID getfontfilemethod;
     jstring fontfilestring;
     jstring fontnamestring;
     jstring collectionstring;
     char *filenamebuf;
+    char *key;
+    fontcache_t *entry, found;
+    fz_error error;
 
-    DEBUG("pdf_getfontfile(%p, '%s', '%s')", font, fontname, collection);
-
-    if((*cached_jvm)->GetEnv(cached_jvm, (void **)&env, JNI_VERSION_1_2) != JNI_OK)
-        return fz_throw("cannot find our JNI env!");
-
-    pdfrender = (*env)->FindClass(env, "de/hilses/droidreader/PdfRender");
-    if(pdfrender == NULL)
-        return fz_throw("cannot find JNI interface class");
-
-    fontproviderfield = (*env)->GetStaticFieldID(env, pdfrender,
-            "fontProvider", "Lde/hilses/droidreader/FontProvider;");
-    if(fontproviderfield == NULL)
-        return fz_throw("cannot find fontProvider field");
-
-    fontprovider = (*env)->GetStaticObjectField(env, pdfrender, fontproviderfield);
-    if(fontprovider == NULL)
-        return fz_throw("cannot access fontProvider field");
+    DEBUG("pdf_getfontfile(%p, '%s', '%s')", font, fontname, collection ? collection : "");
 
-    fontproviderclass = (*env)->GetObjectClass(env, fontprovider);
-    if(fontproviderclass == NULL)
-        return fz_throw("cannot get class for fontProvider field content");
+    key = fontcache_key("f|%s|%s|%d", fontname, collection ? collection : "", font->flags);
+    if(!key)
+        return fz_throw("cannot build cache key for font");
 
-    getfontfilemethod = (*env)->GetMethodID(env, fontproviderclass,
-            "getFontFile",
-            "(Ljava/lang/String;Ljava/lang/String;I)Ljava/lang/String;");
-    if(getfontfilemethod == NULL)
-        return fz_throw("cannot find method getFontFile() in fontProvider");
+    *filename = (char *)0;
+    pthread_mutex_lock(&fontcache_lock);
+    entry = fontcache_find(key);
+    if(entry && entry->filename)
+        *filename = fz_strdup(entry->filename);
+    pthread_mutex_unlock(&fontcache_lock);
 
-    fontnamestring = (*env)->NewStringUTF(env, fontname);
-    collectionstring = (*env)->NewStringUTF(env, collection);
+    if(!entry) {
+        error = get_fontprovider(&env, &fontprovider);
+        if(error) {
+            fz_free(key);
+            return fz_rethrow(error, "cannot call font provider");
+        }
 
-    fontfilestring = (*env)->CallObjectMethod(
-            env, fontprovider, getfontfilemethod,
-            fontnamestring,
-            collectionstring,
-            (jint) font->flags);
+        fontnamestring = (*env)->NewStringUTF(env, fontname);
+        collectionstring = collection ? (*env)->NewStringUTF(env, collection) : NULL;
+
+        fontfilestring = (*env)->CallObjectMethod(
+                env, fontprovider, getfontfile_method,
+                fontnamestring,
+                collectionstring,
+                (jint) font->flags);
+
+        (*env)->DeleteLocalRef(env, fontnamestring);
+        if(collectionstring)
+            (*env)->DeleteLocalRef(env, collectionstring);
+        (*env)->DeleteLocalRef(env, fontprovider);
+
+        memset(&found, 0, sizeof(found));
+        if(fontfilestring != NULL) {
+            filenamebuf = (char *)(*env)->GetStringUTFChars(env, fontfilestring, &iscopy);
+            found.filename = fz_strdup(filenamebuf);
+            (*env)->ReleaseStringUTFChars(env, fontfilestring, filenamebuf);
+            (*env)->DeleteLocalRef(env, fontfilestring);
+        }
 
-    /* TODO: release some references?!?
-    (*env)->DeleteLocalRef(env, fontnamestring);
-    (*env)->DeleteLocalRef(env, collectionstring);
-    */
+        pthread_mutex_lock(&fontcache_lock);
+        entry = fontcache_add(env, key, &found);
+        if(entry->filename)
+            *filename = fz_strdup(entry->filename);
+        pthread_mutex_unlock(&fontcache_lock);
+    }
+    fz_free(key);
 
-    if(fontfilestring == NULL)
+    if(*filename == NULL)
         return fz_throw("could not get filename for font");
 
-    filenamebuf = (char *)(*env)->GetStringUTFChars(env, fontfilestring, &iscopy);
-    *filename = fz_strdup(filenamebuf);
-    (*env)->ReleaseStringUTFChars(env, fontfilestring, filenamebuf);
-
     DEBUG("got font file: '%s'", *filename);
     return fz_okay;
 }
@@ -195,67 +473,68 @@ pdf_getfontfile(pdf_fontdesc *font, char *fontname, char *collection, char **fil
 fz_error
 pdf_getfontbuffer(pdf_fontdesc *font, char *fontname, char *collection, unsigned char **data, unsigned int *len) {
     JNIEnv *env;
-    jboolean iscopy;
-    jclass pdfrender;
-    jclass fontproviderclass;
-    jfieldID fontproviderfield;
     jobject fontprovider;
-    jmethodID getfontbuffermethod;
     jobject fontbuffer;
     jstring fontnamestring;
     jstring collectionstring;
+    char *key;
+    fontcache_t *entry, found;
+    fz_error error;
 
-    DEBUG("pdf_getfontbuffer(%p, '%s', '%s')", font, fontname, collection);
-
-    if((*cached_jvm)->GetEnv(cached_jvm, (void **)&env, JNI_VERSION_1_2) != JNI_OK)
-        return fz_throw("cannot find our JNI env!");
-
-    pdfrender = (*env)->FindClass(env, "de/hilses/droidreader/PdfRender");
-    if(pdfrender == NULL)
-        return fz_throw("cannot find JNI interface class");
+    DEBUG("pdf_getfontbuffer(%p, '%s', '%s')", font, fontname, collection ? collection : "");
 
-    fontproviderfield = (*env)->GetStaticFieldID(env, pdfrender,
-            "fontProvider", "Lde/hilses/droidreader/FontProvider;");
-    if(fontproviderfield == NULL)
-        return fz_throw("cannot find fontProvider field");
+    /* the Java side looks font buffers up by name only */
+    key = fontcache_key("b|%s", fontname);
+    if(!key)
+        return fz_throw("cannot build cache key for font");
 
-    fontprovider = (*env)->GetStaticObjectField(env, pdfrender, fontproviderfield);
-    if(fontprovider == NULL)
-        return fz_throw("cannot access fontProvider field");
+    *data = (unsigned char *)0;
+    *len = 0;
+    pthread_mutex_lock(&fontcache_lock);
+    entry = fontcache_find(key);
+    if(entry) {
+        *data = entry->data;
+        *len = entry->len;
+    }
+    pthread_mutex_unlock(&fontcache_lock);
 
-    fontproviderclass = (*env)->GetObjectClass(env, fontprovider);
-    if(fontproviderclass == NULL)
-        return fz_throw("cannot get class for fontProvider field content");
+    if(!entry) {
+        error = get_fontprovider(&env, &fontprovider);
+        if(error) {
+            fz_free(key);
+            return fz_rethrow(error, "cannot call font provider");
+        }
 
-    getfontbuffermethod = (*env)->GetMethodID(env, fontproviderclass,
-            "getFontBuffer",
-            "(Ljava/lang/String;Ljava/lang/String;I)Ljava/nio/ByteBuffer;");
-    if(getfontbuffermethod == NULL)
-        return fz_throw("cannot find method getFontBuffer() in fontProvider");
-
-    fontnamestring = (*env)->NewStringUTF(env, fontname);
-    collectionstring = (*env)->NewStringUTF(env, collection);
-
-    fontbuffer = (*env)->CallObjectMethod(
-            env, fontprovider, getfontbuffermethod,
-            fontnamestring,
-            collectionstring,
-            (jint) font->flags);
-/* TODO: release some references?!?
-    (*env)->DeleteLocalRef(env, fontnamestring);
-    (*env)->DeleteLocalRef(env, collectionstring);
-*/
-    DEBUG("got font buffer: %d", fontbuffer);
+        fontnamestring = (*env)->NewStringUTF(env, fontname);
+        collectionstring = collection ? (*env)->NewStringUTF(env, collection) : NULL;
+
+        fontbuffer = (*env)->CallObjectMethod(
+                env, fontprovider, getfontbuffer_method,
+                fontnamestring,
+                collectionstring,
+                (jint) font->flags);
+
+        (*env)->DeleteLocalRef(env, fontnamestring);
+        if(collectionstring)
+            (*env)->DeleteLocalRef(env, collectionstring);
+        (*env)->DeleteLocalRef(env, fontprovider);
+
+        memset(&found, 0, sizeof(found));
+        error = fetch_buffer(env, &found, fontbuffer);
+        if(error)
+            fz_catch(error, "no buffer for font '%s'", fontname);
+
+        pthread_mutex_lock(&fontcache_lock);
+        entry = fontcache_add(env, key, &found);
+        *data = entry->data;
+        *len = entry->len;
+        pthread_mutex_unlock(&fontcache_lock);
+    }
+    fz_free(key);
 
-    if(fontbuffer == NULL)
+    if(*data == NULL)
         return fz_throw("could not get buffer for font");
 
-    *data = (unsigned char *) (*env)->GetDirectBufferAddress(env, fontbuffer);
-    *len = (unsigned int) (*env)->GetDirectBufferCapacity(env, fontbuffer);
-
-    if((*data == NULL) || (*len == -1))
-        return fz_throw("could not get buffer for font (JNI trouble!)");
-
     DEBUG("got font buffer: %p, length=%d", *data, *len);
     return fz_okay;
 }
@@ -263,86 +542,291 @@ pdf_getfontbuffer(pdf_fontdesc *font, char *fontname, char *collection, unsigned
 fz_error
 pdf_getcmapbuffer(char *cmapname, unsigned char **data, unsigned int *len) {
     JNIEnv *env;
-    jboolean iscopy;
-    jclass pdfrender;
-    jclass fontproviderclass;
-    jfieldID fontproviderfield;
     jobject fontprovider;
-    jmethodID getcmapbuffermethod;
     jobject cmapbuffer;
     jstring cmapnamestring;
+    char *key;
+    fontcache_t *entry, found;
+    fz_error error;
 
     DEBUG("pdf_getcmapbuffer('%s')", cmapname);
 
-    if((*cached_jvm)->GetEnv(cached_jvm, (void **)&env, JNI_VERSION_1_2) != JNI_OK)
-        return fz_throw("cannot find our JNI env!");
-
-    pdfrender = (*env)->FindClass(env, "de/hilses/droidreader/PdfRender");
-    if(pdfrender == NULL)
-        return fz_throw("cannot find JNI interface class");
+    key = fontcache_key("c|%s", cmapname);
+    if(!key)
+        return fz_throw("cannot build cache key for cmap");
+
+    *data = (unsigned char *)0;
+    *len = 0;
+    pthread_mutex_lock(&fontcache_lock);
+    entry = fontcache_find(key);
+    if(entry) {
+        *data = entry->data;
+        *len = entry->len;
+    }
+    pthread_mutex_unlock(&fontcache_lock);
 
-    fontproviderfield = (*env)->GetStaticFieldID(env, pdfrender,
-            "fontProvider", "Lde/hilses/droidreader/FontProvider;");
-    if(fontproviderfield == NULL)
-        return fz_throw("cannot find fontProvider field");
+    if(!entry) {
+        error = get_fontprovider(&env, &fontprovider);
+        if(error) {
+            fz_free(key);
+            return fz_rethrow(error, "cannot call font provider");
+        }
 
-    fontprovider = (*env)->GetStaticObjectField(env, pdfrender, fontproviderfield);
-    if(fontprovider == NULL)
-        return fz_throw("cannot access fontProvider field");
+        cmapnamestring = (*env)->NewStringUTF(env, cmapname);
 
-    fontproviderclass = (*env)->GetObjectClass(env, fontprovider);
-    if(fontproviderclass == NULL)
-        return fz_throw("cannot get class for fontProvider field content");
+        cmapbuffer = (*env)->CallObjectMethod(
+                env, fontprovider, getcmapbuffer_method,
+                cmapnamestring);
 
-    getcmapbuffermethod = (*env)->GetMethodID(env, fontproviderclass,
-            "getCMapBuffer",
-            "(Ljava/lang/String;)Ljava/nio/ByteBuffer;");
-    if(getcmapbuffermethod == NULL)
-        return fz_throw("cannot find method getCMapBuffer() in fontProvider");
+        (*env)->DeleteLocalRef(env, cmapnamestring);
+        (*env)->DeleteLocalRef(env, fontprovider);
 
-    cmapnamestring = (*env)->NewStringUTF(env, cmapname);
+        memset(&found, 0, sizeof(found));
+        error = fetch_buffer(env, &found, cmapbuffer);
+        if(error)
+            fz_catch(error, "no buffer for cmap '%s'", cmapname);
 
-    cmapbuffer = (*env)->CallObjectMethod(
-            env, fontprovider, getcmapbuffermethod,
-            cmapnamestring);
-/* TODO: release some references?!?
-    (*env)->DeleteLocalRef(env, cmapnamestring);
-*/
-    DEBUG("got cmap buffer: %d", cmapbuffer);
+        pthread_mutex_lock(&fontcache_lock);
+        entry = fontcache_add(env, key, &found);
+        *data = entry->data;
+        *len = entry->len;
+        pthread_mutex_unlock(&fontcache_lock);
+    }
+    fz_free(key);
 
-    if(cmapbuffer == NULL)
+    if(*data == NULL)
         return fz_throw("could not get buffer for cmap");
 
-    *data = (unsigned char *) (*env)->GetDirectBufferAddress(env, cmapbuffer);
-    *len = (unsigned int) (*env)->GetDirectBufferCapacity(env, cmapbuffer);
+    DEBUG("got cmap buffer: %p, length=%d", *data, *len);
+    return fz_okay;
+}
 
-    if((*data == NULL) || (*len == -1))
-        return fz_throw("could not get buffer for cmap (JNI trouble!)");
+/* Frees the display list of a page together with its index */
+static void free_index(listindex_t *index);
 
-    DEBUG("got cmap buffer: %p, length=%d (%d)", *data, *len, strlen(*data));
-    return fz_okay;
+static void drop_list(renderpage_t *page)
+{
+    if (page->list)
+        fz_freedisplaylist(page->list);
+    page->list = (fz_displaylist *)0;
+    if (page->index)
+        free_index(page->index);
+    page->index = (listindex_t *)0;
+    page->listsize = 0;
+    page->colors = COLORS_UNKNOWN;
+}
+
+/* memory governor helpers */
+
+static int displaylist_size(fz_displaylist *list)
+{
+    fz_displaynode *node;
+    int size = sizeof(fz_displaylist);
+
+    for (node = list->first; node; node = node->next) {
+        size += sizeof(fz_displaynode);
+        switch (node->cmd) {
+        case FZ_CMDFILLPATH:
+        case FZ_CMDSTROKEPATH:
+        case FZ_CMDCLIPPATH:
+        case FZ_CMDCLIPSTROKEPATH:
+            size += sizeof(fz_path) + node->item.path->cap * sizeof(fz_pathel);
+            break;
+        case FZ_CMDFILLTEXT:
+        case FZ_CMDSTROKETEXT:
+        case FZ_CMDCLIPTEXT:
+        case FZ_CMDCLIPSTROKETEXT:
+        case FZ_CMDIGNORETEXT:
+            size += sizeof(fz_text) + node->item.text->cap * sizeof(fz_textel);
+            break;
+        default:
+            /* images and shadings belong to the resource store */
+            break;
+        }
+        if (node->stroke)
+            size += sizeof(fz_strokestate);
+    }
+
+    return size;
+}
+
+static int governor_lists(renderdocument_t *doc, renderpage_t *keep, int *evictable)
+{
+    int i, lists = 0;
+
+    *evictable = 0;
+    for (i=0;i<NUM_CACHE_STRUCTS;i++) {
+        if (doc->pages[i]->list) {
+            lists += doc->pages[i]->listsize;
+            if (doc->pages[i] != keep)
+                *evictable += doc->pages[i]->listsize;
+        }
+    }
+    return lists;
+}
+
+static int governor_glyphs(void)
+{
+    int stats[6];
+
+    fz_glyphcachestats(glyphcache, stats);
+    return stats[3];
+}
+
+static int governor_store(renderdocument_t *doc)
+{
+    if (!doc->xref->store)
+        return 0;
+    return pdf_storesize(doc->xref->store);
+}
+
+/* Give memory back if we're over budget. The page given in "keep" is
+ * the one that is about to be displayed, its display list is never
+ * dropped.
+ */
+static void governor_balance(renderdocument_t *doc, renderpage_t *keep)
+{
+    int lists, evictlists, store, glyphs;
+    int total, excess, evictable, share, i;
+
+    glyphs = governor_glyphs();
+    lists = governor_lists(doc, keep, &evictlists);
+    store = governor_store(doc);
+
+    total = lists + store + glyphs + governor.pixels;
+    if (total <= governor.budget)
+        return;
+
+    excess = total - governor.budget;
+    evictable = evictlists + store + glyphs;
+    if (evictable <= 0)
+        return;
+
+    DEBUG("governor: over budget by %d (lists %d, store %d, glyphs %d, pixels %d)",
+            excess, lists, store, glyphs, governor.pixels);
+
+    /* display lists of other pages are dropped as a whole */
+    share = (int)((long long)excess * evictlists / evictable);
+    for (i=0;(i<NUM_CACHE_STRUCTS) && (share > 0);i++) {
+        renderpage_t *page = doc->pages[i];
+        if ((page != keep) && page->list && !page->users) {
+            share -= page->listsize;
+            drop_list(page);
+            page->pageNo = 0;
+        }
+    }
+
+    /* resources that are still used by a display list stay in the store */
+    if (store > 0)
+        pdf_trimstore(doc->xref->store,
+                store - (int)((long long)excess * store / evictable));
+
+    if (glyphs > 0)
+        fz_shrinkglyphcache(glyphcache,
+                glyphs - (int)((long long)excess * glyphs / evictable));
+}
+
+/* Tracing.
+ *
+ * When the Java side turns tracing on, the JNI functions that do the
+ * heavy lifting record when they begin and end in a ring buffer, which
+ * DroidReaderTrace merges with the events of the Java side. Times are
+ * CLOCK_MONOTONIC nanoseconds like System.nanoTime(), thread IDs are
+ * those of the kernel like android.os.Process.myTid().
+ */
+
+#define TRACE_EVENTS 4096
+
+enum {
+    TRACE_OPEN,
+    TRACE_OPENPAGE,
+    TRACE_CREATEVIEW,
+    TRACE_GETTEXT
+};
+
+static const char *trace_names[] = {
+    "nativeOpen",
+    "nativeOpenPage",
+    "nativeCreateView",
+    "nativeGetText"
+};
+
+typedef struct traceevent_s traceevent_t;
+struct traceevent_s
+{
+    long long time;
+    int tid;
+    short name;
+    char phase;
+};
+
+static traceevent_t trace_events[TRACE_EVENTS];
+static unsigned int trace_next = 0;
+static volatile int trace_enabled = 0;
+
+static void trace_record(int name, char phase)
+{
+    struct timespec now;
+    traceevent_t *event;
+
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    event = &trace_events[__sync_fetch_and_add(&trace_next, 1) % TRACE_EVENTS];
+    event->time = now.tv_sec * 1000000000LL + now.tv_nsec;
+    event->tid = syscall(SYS_gettid);
+    event->name = name;
+    event->phase = phase;
 }
 
+#define TRACE_BEGIN(name) do { if (trace_enabled) trace_record(name, 'B'); } while (0)
+#define TRACE_END(name) do { if (trace_enabled) trace_record(name, 'E'); } while (0)
+
 /* JNI Interface: */
 
 jint JNI_OnLoad(JavaVM *jvm, void *reserved)
 {
+    JNIEnv *env;
+
     DEBUG("initializing PdfRender JNI library based on MuPDF");
 
     /* Fitz library setup */
     fz_accelerate();
     glyphcache = fz_newglyphcache();
+    pixelkernels_select(PIXELKERNELS_AVX2);
+    INFO("using %s pixel kernels", pixelkernels->name);
 
     /* Store the JVM */
     cached_jvm = jvm;
 
+    /* Resolve the IDs used for upcalls. We're called from
+     * System.loadLibrary() within PdfRender's static initializer,
+     * so our own classes are visible to FindClass() here.
+     */
+    if((*jvm)->GetEnv(jvm, (void **)&env, JNI_VERSION_1_2) != JNI_OK) {
+        ERROR("cannot find our JNI env!");
+        return JNI_ERR;
+    }
+    if(resolve_fontprovider_ids(env)) {
+        ERROR("cannot resolve FontProvider interface");
+        return JNI_ERR;
+    }
+
     return JNI_VERSION_1_2;
 }
 
 void JNI_OnUnload(JavaVM *jvm, void *reserved)
 {
+    JNIEnv *env = (JNIEnv *)0;
+
     DEBUG("Cleaning up PdfRender JNI library");
 
+    if((*jvm)->GetEnv(jvm, (void **)&env, JNI_VERSION_1_2) != JNI_OK)
+        env = (JNIEnv *)0;
+
+    fontcache_flush(env);
+    if(env && pdfrender_class)
+        (*env)->DeleteGlobalRef(env, pdfrender_class);
+    pdfrender_class = (jclass)0;
+
     /* Fitz library cleanup */
     fz_freeglyphcache(glyphcache);
     glyphcache = (fz_glyphcache *)0;
@@ -351,6 +835,112 @@ void JNI_OnUnload(JavaVM *jvm, void *reserved)
     cached_jvm = (JavaVM *)0;
 }
 
+JNIEXPORT jint JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeSetPixelKernels
+    (JNIEnv *env, jclass cls, jint maxlevel)
+{
+    int level = pixelkernels_select(maxlevel);
+    INFO("using %s pixel kernels", pixelkernels->name);
+    return level;
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeSetTracing
+    (JNIEnv *env, jclass cls, jboolean enabled)
+{
+    if (enabled && !trace_enabled)
+        trace_next = 0;
+    trace_enabled = enabled;
+}
+
+JNIEXPORT jobjectArray JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeGetTraceNames
+    (JNIEnv *env, jclass cls)
+{
+    int n = sizeof(trace_names) / sizeof(trace_names[0]), i;
+    jobjectArray names;
+
+    names = (*env)->NewObjectArray(env, n,
+            (*env)->FindClass(env, "java/lang/String"), NULL);
+    if (!names)
+        return NULL;
+    for (i = 0; i < n; i++) {
+        jstring name = (*env)->NewStringUTF(env, trace_names[i]);
+        (*env)->SetObjectArrayElement(env, names, i, name);
+        (*env)->DeleteLocalRef(env, name);
+    }
+    return names;
+}
+
+/* Copies the recorded events, oldest first. Each code is the index of
+ * the name shifted left by 8, or'ed with the phase character.
+ */
+JNIEXPORT jint JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeGetTrace
+    (JNIEnv *env, jclass cls, jlongArray timesarray, jintArray tidsarray,
+        jintArray codesarray)
+{
+    unsigned int next = trace_next, first, i;
+    int n, max = (*env)->GetArrayLength(env, timesarray);
+    jlong *times;
+    jint *tids, *codes;
+    traceevent_t *event;
+
+    n = (next < TRACE_EVENTS) ? next : TRACE_EVENTS;
+    if (n > max)
+        n = max;
+    first = next - n;
+
+    times = (*env)->GetPrimitiveArrayCritical(env, timesarray, 0);
+    tids = (*env)->GetPrimitiveArrayCritical(env, tidsarray, 0);
+    codes = (*env)->GetPrimitiveArrayCritical(env, codesarray, 0);
+    for (i = 0; i < (unsigned int) n; i++) {
+        event = &trace_events[(first + i) % TRACE_EVENTS];
+        times[i] = event->time;
+        tids[i] = event->tid;
+        codes[i] = (event->name << 8) | event->phase;
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, codesarray, codes, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, tidsarray, tids, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, timesarray, times, 0);
+    return n;
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeFlushFontCache
+    (JNIEnv *env, jclass class)
+{
+    DEBUG("PdfRender.nativeFlushFontCache()");
+    fontcache_flush(env);
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeSetGlyphCacheSize
+    (JNIEnv *env, jclass class, jint bytes)
+{
+    DEBUG("PdfRender.nativeSetGlyphCacheSize(%d)", bytes);
+    fz_setglyphcachelimit(glyphcache, bytes);
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeGetGlyphCacheStats
+    (JNIEnv *env, jclass class, jintArray statsarray)
+{
+    int stats[6];
+
+    fz_glyphcachestats(glyphcache, stats);
+    (*env)->SetIntArrayRegion(env, statsarray, 0, 6, (jint *)stats);
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfRender_nativeAdjustPixelMemory
+    (JNIEnv *env, jclass class, jint delta)
+{
+    governor.pixels += delta;
+    if (governor.pixels < 0)
+        governor.pixels = 0;
+}
+
 JNIEXPORT jint JNICALL
     Java_de_hilses_droidreader_PdfRender_checkFont
     (JNIEnv *env, jobject class, jstring fname)
@@ -395,6 +985,7 @@ JNIEXPORT jlong JNICALL
 #ifdef PDFRENDER_DEBUG
     clock_t end, start = clock();
 #endif
+    TRACE_BEGIN(TRACE_OPEN);
     filename = (char *)(*env)->GetStringUTFChars(env, fname, &iscopy);
     password = (char *)(*env)->GetStringUTFChars(env, pwd, &iscopy);
 
@@ -408,6 +999,7 @@ JNIEXPORT jlong JNICALL
         doc->pages[i] = fz_malloc(sizeof(renderpage_t));
         memset (doc->pages[i],0,sizeof(renderpage_t));
     }
+    doc->downsampled = fz_newhash(64, sizeof(fz_pixmap *));
 
     /*
      * Open PDF and load xref table. Note that if pdf_needspassword() is going
@@ -446,6 +1038,10 @@ JNIEXPORT jlong JNICALL
         goto cleanup;
     }
 
+    /* The budget for the memory governor */
+    if (fitzmemory > 0)
+        governor.budget = fitzmemory;
+
     /*
      * Load document metadata (at some point this might be implemented
      * in the muPDF lib itself)
@@ -475,7 +1071,7 @@ JNIEXPORT jlong JNICALL
         }
     }
 
-    /* TODO: read outline and pass to Java env or create accessor functions */
+    /* the outline is read on demand, see nativeGetOutline() */
 
     fid = (*env)->GetFieldID(env, cls, "pagecount","I");
     if(fid) {
@@ -493,6 +1089,7 @@ cleanup:
     (*env)->ReleaseStringUTFChars(env, pwd, password);
 
     DEBUG("PdfDocument.nativeOpen(): return handle = %p", doc);
+    TRACE_END(TRACE_OPEN);
     return (jlong)(unsigned long) doc;
 }
 
@@ -512,237 +1109,1378 @@ JNIEXPORT void JNICALL
 
         for (i=0;i<NUM_CACHE_STRUCTS;i++) {
             if (doc->pages[i]) {
-                if (doc->pages[i]->list)
-                    fz_freedisplaylist(doc->pages[i]->list);
+                drop_list(doc->pages[i]);
                 fz_free(doc->pages[i]);
             }
         }
 
+        if (doc->downsampled)
+            fz_freehash(doc->downsampled);
+        if (doc->pagenums)
+            fz_freehash(doc->pagenums);
+        if (doc->listcache)
+            fz_free(doc->listcache);
+        if (doc->scratch) {
+            fz_free(doc->scratch);
+            governor.pixels -= doc->scratchsize;
+            if (governor.pixels < 0)
+                governor.pixels = 0;
+        }
+
         fz_free(doc);
+
+        /* the fonts of this document are gone now, so their glyphs
+         * cannot be hit again */
+        fz_evictorphanglyphs(glyphcache);
     }
 }
 
-JNIEXPORT jint JNICALL
-    Java_de_hilses_droidreader_PdfDocument_nativeIsMemoryHog
-        (JNIEnv *env, jobject this, jlong handle)
+/* Outline.
+ *
+ * The outline is not loaded as a whole. Java asks for the children of
+ * one item at a time, items are addressed by the number and generation
+ * of their object, 0/0 stands for the outline root. For each child we
+ * hand out its title, its object, the page its destination points to
+ * (0 if there is none in this document) and whether it has children.
+ * When the item can't be read, we return NULL.
+ */
+
+/* Maps the object number of each page object to its page number, built
+ * on first use so destinations resolve without walking the page list.
+ */
+static int page_number(renderdocument_t *doc, fz_obj *pageobj)
 {
-    renderdocument_t *doc = (renderdocument_t*)(unsigned long) handle;
-    DEBUG("PdfDocument(%p).nativeIsMemoryHog(%p) will return %d", this, doc, doc->isMemoryHog);
+    int i, num, count;
+
+    if (!doc->pagenums) {
+        count = pdf_getpagecount(doc->xref);
+        doc->pagenums = fz_newhash(count + 1, sizeof(int));
+        for (i = 1; i <= count; i++) {
+            num = fz_tonum(pdf_getpageobject(doc->xref, i));
+            if (!fz_hashfind(doc->pagenums, &num))
+                fz_hashinsert(doc->pagenums, &num, (void*)(long) i);
+        }
+    }
 
-    return doc->isMemoryHog;
+    num = fz_tonum(pageobj);
+    return (int)(long) fz_hashfind(doc->pagenums, &num);
 }
 
-static void fixRect(fz_rect *rect)
+/* Finds the page an outline item or link points to: /Dest, or the
+ * destination of a /GoTo action, possibly given by name.
+ */
+static int resolve_dest(renderdocument_t *doc, fz_obj *item)
 {
-    float temp;
-
-    if (rect->x1 < rect->x0) {
-        temp = rect->x0;
-        rect->x0 = rect->x1;
-        rect->x1 = temp;
-    }
-    if (rect->y1 < rect->y0) {
-        temp = rect->y0;
-        rect->y0 = rect->y1;
-        rect->y1 = temp;
+    fz_obj *dest, *action, *type;
+
+    dest = fz_dictgets(item, "Dest");
+    if (!dest) {
+        action = fz_dictgets(item, "A");
+        if (!action)
+            return 0;
+        type = fz_dictgets(action, "S");
+        if (!fz_isname(type) || strcmp(fz_toname(type), "GoTo"))
+            return 0;
+        dest = fz_dictgets(action, "D");
     }
+    if (!dest)
+        return 0;
+
+    if (fz_isname(dest) || fz_isstring(dest))
+        dest = pdf_lookupdest(doc->xref, dest);
+    if (fz_isdict(dest))
+        dest = fz_dictgets(dest, "D");
+    if (!fz_isarray(dest) || !fz_arraylen(dest))
+        return 0;
+
+    dest = fz_arrayget(dest, 0);
+    if (fz_isindirect(dest))
+        return page_number(doc, dest);
+    /* a page index is only meant for other documents, but it does no harm */
+    if (fz_isint(dest) && (fz_toint(dest) >= 0) &&
+            (fz_toint(dest) < pdf_getpagecount(doc->xref)))
+        return fz_toint(dest) + 1;
+    return 0;
 }
 
-JNIEXPORT jlong JNICALL
-    Java_de_hilses_droidreader_PdfPage_nativeOpenPage
-    (JNIEnv *env, jobject this, jlong dochandle, jfloatArray mediabox, jfloatArray contentbox, jint pageno, jint flags)
+static jstring outline_title(JNIEnv *env, fz_obj *item)
 {
-    renderdocument_t *doc = (renderdocument_t*)(unsigned long) dochandle;
-    renderpage_t *page = (renderpage_t *)0;
-    fz_device *dev = (fz_device *)0;
-    pdf_page *pdfpage = (pdf_page *)0;
-    jfloat *bbox;
-    jclass cls;
-    jfieldID fid;
-    int i;
-#ifdef PDFRENDER_DEBUG
-    int itemcount = 0;
-    clock_t end, start = clock();
-#endif
-    DEBUG("PdfPage(%p).nativeOpenPage(%p)", this, doc);
-
-    doc->currentlyDisplayedPage = pageno;
+    fz_obj *title = fz_dictgets(item, "Title");
+    unsigned short *ucs;
+    jstring result;
+    int len;
+
+    if (!title)
+        return (*env)->NewStringUTF(env, "");
+    ucs = pdf_toucs2(title);
+    for (len = 0; ucs[len]; len++)
+        ;
+    result = (*env)->NewString(env, ucs, len);
+    fz_free(ucs);
+    return result;
+}
 
-    /* First, see if we've already got the page loaded in the cache */
-    for (i=0;i<NUM_CACHE_STRUCTS;i++) {
-        if (doc->pages[i]->pageNo == pageno) {
-            page = doc->pages[i];
-            break;
+JNIEXPORT jobjectArray JNICALL
+    Java_de_hilses_droidreader_PdfDocument_nativeGetOutline
+    (JNIEnv *env, jobject this, jlong handle, jint parentnum, jint parentgen,
+        jobjectArray itemsholder)
+{
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) handle;
+    fz_error error;
+    fz_obj *parent = NULL, *node, **nodes = NULL;
+    jobjectArray titles = NULL;
+    jintArray itemsarray;
+    jint *items;
+    jclass stringclass;
+    int n = 0, cap = 0, i;
+
+    if (parentnum) {
+        error = pdf_loadobject(&parent, doc->xref, parentnum, parentgen);
+        if (error) {
+            fz_catch(error, "cannot load outline item");
+            ERROR("cannot load outline item %d %d", parentnum, parentgen);
+            return NULL;
         }
+    } else {
+        node = fz_dictgets(doc->xref->trailer, "Root");
+        node = fz_resolveindirect(node);
+        if (node)
+            parent = fz_dictgets(node, "Outlines");
+        if (parent)
+            parent = fz_keepobj(fz_resolveindirect(parent));
     }
 
-    if (!page) {
-        fz_error error;
-        fz_obj *obj = NULL;
-        fz_displaynode *pDN;
-        fz_rect content;
-        int chosen = 0;
-        int i;
-
-        /* The page we want isn't currently loaded. Choose a page struct
-         * to load it into. How this works:
-         * 1) If the pageNo for a struct is 0, then this struct hasn't been
-         *    used - so use it.
-         * 2) Otherwise, find the page whose page number is furthest from the
-         *    page number to be loaded
-         * 3) If there are multiple pages whose numbers are the same distance
-         *    from the page number to be loaded, use the page with the
-         *    lowest number (this will be earlier in the document than the
-         *    page to be loaded).
-         * Note that this is written to allow more than 2 entries in the
-         * struct cache.
-         */
+    /* a broken outline might loop, it can't have more items than objects */
+    node = parent ? fz_dictgets(parent, "First") : NULL;
+    while (node && fz_isindirect(node) && (n < doc->xref->len)) {
+        if (n == cap) {
+            cap = cap ? cap * 2 : 32;
+            nodes = fz_realloc(nodes, cap, sizeof(fz_obj *));
+        }
+        nodes[n++] = node;
+        node = fz_dictgets(fz_resolveindirect(node), "Next");
+    }
+    DEBUG("outline item %d %d has %d children", parentnum, parentgen, n);
 
-        /* Assume struct 0 to start with. If it's blank, use it. */
-        if (doc->pages[0]->pageNo)
-        {
-            /* Iterate through the other structs */
-            for (i=1;i<2;i++)
-            {
-                /* If there's a blank struct, use it */
-                if (doc->pages[i]->pageNo)
-                {
-                    /* Neither this one nor the currently chosen one is blank.
-                     * Find the difference between the page numbers in the
-                     * structs, and the page to be loaded.
-                     */
-                    int dist0 = pageno - doc->pages[chosen]->pageNo;
-                    int dist1 = pageno - doc->pages[i]->pageNo;
-
-                    if (dist0<0) dist0 = -dist0;
-                    if (dist1<0) dist1 = -dist1;
-
-                    /* If this struct has a bigger difference than the currently
-                     * chosen one, choose this one instead.
-                     */
-                    if (dist1 > dist0)
-                        chosen = i;
-                    else {
-                        /* If the differences are the same, choose the one with
-                         * the lower page number.
-                         */
-                        if (dist0 == dist1) {
-                            if (doc->pages[i]->pageNo < doc->pages[chosen]->pageNo)
-                                chosen = i;
-                        }
-                    }
-                }
-                else
-                    chosen = i;
+    stringclass = (*env)->FindClass(env, "java/lang/String");
+    titles = (*env)->NewObjectArray(env, n, stringclass, NULL);
+    itemsarray = (*env)->NewIntArray(env, n * 4);
+    if (!titles || !itemsarray) {
+        titles = NULL;
+        goto cleanup;
+    }
+
+    for (i = 0; i < n; i++) {
+        jstring title = outline_title(env, fz_resolveindirect(nodes[i]));
+        (*env)->SetObjectArrayElement(env, titles, i, title);
+        (*env)->DeleteLocalRef(env, title);
+    }
+
+    items = (*env)->GetPrimitiveArrayCritical(env, itemsarray, 0);
+    for (i = 0; i < n; i++) {
+        node = fz_resolveindirect(nodes[i]);
+        items[i * 4] = fz_tonum(nodes[i]);
+        items[i * 4 + 1] = fz_togen(nodes[i]);
+        items[i * 4 + 2] = resolve_dest(doc, node);
+        items[i * 4 + 3] = fz_dictgets(node, "First") ? 1 : 0;
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, itemsarray, items, 0);
+    (*env)->SetObjectArrayElement(env, itemsholder, 0, itemsarray);
+
+cleanup:
+    if (nodes)
+        fz_free(nodes);
+    if (parent)
+        fz_dropobj(parent);
+    return titles;
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfDocument_nativeGetMemoryStats
+        (JNIEnv *env, jobject this, jlong handle, jintArray statsarray)
+{
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) handle;
+    int stats[7];
+    int evictable;
+
+    stats[0] = governor.budget;
+    stats[2] = governor_glyphs();
+    stats[1] = governor_lists(doc, (renderpage_t *)0, &evictable);
+    stats[3] = governor_store(doc);
+    stats[4] = governor.pixels;
+    stats[5] = fz_memory_used();
+    stats[6] = fz_memory_peak();
+
+    (*env)->SetIntArrayRegion(env, statsarray, 0, 7, (jint *)stats);
+}
+
+/* Choose a page struct to load a page into. How this works:
+ * 1) Structs that have a page open on the Java side are never chosen.
+ * 2) If the pageNo for a struct is 0, then this struct hasn't been
+ *    used - so use it.
+ * 3) Otherwise, find the page whose page number is furthest from the
+ *    page number to be loaded
+ * 4) If there are multiple pages whose numbers are the same distance
+ *    from the page number to be loaded, use the page with the
+ *    lowest number (this will be earlier in the document than the
+ *    page to be loaded).
+ * Returns -1 if all structs are in use.
+ */
+static int choose_cache_struct(renderdocument_t *doc, int pageno)
+{
+    int i, dist, chosen = -1, chosendist = -1;
+
+    for (i=0;i<NUM_CACHE_STRUCTS;i++) {
+        renderpage_t *page = doc->pages[i];
+
+        if (page->users)
+            continue;
+        if (!page->pageNo)
+            return i;
+
+        dist = pageno - page->pageNo;
+        if (dist < 0) dist = -dist;
+
+        if ((dist > chosendist) ||
+            ((dist == chosendist) && (page->pageNo < doc->pages[chosen]->pageNo))) {
+            chosen = i;
+            chosendist = dist;
+        }
+    }
+
+    return chosen;
+}
+
+static void fixRect(fz_rect *rect)
+{
+    float temp;
+
+    if (rect->x1 < rect->x0) {
+        temp = rect->x0;
+        rect->x0 = rect->x1;
+        rect->x1 = temp;
+    }
+    if (rect->y1 < rect->y0) {
+        temp = rect->y0;
+        rect->y0 = rect->y1;
+        rect->y1 = temp;
+    }
+}
+
+/* Links.
+ *
+ * The link annotations of a page are read from its /Annots array. Each
+ * link is handed out with its rectangle in page coordinates and either
+ * the page it points to or its URI (NULL for links to pages, and for
+ * link types we don't follow, which get page 0).
+ */
+JNIEXPORT jobjectArray JNICALL
+    Java_de_hilses_droidreader_PdfDocument_nativeGetLinks
+    (JNIEnv *env, jobject this, jlong handle, jint pageno,
+        jobjectArray rectsholder, jobjectArray pagesholder)
+{
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) handle;
+    fz_obj *pageobj, *annots, *annot, *subtype, *rectobj, *action, *uri;
+    fz_obj **links = NULL;
+    fz_rect rect;
+    jobjectArray uris;
+    jfloatArray rectsarray;
+    jintArray pagesarray;
+    jfloat *rects;
+    jint *pages;
+    jstring juri;
+    char *buf;
+    int n = 0, cap = 0, i, len;
+
+    pageobj = fz_resolveindirect(pdf_getpageobject(doc->xref, pageno));
+    annots = fz_resolveindirect(fz_dictgets(pageobj, "Annots"));
+
+    len = fz_isarray(annots) ? fz_arraylen(annots) : 0;
+    for (i = 0; i < len; i++) {
+        annot = fz_resolveindirect(fz_arrayget(annots, i));
+        subtype = fz_dictgets(annot, "Subtype");
+        if (!fz_isname(subtype) || strcmp(fz_toname(subtype), "Link"))
+            continue;
+        rectobj = fz_resolveindirect(fz_dictgets(annot, "Rect"));
+        if (!fz_isarray(rectobj) || (fz_arraylen(rectobj) < 4))
+            continue;
+        if (n == cap) {
+            cap = cap ? cap * 2 : 16;
+            links = fz_realloc(links, cap, sizeof(fz_obj *));
+        }
+        links[n++] = annot;
+    }
+    DEBUG("page %d has %d links", pageno, n);
+
+    uris = (*env)->NewObjectArray(env, n,
+            (*env)->FindClass(env, "java/lang/String"), NULL);
+    rectsarray = (*env)->NewFloatArray(env, n * 4);
+    pagesarray = (*env)->NewIntArray(env, n);
+    if (!uris || !rectsarray || !pagesarray) {
+        uris = NULL;
+        goto cleanup;
+    }
+
+    for (i = 0; i < n; i++) {
+        action = fz_resolveindirect(fz_dictgets(links[i], "A"));
+        uri = fz_resolveindirect(fz_dictgets(action, "URI"));
+        if (fz_isstring(uri)) {
+            /* URIs are 7-bit ASCII */
+            len = fz_tostrlen(uri);
+            buf = fz_malloc(len + 1);
+            memcpy(buf, fz_tostrbuf(uri), len);
+            buf[len] = 0;
+            juri = (*env)->NewStringUTF(env, buf);
+            fz_free(buf);
+            (*env)->SetObjectArrayElement(env, uris, i, juri);
+            (*env)->DeleteLocalRef(env, juri);
+        }
+    }
+
+    rects = (*env)->GetPrimitiveArrayCritical(env, rectsarray, 0);
+    pages = (*env)->GetPrimitiveArrayCritical(env, pagesarray, 0);
+    for (i = 0; i < n; i++) {
+        rectobj = fz_resolveindirect(fz_dictgets(links[i], "Rect"));
+        rect.x0 = fz_toreal(fz_arrayget(rectobj, 0));
+        rect.y0 = fz_toreal(fz_arrayget(rectobj, 1));
+        rect.x1 = fz_toreal(fz_arrayget(rectobj, 2));
+        rect.y1 = fz_toreal(fz_arrayget(rectobj, 3));
+        fixRect(&rect);
+        rects[i * 4] = rect.x0;
+        rects[i * 4 + 1] = rect.y0;
+        rects[i * 4 + 2] = rect.x1;
+        rects[i * 4 + 3] = rect.y1;
+        pages[i] = resolve_dest(doc, links[i]);
+    }
+    (*env)->ReleasePrimitiveArrayCritical(env, pagesarray, pages, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, rectsarray, rects, 0);
+
+    (*env)->SetObjectArrayElement(env, rectsholder, 0, rectsarray);
+    (*env)->SetObjectArrayElement(env, pagesholder, 0, pagesarray);
+
+cleanup:
+    if (links)
+        fz_free(links);
+    return uris;
+}
+
+/* Image downsampling.
+ *
+ * Scanned pages are usually stored at a much higher resolution than
+ * they are displayed at. After a page has been loaded, images are
+ * reduced to what the current zoom needs. The zoom is given as a bucket
+ * b from the Java side, meaning up to 2^(b-3) pixels per point. When a
+ * page is opened for a higher bucket later on, its reduced images are
+ * evicted from the store and the page is loaded again.
+ */
+
+#define MAX_DOWNSAMPLE 16
+
+typedef struct imageuse_s imageuse_t;
+struct imageuse_s
+{
+    fz_pixmap *image;
+    int factor;
+    int uses;
+};
+
+static int is_image_node(fz_displaynode *node)
+{
+    return (node->cmd == FZ_CMDFILLIMAGE) ||
+           (node->cmd == FZ_CMDFILLIMAGEMASK) ||
+           (node->cmd == FZ_CMDCLIPIMAGEMASK);
+}
+
+/* Collects the images of a display list that were reduced for a zoom
+ * bucket lower than the given one, and forgets about them.
+ */
+static int stale_images(renderdocument_t *doc, fz_displaylist *list,
+        int zoombucket, fz_pixmap ***images)
+{
+    fz_displaynode *node;
+    int n = 0, cap = 0, bucket;
+
+    for (node = list->first; node; node = node->next) {
+        if (!is_image_node(node))
+            continue;
+        bucket = (int)(long) fz_hashfind(doc->downsampled, &node->item.image);
+        if (bucket && (bucket - 1 < zoombucket)) {
+            fz_hashremove(doc->downsampled, &node->item.image);
+            if (n == cap) {
+                cap = cap ? cap * 2 : 8;
+                *images = fz_realloc(*images, cap, sizeof(fz_pixmap *));
             }
+            (*images)[n++] = node->item.image;
         }
+    }
 
-        page = doc->pages[chosen];
+    return n;
+}
 
-        /* Release the old content of the page, if any */
-        if (page->list) {
-            fz_freedisplaylist(page->list);
+/* Makes sure the next load of these images decodes them again. The
+ * display lists referring to them have to be gone already.
+ */
+static void evict_images(renderdocument_t *doc, fz_pixmap **images, int n)
+{
+    int i;
+
+    for (i=0;i<n;i++)
+        pdf_removevalue(doc->xref->store, images[i]);
+    fz_free(images);
+}
+
+static void downsample_pixmap(fz_pixmap *image, int factor)
+{
+    fz_pixmap *scaled;
+
+    scaled = fz_scalepixmap(image, factor, factor);
+    if (!scaled)
+        return;
+
+    /* swap the samples, the display list nodes keep pointing here */
+    fz_free(image->samples);
+    image->samples = scaled->samples;
+    image->w = scaled->w;
+    image->h = scaled->h;
+    scaled->samples = (fz_sample *)0;
+    fz_droppixmap(scaled);
+}
+
+static void downsample_images(renderdocument_t *doc, renderpage_t *page, int zoombucket)
+{
+    fz_displaynode *node;
+    imageuse_t *images = (imageuse_t *)0;
+    int n = 0, cap = 0, i;
+    float scale = (float)(1 << zoombucket) / 8;
+
+    page->zoombucket = zoombucket;
+    page->downsampled = 0;
+
+    /* find the reduction factor each image allows for all its uses */
+    for (node = page->list->first; node; node = node->next) {
+        fz_pixmap *image;
+        float needw, needh, fit;
+        int factor;
+
+        if (!is_image_node(node))
+            continue;
+
+        image = node->item.image;
+        needw = sqrtf(node->ctm.a * node->ctm.a + node->ctm.b * node->ctm.b) * scale;
+        needh = sqrtf(node->ctm.c * node->ctm.c + node->ctm.d * node->ctm.d) * scale;
+        if (needw < 1) needw = 1;
+        if (needh < 1) needh = 1;
+        fit = image->w / needw;
+        if (image->h / needh < fit)
+            fit = image->h / needh;
+        for (factor = 1; (factor < MAX_DOWNSAMPLE) && (factor * 2 <= fit); factor *= 2)
+            ;
+
+        for (i=0;i<n;i++)
+            if (images[i].image == image)
+                break;
+        if (i == n) {
+            if (n == cap) {
+                cap = cap ? cap * 2 : 8;
+                images = fz_realloc(images, cap, sizeof(imageuse_t));
+            }
+            images[i].image = image;
+            images[i].factor = factor;
+            images[i].uses = 0;
+            n++;
         }
+        if (factor < images[i].factor)
+            images[i].factor = factor;
+        images[i].uses++;
+    }
 
-        page->pageNo = pageno;
+    for (i=0;i<n;i++) {
+        fz_pixmap *image = images[i].image;
+        int before;
+
+        if (images[i].factor < 2)
+            continue;
+        /* leave images alone that other cached pages use, too; the
+         * store holds one more reference */
+        if (image->refs > images[i].uses + 1)
+            continue;
+
+        before = image->w * image->h * image->n;
+        downsample_pixmap(image, images[i].factor);
+        if (image->mask && image->mask->refs == 1)
+            downsample_pixmap(image->mask, images[i].factor);
+        pdf_resizevalue(doc->xref->store, image, image->w * image->h * image->n - before);
+
+        if (fz_hashfind(doc->downsampled, &image))
+            fz_hashremove(doc->downsampled, &image);
+        fz_hashinsert(doc->downsampled, &image, (void *)(long)(zoombucket + 1));
+        page->downsampled = 1;
+
+        DEBUG("image %p reduced by %d to %dx%d", image, images[i].factor, image->w, image->h);
+    }
+
+    fz_free(images);
+}
+
+/* Display list cache.
+ *
+ * Running the content stream is the expensive part of loading a heavy
+ * page. So the display lists of pages opened for display are written to
+ * files in a directory the Java side picks for the document (see
+ * PdfDocument.setListCache()). The next time such a page is not in
+ * memory, its list is read from there instead of running the page.
+ *
+ * Fonts, images, shadings and colorspaces are not written, only the
+ * numbers of the PDF objects they were loaded from, which we find in
+ * the resource store. They are loaded through the store again when the
+ * list is read. If a resource can't be identified that way (e.g. an
+ * inline image), the page is not written and is run every time. A file
+ * that doesn't match or fails to load is removed, and the page is run.
+ * Once the files of the document take the limit the Java side gave,
+ * no more lists are written.
+ *
+ * A file is only read by the build that wrote it, so structs like
+ * fz_strokestate are written as they are in memory. The header records
+ * their sizes and a stamp of the build, made from the time this file
+ * was compiled. Files from other builds are removed like broken ones.
+ */
+
+#define LISTCACHE_MAGIC 0x4c445244 /* "DRDL" */
+#define LISTCACHE_VERSION 2
+
+enum {
+    RES_FONT,
+    RES_IMAGE,
+    RES_SHADE,
+    RES_COLORSPACE
+};
+
+/* colorspace references that aren't resources */
+#define CS_NONE -1
+#define CS_GRAY -2
+#define CS_RGB -3
+#define CS_CMYK -4
+
+typedef struct listheader_s listheader_t;
+struct listheader_s
+{
+    int magic;
+    int version;
+    unsigned int build;
+    int sizes[5];
+    int pageno;
+    int pagenum;
+    int pagegen;
+    fz_rect pagebox;
+    int rotate;
+    int nres;
+    int nnodes;
+};
+
+typedef struct listres_s listres_t;
+struct listres_s
+{
+    int kind;
+    void *val;
+    int num;
+    int gen;
+};
+
+typedef struct listbuf_s listbuf_t;
+struct listbuf_s
+{
+    unsigned char *data;
+    int len;
+    int cap;
+    /* resources, while writing and reading */
+    listres_t *res;
+    int nres;
+    int capres;
+};
+
+static void listcache_sizes(int *sizes)
+{
+    sizes[0] = sizeof(fz_strokestate);
+    sizes[1] = sizeof(fz_pathel);
+    sizes[2] = sizeof(fz_textel);
+    sizes[3] = sizeof(fz_matrix);
+    sizes[4] = FZ_MAXCOLORS;
+}
+
+/* FNV-1a hash of the compile time */
+static unsigned int listcache_build(void)
+{
+    const char *stamp = __DATE__ " " __TIME__;
+    unsigned int hash = 2166136261u;
+
+    while (*stamp)
+        hash = (hash ^ (unsigned char) *stamp++) * 16777619u;
+    return hash;
+}
+
+static void listcache_path(renderdocument_t *doc, int pageno, char *path, int size)
+{
+    snprintf(path, size, "%s/%d", doc->listcache, pageno);
+}
+
+/* the size of a file, 0 if there is none */
+static int listcache_filesize(const char *path)
+{
+    struct stat st;
+
+    if (stat(path, &st) || (st.st_size > INT_MAX))
+        return 0;
+    return (int) st.st_size;
+}
+
+/* the bytes the files in a list cache directory take */
+static int listcache_dirsize(const char *dir)
+{
+    char path[PATH_MAX];
+    struct dirent *entry;
+    DIR *d;
+    int size = 0;
+
+    d = opendir(dir);
+    if (!d)
+        return 0;
+    while ((entry = readdir(d)) != NULL) {
+        if (entry->d_name[0] == '.')
+            continue;
+        snprintf(path, sizeof(path), "%s/%s", dir, entry->d_name);
+        size += listcache_filesize(path);
+    }
+    closedir(d);
+    return size;
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfDocument_nativeSetListCache
+    (JNIEnv *env, jobject this, jlong handle, jstring dir, jint limit)
+{
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) handle;
+    const char *path;
+
+    if (doc->listcache)
+        fz_free(doc->listcache);
+    doc->listcache = (char *)0;
+    if (!dir)
+        return;
+
+    path = (*env)->GetStringUTFChars(env, dir, NULL);
+    if (!path)
+        return;
+    doc->listcache = fz_strdup((char *) path);
+    (*env)->ReleaseStringUTFChars(env, dir, path);
+
+    doc->listcachelimit = limit;
+    doc->listcachesize = listcache_dirsize(doc->listcache);
+    DEBUG("list cache %s holds %d of %d bytes", doc->listcache, doc->listcachesize, limit);
+}
+
+static void listbuf_put(listbuf_t *buf, const void *data, int n)
+{
+    if (buf->len + n > buf->cap) {
+        while (buf->len + n > buf->cap)
+            buf->cap = buf->cap ? buf->cap * 2 : 64 * 1024;
+        buf->data = fz_realloc(buf->data, buf->cap, 1);
+    }
+    memcpy(buf->data + buf->len, data, n);
+    buf->len += n;
+}
+
+static void listbuf_putint(listbuf_t *buf, int value)
+{
+    listbuf_put(buf, &value, sizeof(int));
+}
+
+/* reads from a mapped file, returns 0 past its end */
+static int listbuf_get(listbuf_t *buf, void *data, int n)
+{
+    if ((n < 0) || (buf->len + n > buf->cap))
+        return 0;
+    memcpy(data, buf->data + buf->len, n);
+    buf->len += n;
+    return 1;
+}
 
-        if (flags & PDF_PAGE_MEMORY_HOG) {
-            if (doc->xref->store) {
-                pdf_freestore(doc->xref->store);
-                doc->xref->store = (pdf_store *)0;
+static int match_font(void *fontdesc, void *font)
+{
+    return ((pdf_fontdesc *) fontdesc)->font == font;
+}
+
+/* Finds the index of a resource, adding it to the table if needed.
+ * Returns -1 if the resource can't be found in the store.
+ */
+static int listcache_resource(renderdocument_t *doc, listbuf_t *buf, int kind, void *val)
+{
+    int i, found = 0, num = 0, gen = 0;
+
+    for (i=0;i<buf->nres;i++)
+        if ((buf->res[i].kind == kind) && (buf->res[i].val == val))
+            return i;
+
+    switch (kind) {
+    case RES_FONT:
+        found = pdf_findref(doc->xref->store, pdf_dropfont, val, match_font, &num, &gen);
+        break;
+    case RES_IMAGE:
+        found = pdf_findref(doc->xref->store, fz_droppixmap, val, NULL, &num, &gen);
+        break;
+    case RES_SHADE:
+        found = pdf_findref(doc->xref->store, fz_dropshade, val, NULL, &num, &gen);
+        break;
+    case RES_COLORSPACE:
+        found = pdf_findref(doc->xref->store, fz_dropcolorspace, val, NULL, &num, &gen);
+        break;
+    }
+    if (!found)
+        return -1;
+
+    if (buf->nres == buf->capres) {
+        buf->capres = buf->capres ? buf->capres * 2 : 16;
+        buf->res = fz_realloc(buf->res, buf->capres, sizeof(listres_t));
+    }
+    buf->res[buf->nres].kind = kind;
+    buf->res[buf->nres].val = val;
+    buf->res[buf->nres].num = num;
+    buf->res[buf->nres].gen = gen;
+    return buf->nres++;
+}
+
+static int listcache_colorspace(renderdocument_t *doc, listbuf_t *buf, fz_colorspace *cs)
+{
+    if (!cs)
+        return CS_NONE;
+    if (cs == fz_devicegray)
+        return CS_GRAY;
+    if (cs == fz_devicergb)
+        return CS_RGB;
+    if (cs == fz_devicecmyk)
+        return CS_CMYK;
+    return listcache_resource(doc, buf, RES_COLORSPACE, cs);
+}
+
+/* Writes the nodes of a list, returns 0 if it can't be written */
+static int listcache_putnodes(renderdocument_t *doc, listbuf_t *buf, fz_displaylist *list, int *count)
+{
+    fz_displaynode *node;
+    int cs, res, ncolor;
+
+    for (node = list->first; node; node = node->next) {
+        cs = listcache_colorspace(doc, buf, node->colorspace);
+        if ((cs == CS_NONE) && node->colorspace)
+            return 0;
+        ncolor = node->colorspace ? node->colorspace->n : 0;
+        if (ncolor > FZ_MAXCOLORS)
+            ncolor = FZ_MAXCOLORS;
+
+        listbuf_putint(buf, node->cmd);
+        listbuf_put(buf, &node->rect, sizeof(fz_rect));
+        listbuf_put(buf, &node->ctm, sizeof(fz_matrix));
+        listbuf_putint(buf, node->flag);
+        listbuf_put(buf, &node->alpha, sizeof(float));
+        listbuf_putint(buf, cs);
+        listbuf_putint(buf, ncolor);
+        listbuf_put(buf, node->color, ncolor * sizeof(float));
+        listbuf_putint(buf, node->stroke ? 1 : 0);
+        if (node->stroke)
+            listbuf_put(buf, node->stroke, sizeof(fz_strokestate));
+
+        switch (node->cmd) {
+        case FZ_CMDFILLPATH:
+        case FZ_CMDSTROKEPATH:
+        case FZ_CMDCLIPPATH:
+        case FZ_CMDCLIPSTROKEPATH:
+            listbuf_putint(buf, node->item.path->len);
+            listbuf_put(buf, node->item.path->els, node->item.path->len * sizeof(fz_pathel));
+            break;
+        case FZ_CMDFILLTEXT:
+        case FZ_CMDSTROKETEXT:
+        case FZ_CMDCLIPTEXT:
+        case FZ_CMDCLIPSTROKETEXT:
+        case FZ_CMDIGNORETEXT:
+            res = listcache_resource(doc, buf, RES_FONT, node->item.text->font);
+            if (res < 0)
+                return 0;
+            listbuf_putint(buf, res);
+            listbuf_put(buf, &node->item.text->trm, sizeof(fz_matrix));
+            listbuf_putint(buf, node->item.text->wmode);
+            listbuf_putint(buf, node->item.text->len);
+            listbuf_put(buf, node->item.text->els, node->item.text->len * sizeof(fz_textel));
+            break;
+        case FZ_CMDFILLSHADE:
+            res = listcache_resource(doc, buf, RES_SHADE, node->item.shade);
+            if (res < 0)
+                return 0;
+            listbuf_putint(buf, res);
+            break;
+        case FZ_CMDFILLIMAGE:
+        case FZ_CMDFILLIMAGEMASK:
+        case FZ_CMDCLIPIMAGEMASK:
+            res = listcache_resource(doc, buf, RES_IMAGE, node->item.image);
+            if (res < 0)
+                return 0;
+            listbuf_putint(buf, res);
+            break;
+        case FZ_CMDPOPCLIP:
+            break;
+        default:
+            /* nothing we know how to write */
+            return 0;
+        }
+        (*count)++;
+    }
+    return 1;
+}
+
+/* Writes the display list of a page that was just run */
+static void listcache_save(renderdocument_t *doc, renderpage_t *page, fz_obj *pageobj)
+{
+    listbuf_t nodes, out;
+    listheader_t header;
+    char path[PATH_MAX], temp[PATH_MAX];
+    FILE *file;
+    int i, ok, old;
+
+    if (!doc->listcache || !doc->xref->store)
+        return;
+
+    memset(&nodes, 0, sizeof(nodes));
+    memset(&out, 0, sizeof(out));
+    memset(&header, 0, sizeof(header));
+    if (!listcache_putnodes(doc, &nodes, page->list, &header.nnodes)) {
+        DEBUG("display list of page %d has resources we can't refer to, not writing it", page->pageNo);
+        goto cleanup;
+    }
+
+    header.magic = LISTCACHE_MAGIC;
+    header.version = LISTCACHE_VERSION;
+    header.build = listcache_build();
+    listcache_sizes(header.sizes);
+    header.pageno = page->pageNo;
+    header.pagenum = fz_tonum(pageobj);
+    header.pagegen = fz_togen(pageobj);
+    header.pagebox = page->pagebox;
+    header.rotate = page->rotate;
+    header.nres = nodes.nres;
+
+    listbuf_put(&out, &header, sizeof(header));
+    for (i=0;i<nodes.nres;i++) {
+        listbuf_putint(&out, nodes.res[i].kind);
+        listbuf_putint(&out, nodes.res[i].num);
+        listbuf_putint(&out, nodes.res[i].gen);
+    }
+    listbuf_put(&out, nodes.data, nodes.len);
+
+    /* once the directory is full, further pages are run every time */
+    listcache_path(doc, page->pageNo, path, sizeof(path));
+    old = listcache_filesize(path);
+    if (doc->listcachesize - old + out.len > doc->listcachelimit) {
+        DEBUG("list cache is full, not writing display list of page %d", page->pageNo);
+        goto cleanup;
+    }
+
+    /* a file that is being written is never seen under its real name */
+    snprintf(temp, sizeof(temp), "%s.new", path);
+    file = fopen(temp, "wb");
+    if (!file) {
+        ERROR("cannot write %s: %s", temp, strerror(errno));
+        goto cleanup;
+    }
+    ok = (fwrite(out.data, 1, out.len, file) == (size_t) out.len);
+    ok = (fclose(file) == 0) && ok;
+    if (!ok || rename(temp, path)) {
+        ERROR("cannot write %s: %s", path, strerror(errno));
+        unlink(temp);
+    } else {
+        doc->listcachesize += out.len - old;
+        DEBUG("wrote display list of page %d, %d bytes", page->pageNo, out.len);
+    }
+
+cleanup:
+    if (nodes.data)
+        fz_free(nodes.data);
+    if (nodes.res)
+        fz_free(nodes.res);
+    if (out.data)
+        fz_free(out.data);
+}
+
+/* The resources of a page, they may be inherited from the page tree */
+static fz_obj *page_resources(fz_obj *pageobj)
+{
+    fz_obj *obj = fz_resolveindirect(pageobj), *res;
+    int depth;
+
+    for (depth = 0; obj && fz_isdict(obj) && (depth < 32); depth++) {
+        res = fz_dictgets(obj, "Resources");
+        if (res)
+            return res;
+        obj = fz_resolveindirect(fz_dictgets(obj, "Parent"));
+    }
+    return NULL;
+}
+
+static void listcache_dropresources(listbuf_t *buf)
+{
+    int i;
+
+    for (i=0;i<buf->nres;i++) {
+        if (!buf->res[i].val)
+            continue;
+        switch (buf->res[i].kind) {
+        case RES_FONT:
+            pdf_dropfont(buf->res[i].val);
+            break;
+        case RES_IMAGE:
+            fz_droppixmap(buf->res[i].val);
+            break;
+        case RES_SHADE:
+            fz_dropshade(buf->res[i].val);
+            break;
+        case RES_COLORSPACE:
+            fz_dropcolorspace(buf->res[i].val);
+            break;
+        }
+    }
+}
+
+/* loads the resources of a list through the store */
+static int listcache_loadresources(renderdocument_t *doc, listbuf_t *buf, fz_obj *pageobj)
+{
+    fz_error error = fz_okay;
+    fz_obj *ref;
+    int i;
+
+    for (i=0;i<buf->nres;i++) {
+        listres_t *res = &buf->res[i];
+
+        if (!listbuf_get(buf, &res->kind, sizeof(int)) ||
+                !listbuf_get(buf, &res->num, sizeof(int)) ||
+                !listbuf_get(buf, &res->gen, sizeof(int)))
+            return 0;
+        if ((res->num <= 0) || (res->num >= doc->xref->len))
+            return 0;
+
+        ref = fz_newindirect(res->num, res->gen, doc->xref);
+        switch (res->kind) {
+        case RES_FONT:
+            error = pdf_loadfont((pdf_fontdesc **) &res->val, doc->xref,
+                    page_resources(pageobj), ref);
+            break;
+        case RES_IMAGE:
+            error = pdf_loadimage((fz_pixmap **) &res->val, doc->xref, ref);
+            break;
+        case RES_SHADE:
+            error = pdf_loadshade((fz_shade **) &res->val, doc->xref, ref);
+            break;
+        case RES_COLORSPACE:
+            error = pdf_loadcolorspace((fz_colorspace **) &res->val, doc->xref, ref);
+            break;
+        default:
+            error = fz_throw("unknown resource kind %d", res->kind);
+            break;
+        }
+        fz_dropobj(ref);
+        if (error) {
+            res->val = NULL;
+            fz_catch(error, "cannot load resource %d %d R of cached display list", res->num, res->gen);
+            return 0;
+        }
+    }
+    return 1;
+}
+
+static int listcache_getcolorspace(listbuf_t *buf, int cs, fz_colorspace **csp)
+{
+    switch (cs) {
+    case CS_NONE:
+        *csp = NULL;
+        return 1;
+    case CS_GRAY:
+        *csp = fz_devicegray;
+        return 1;
+    case CS_RGB:
+        *csp = fz_devicergb;
+        return 1;
+    case CS_CMYK:
+        *csp = fz_devicecmyk;
+        return 1;
+    }
+    if ((cs < 0) || (cs >= buf->nres) || (buf->res[cs].kind != RES_COLORSPACE))
+        return 0;
+    *csp = buf->res[cs].val;
+    return 1;
+}
+
+/* gets a resource index of the given kind */
+static void *listcache_getresource(listbuf_t *buf, int kind)
+{
+    int i;
+
+    if (!listbuf_get(buf, &i, sizeof(int)))
+        return NULL;
+    if ((i < 0) || (i >= buf->nres) || (buf->res[i].kind != kind))
+        return NULL;
+    return buf->res[i].val;
+}
+
+/* Reads one node, returns NULL if the file is broken */
+static fz_displaynode *listcache_getnode(listbuf_t *buf)
+{
+    fz_displaynode *node;
+    fz_colorspace *cs;
+    int cmd, csindex, ncolor, hasstroke, len, i;
+
+    if (!listbuf_get(buf, &cmd, sizeof(int)))
+        return NULL;
+
+    node = fz_malloc(sizeof(fz_displaynode));
+    memset(node, 0, sizeof(fz_displaynode));
+    node->cmd = cmd;
+    if (!listbuf_get(buf, &node->rect, sizeof(fz_rect)) ||
+            !listbuf_get(buf, &node->ctm, sizeof(fz_matrix)) ||
+            !listbuf_get(buf, &node->flag, sizeof(int)) ||
+            !listbuf_get(buf, &node->alpha, sizeof(float)) ||
+            !listbuf_get(buf, &csindex, sizeof(int)) ||
+            !listbuf_get(buf, &ncolor, sizeof(int)) ||
+            (ncolor < 0) || (ncolor > FZ_MAXCOLORS) ||
+            !listbuf_get(buf, node->color, ncolor * sizeof(float)) ||
+            !listcache_getcolorspace(buf, csindex, &cs) ||
+            !listbuf_get(buf, &hasstroke, sizeof(int)))
+        goto broken;
+    if (cs)
+        node->colorspace = fz_keepcolorspace(cs);
+    if (hasstroke) {
+        node->stroke = fz_malloc(sizeof(fz_strokestate));
+        if (!listbuf_get(buf, node->stroke, sizeof(fz_strokestate)))
+            goto broken;
+    }
+
+    switch (cmd) {
+    case FZ_CMDFILLPATH:
+    case FZ_CMDSTROKEPATH:
+    case FZ_CMDCLIPPATH:
+    case FZ_CMDCLIPSTROKEPATH:
+        node->item.path = fz_newpath();
+        if (!listbuf_get(buf, &len, sizeof(int)) || (len < 0) ||
+                (len > (buf->cap - buf->len) / (int) sizeof(fz_pathel)))
+            goto broken;
+        if (len > 0) {
+            node->item.path->els = fz_realloc(node->item.path->els, len, sizeof(fz_pathel));
+            node->item.path->cap = len;
+            listbuf_get(buf, node->item.path->els, len * sizeof(fz_pathel));
+            node->item.path->len = len;
+        }
+        break;
+    case FZ_CMDFILLTEXT:
+    case FZ_CMDSTROKETEXT:
+    case FZ_CMDCLIPTEXT:
+    case FZ_CMDCLIPSTROKETEXT:
+    case FZ_CMDIGNORETEXT:
+    {
+        pdf_fontdesc *fontdesc = listcache_getresource(buf, RES_FONT);
+        fz_matrix trm;
+        fz_textel el;
+        int wmode;
+
+        if (!fontdesc || !listbuf_get(buf, &trm, sizeof(fz_matrix)) ||
+                !listbuf_get(buf, &wmode, sizeof(int)) ||
+                !listbuf_get(buf, &len, sizeof(int)) || (len < 0))
+            goto broken;
+        node->item.text = fz_newtext(fontdesc->font, trm, wmode);
+        for (i=0;i<len;i++) {
+            if (!listbuf_get(buf, &el, sizeof(fz_textel)))
+                goto broken;
+            fz_addtext(node->item.text, el.gid, el.ucs, el.x, el.y);
+        }
+        break;
+    }
+    case FZ_CMDFILLSHADE:
+    {
+        fz_shade *shade = listcache_getresource(buf, RES_SHADE);
+        if (!shade)
+            goto broken;
+        node->item.shade = fz_keepshade(shade);
+        break;
+    }
+    case FZ_CMDFILLIMAGE:
+    case FZ_CMDFILLIMAGEMASK:
+    case FZ_CMDCLIPIMAGEMASK:
+    {
+        fz_pixmap *image = listcache_getresource(buf, RES_IMAGE);
+        if (!image)
+            goto broken;
+        node->item.image = fz_keeppixmap(image);
+        break;
+    }
+    case FZ_CMDPOPCLIP:
+        break;
+    default:
+        goto broken;
+    }
+    return node;
+
+broken:
+    /* a list of its own frees the node with all it holds, a node
+     * without its item (or an unknown one) must not free it */
+    if (!node->item.path || (cmd < FZ_CMDFILLPATH) || (cmd > FZ_CMDPOPCLIP))
+        node->cmd = FZ_CMDPOPCLIP;
+    {
+        fz_displaylist *list = fz_newdisplaylist();
+        list->first = list->last = node;
+        fz_freedisplaylist(list);
+    }
+    return NULL;
+}
+
+/* Reads the display list of a page from the cache. Returns NULL if there
+ * is none or it can't be used, in that case the page has to be run.
+ */
+static fz_displaylist *listcache_load(renderdocument_t *doc, int pageno, fz_obj *pageobj,
+        fz_rect *pagebox, int *rotate)
+{
+    fz_displaylist *list = (fz_displaylist *)0;
+    fz_displaynode *node;
+    listheader_t header;
+    listbuf_t buf;
+    struct stat st;
+    char path[PATH_MAX];
+    void *map = MAP_FAILED;
+    int fd, sizes[5], i, ok = 0;
+
+    if (!doc->listcache)
+        return NULL;
+
+    memset(&buf, 0, sizeof(buf));
+    listcache_path(doc, pageno, path, sizeof(path));
+    fd = open(path, O_RDONLY);
+    if (fd < 0)
+        return NULL;
+    if ((fstat(fd, &st) == 0) && (st.st_size >= (off_t) sizeof(header)) && (st.st_size < INT_MAX))
+        map = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED)
+        goto cleanup;
+
+    buf.data = map;
+    buf.cap = st.st_size;
+
+    listcache_sizes(sizes);
+    listbuf_get(&buf, &header, sizeof(header));
+    if ((header.magic != LISTCACHE_MAGIC) || (header.version != LISTCACHE_VERSION) ||
+            (header.build != listcache_build()) || memcmp(header.sizes, sizes, sizeof(sizes)) ||
+            (header.pageno != pageno) ||
+            (header.pagenum != fz_tonum(pageobj)) || (header.pagegen != fz_togen(pageobj)) ||
+            (header.nres < 0) || (header.nres > buf.cap / (3 * (int) sizeof(int))) ||
+            (header.nnodes < 0))
+        goto cleanup;
+
+    buf.nres = header.nres;
+    buf.res = fz_calloc(header.nres ? header.nres : 1, sizeof(listres_t));
+    if (!listcache_loadresources(doc, &buf, pageobj))
+        goto cleanup;
+
+    list = fz_newdisplaylist();
+    for (i=0;i<header.nnodes;i++) {
+        node = listcache_getnode(&buf);
+        if (!node)
+            goto cleanup;
+        if (list->last)
+            list->last->next = node;
+        else
+            list->first = node;
+        list->last = node;
+    }
+
+    *pagebox = header.pagebox;
+    *rotate = header.rotate;
+    ok = 1;
+    DEBUG("read display list of page %d, %d nodes", pageno, header.nnodes);
+
+cleanup:
+    if (buf.res) {
+        listcache_dropresources(&buf);
+        fz_free(buf.res);
+    }
+    if (map != MAP_FAILED)
+        munmap(map, st.st_size);
+    if (!ok) {
+        ERROR("cannot use cached display list %s, removing it", path);
+        doc->listcachesize -= listcache_filesize(path);
+        unlink(path);
+        if (list)
+            fz_freedisplaylist(list);
+        list = (fz_displaylist *)0;
+    }
+    return list;
+}
+
+/* Builds the display list of a page, from the list cache if allowed
+ * and possible, or by running the page. Throws a Java exception and
+ * returns 0 on errors. Sets *ran when the page was run.
+ */
+static int build_list(JNIEnv *env, renderdocument_t *doc, renderpage_t *page,
+        fz_obj *obj, int usecache, int *ran)
+{
+    fz_error error;
+    pdf_page *pdfpage = (pdf_page *)0;
+    fz_device *dev;
+
+    *ran = 0;
+    if (usecache) {
+        page->list = listcache_load(doc, page->pageNo, obj, &page->pagebox, &page->rotate);
+        if (page->list)
+            return 1;
+    }
+
+    error = pdf_loadpage(&pdfpage, doc->xref, obj);
+    if (error) {
+        fz_catch(error, "cannot load page %d", page->pageNo);
+        throw_exception(env, EXC_PAGELOAD, "error loading page");
+        return 0;
+    }
+    fixRect(&pdfpage->mediabox);
+    page->pagebox = pdfpage->mediabox;
+    page->rotate = pdfpage->rotate;
+
+    page->list = fz_newdisplaylist();
+    dev = fz_newlistdevice(page->list);
+    error = pdf_runpage(doc->xref, pdfpage, dev, fz_identity);
+    fz_freedevice(dev);
+    pdf_freepage(pdfpage);
+    if (error) {
+        fz_catch(error, "cannot run page %d", page->pageNo);
+        throw_exception(env, EXC_PAGELOAD, "error running page");
+        return 0;
+    }
+    *ran = 1;
+    return 1;
+}
+
+JNIEXPORT jlong JNICALL
+    Java_de_hilses_droidreader_PdfPage_nativeOpenPage
+    (JNIEnv *env, jobject this, jlong dochandle, jfloatArray mediabox, jint pageno, jint flags, jint zoombucket)
+{
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) dochandle;
+    renderpage_t *page = (renderpage_t *)0;
+    jfloat *bbox;
+    jclass cls;
+    jfieldID fid;
+    int i, cached;
+#ifdef PDFRENDER_DEBUG
+    clock_t end, start = clock();
+#endif
+    DEBUG("PdfPage(%p).nativeOpenPage(%p)", this, doc);
+    TRACE_BEGIN(TRACE_OPENPAGE);
+
+    /* Transient pages (e.g. for thumbnails) bypass the page cache */
+    if (!(flags & PDF_PAGE_TRANSIENT)) {
+        doc->currentlyDisplayedPage = pageno;
+
+        /* First, see if we've already got the page loaded in the cache */
+        for (i=0;i<NUM_CACHE_STRUCTS;i++) {
+            if (doc->pages[i]->pageNo == pageno) {
+                page = doc->pages[i];
+                break;
             }
         }
+    }
+
+    /* A cached page whose images were reduced for a lower zoom is
+     * loaded again, with its images decoded anew.
+     */
+    if (page && page->downsampled && (zoombucket > page->zoombucket) && !page->users) {
+        fz_pixmap **stale = (fz_pixmap **)0;
+        int n = stale_images(doc, page->list, zoombucket, &stale);
+
+        drop_list(page);
+        page->pageNo = 0;
+        evict_images(doc, stale, n);
+        page = (renderpage_t *)0;
+    }
+
+    cached = (page != (renderpage_t *)0);
+    if (!page) {
+        fz_obj *obj = NULL;
+        int chosen = -1, usecache, ran;
+
+        if (!(flags & PDF_PAGE_TRANSIENT))
+            chosen = choose_cache_struct(doc, pageno);
+
+        /* When all cache structs are in use, the page is loaded as a
+         * transient one */
+        if (chosen < 0) {
+            page = fz_malloc(sizeof(renderpage_t));
+            memset(page, 0, sizeof(renderpage_t));
+            page->transient = 1;
+        } else
+            page = doc->pages[chosen];
+
+        /* Release the old content of the page, if any */
+        drop_list(page);
+
+        page->pageNo = pageno;
 
+        /* The store keeps resources across pages, it is limited to half
+         * of the budget and then evicts the least recently used ones.
+         */
         if (!doc->xref->store)
             doc->xref->store = pdf_newstore();
+        pdf_setstorelimit(doc->xref->store, governor.budget / 2);
 
-        if (!(flags & PDF_PAGE_MEMORY_HOG))
-            pdf_agestore(doc->xref->store, 3);
-
-        fz_start_tracing(doc->xref->store);
+        /* make room before loading, the old list of this struct is gone now */
+        governor_balance(doc, page);
 
+        /* pages opened for display are kept in the list cache */
         obj = pdf_getpageobject(doc->xref, pageno);
-        error = pdf_loadpage(&pdfpage, doc->xref, obj);
-        if (error) {
-            throw_exception(env, EXC_PAGELOAD, "error loading page");
+        usecache = !(flags & PDF_PAGE_TRANSIENT);
+        if (!build_list(env, doc, page, obj, usecache, &ran))
             goto cleanup;
-        }
 
-        page->list = fz_newdisplaylist();
-        dev = fz_newlistdevice(page->list);
-        error = pdf_runpage(doc->xref, pdfpage, dev, fz_identity);
-        if (error) {
-            throw_exception(env, EXC_PAGELOAD, "error running page");
-            goto cleanup;
+        /* Images shared with other pages may have been reduced for a
+         * lower zoom earlier, in that case build the list once more with
+         * those decoded again.
+         */
+        {
+            fz_pixmap **stale = (fz_pixmap **)0;
+            int n = stale_images(doc, page->list, zoombucket, &stale);
+
+            if (n) {
+                fz_freedisplaylist(page->list);
+                page->list = (fz_displaylist *)0;
+                evict_images(doc, stale, n);
+                if (!build_list(env, doc, page, obj, usecache, &ran))
+                    goto cleanup;
+            } else
+                fz_free(stale);
         }
 
-        fixRect(&pdfpage->mediabox);
-        page->pagebox.x0 = page->contentbox.x1 = pdfpage->mediabox.x0;
-        page->pagebox.y0 = page->contentbox.y1 = pdfpage->mediabox.y0;
-        page->pagebox.x1 = page->contentbox.x0 = pdfpage->mediabox.x1;
-        page->pagebox.y1 = page->contentbox.y0 = pdfpage->mediabox.y1;
-
-        pDN = page->list->first;
-
-        while (pDN) {
-            int disregard_content;
-
-            if ((pDN->cmd == FZ_CMDFILLTEXT) ||
-                (pDN->cmd == FZ_CMDSTROKETEXT) ||
-                (pDN->cmd == FZ_CMDCLIPTEXT) ||
-                (pDN->cmd == FZ_CMDCLIPSTROKETEXT) ||
-                (pDN->cmd == FZ_CMDIGNORETEXT)) {
-                disregard_content = 1;
-                for (i=0;i<pDN->item.text->len;i++) {
-                    if (pDN->item.text->els[i].ucs > 32) {
-                        disregard_content = 0;
-                        break;
-                    }
-                }
-            } else
-                disregard_content = 0;
-
-            if ( (fabs(pDN->rect.x1 - pDN->rect.x0) < 0.1) ||
-                 (fabs(pDN->rect.y1 - pDN->rect.y0) < 0.1) )
-                disregard_content = 1;
-
-            if (!disregard_content) {
-                DEBUG("Command = %d, (%d,%d) - (%d,%d)",pDN->cmd,(int)pDN->rect.x0,(int)pDN->rect.y0,(int)pDN->rect.x1,(int)pDN->rect.y1);
-
-                if ((pDN->cmd == FZ_CMDFILLTEXT) ||
-                    (pDN->cmd == FZ_CMDSTROKETEXT) ||
-                    (pDN->cmd == FZ_CMDCLIPTEXT) ||
-                    (pDN->cmd == FZ_CMDCLIPSTROKETEXT) ||
-                    (pDN->cmd == FZ_CMDIGNORETEXT)) {
-                    for (i=0;i<pDN->item.text->len;i++)
-                        DEBUG("Char %d, gid = %d, ucs = %d, (%d,%d)",i,pDN->item.text->els[i].gid,pDN->item.text->els[i].ucs,(int)pDN->item.text->els[i].x,(int)pDN->item.text->els[i].y);
-                }
+        if (ran && usecache)
+            listcache_save(doc, page, obj);
 
-                fixRect(&pDN->rect);
+        if (zoombucket >= 0)
+            downsample_images(doc, page, zoombucket);
+        else
+            page->downsampled = 0;
 
-                if ((pDN->rect.x0 < page->contentbox.x0) && (pDN->rect.x0 >= page->pagebox.x0))
-                    page->contentbox.x0 = pDN->rect.x0;
-                if ((pDN->rect.y0 < page->contentbox.y0) && (pDN->rect.y0 >= page->pagebox.y0))
-                    page->contentbox.y0 = pDN->rect.y0;
-                if ((pDN->rect.x1 > page->contentbox.x1) && (pDN->rect.x1 <= page->pagebox.x1))
-                    page->contentbox.x1 = pDN->rect.x1;
-                if ((pDN->rect.y1 > page->contentbox.y1) && (pDN->rect.y1 <= page->pagebox.y1))
-                    page->contentbox.y1 = pDN->rect.y1;
-            }
+        /* computed when asked for, see nativeGetContentBox() */
+        page->havecontentbox = 0;
 
-            pDN = pDN->next;
+        page->listsize = displaylist_size(page->list);
+        DEBUG("display list of page %d uses %d bytes", pageno, page->listsize);
 #ifdef PDFRENDER_DEBUG
-            itemcount++;
-#endif
+        {
+            int stats[6];
+            pdf_storestats(doc->xref->store, stats);
+            DEBUG("store: %d hits, %d misses, %d evictions, %d/%d bytes in %d items",
+                    stats[0], stats[1], stats[2], stats[3], stats[5], stats[4]);
         }
+#endif
 
-        /* If the document's memory allocation was above the threshold set in
-         * fitz/base_memory.c, set the "memory hog" flag. Note, don't clear it if
-         * it was already set.
-         */
-        doc->isMemoryHog |= fz_stop_tracing();
-
-        page->rotate = pdfpage->rotate;
+        /* the new list and resources may have pushed us over budget */
+        governor_balance(doc, page);
     }
 
     /* Now copy the page information back to the Java environment, whether it
@@ -760,52 +2498,977 @@ JNIEXPORT jlong JNICALL
     bbox[3] = page->pagebox.y1;
     (*env)->ReleasePrimitiveArrayCritical(env, mediabox, bbox, 0);
 
+    cls = (*env)->GetObjectClass(env, this);
+    fid = (*env)->GetFieldID(env, cls, "rotate","I");
+    if(fid) {
+        (*env)->SetIntField(env, this, fid, page->rotate);
+    } else {
+        throw_exception(env, EXC, "cannot access instance fields!");
+        goto cleanup;
+    }
+    /* for the metrics of the Java side */
+    fid = (*env)->GetFieldID(env, cls, "listSize","I");
+    if(fid)
+        (*env)->SetIntField(env, this, fid, page->listsize);
+    fid = (*env)->GetFieldID(env, cls, "cached","Z");
+    if(fid)
+        (*env)->SetBooleanField(env, this, fid, cached ? JNI_TRUE : JNI_FALSE);
+
+cleanup:
+    if (page && (*env)->ExceptionCheck(env)) {
+        /* nobody will close a transient page that failed to load */
+        if (page->transient) {
+            drop_list(page);
+            fz_free(page);
+        }
+        page = (renderpage_t *)0;
+    } else if (page && !page->transient) {
+        /* the page can't be reused for another one until it is closed */
+        page->users++;
+    }
+
+#ifdef PDFRENDER_DEBUG
+    end = clock();
+    DEBUG("Page %d Load = %10.7fsec",pageno,((double) (end - start)) / CLOCKS_PER_SEC);
+#endif
+    TRACE_END(TRACE_OPENPAGE);
+    return (jlong)(unsigned long) page;
+}
+
+/* The content box is the union of the bounding boxes of all display
+ * list nodes that are within the page and not degenerate.
+ */
+static void compute_contentbox(renderpage_t *page)
+{
+    fz_displaynode *node;
+    fz_rect rect;
+
+    page->contentbox.x0 = page->pagebox.x1;
+    page->contentbox.y0 = page->pagebox.y1;
+    page->contentbox.x1 = page->pagebox.x0;
+    page->contentbox.y1 = page->pagebox.y0;
+
+    for (node = page->list->first; node; node = node->next) {
+        rect = node->rect;
+        fixRect(&rect);
+
+        if ((rect.x1 - rect.x0 < 0.1) || (rect.y1 - rect.y0 < 0.1))
+            continue;
+
+        if ((rect.x0 < page->contentbox.x0) && (rect.x0 >= page->pagebox.x0))
+            page->contentbox.x0 = rect.x0;
+        if ((rect.y0 < page->contentbox.y0) && (rect.y0 >= page->pagebox.y0))
+            page->contentbox.y0 = rect.y0;
+        if ((rect.x1 > page->contentbox.x1) && (rect.x1 <= page->pagebox.x1))
+            page->contentbox.x1 = rect.x1;
+        if ((rect.y1 > page->contentbox.y1) && (rect.y1 <= page->pagebox.y1))
+            page->contentbox.y1 = rect.y1;
+    }
+
+    page->havecontentbox = 1;
+}
+
+JNIEXPORT void JNICALL
+    Java_de_hilses_droidreader_PdfPage_nativeGetContentBox
+    (JNIEnv *env, jobject this, jlong pagehandle, jfloatArray contentbox)
+{
+    renderpage_t *page = (renderpage_t*)(unsigned long) pagehandle;
+    jfloat *bbox;
+
+    if (!page->havecontentbox) {
+        if (!page->list) {
+            throw_exception(env, EXC_PAGELOAD, "page content was released");
+            return;
+        }
+        compute_contentbox(page);
+        DEBUG("content box of page %d: (%d,%d) - (%d,%d)", page->pageNo,
+                (int)page->contentbox.x0, (int)page->contentbox.y0,
+                (int)page->contentbox.x1, (int)page->contentbox.y1);
+    }
+
     bbox = (*env)->GetPrimitiveArrayCritical(env, contentbox, 0);
     if(bbox == NULL) {
         throw_exception(env, EXC, "out of memory");
-        goto cleanup;
+        return;
     }
     bbox[0] = page->contentbox.x0;
     bbox[1] = page->contentbox.y0;
     bbox[2] = page->contentbox.x1;
     bbox[3] = page->contentbox.y1;
     (*env)->ReleasePrimitiveArrayCritical(env, contentbox, bbox, 0);
+}
 
-    cls = (*env)->GetObjectClass(env, this);
-    fid = (*env)->GetFieldID(env, cls, "rotate","I");
-    if(fid) {
-        (*env)->SetIntField(env, this, fid, page->rotate);
+/* Whether a page only uses shades of gray, so it can be rendered to an
+ * 8 bit buffer without losing anything. Only the device color spaces
+ * are looked at, a page with anything else counts as colored.
+ */
+static int color_is_gray(fz_colorspace *cs, float *v)
+{
+    if (!cs || (cs == fz_devicegray))
+        return 1;
+    if ((cs == fz_devicergb) || (cs == fz_devicebgr))
+        return (fabsf(v[0] - v[1]) < 0.004f) && (fabsf(v[1] - v[2]) < 0.004f);
+    if (cs == fz_devicecmyk)
+        return (v[0] < 0.004f) && (v[1] < 0.004f) && (v[2] < 0.004f);
+    return 0;
+}
+
+static int page_is_gray(renderpage_t *page)
+{
+    fz_displaynode *node;
+
+    if (page->colors == COLORS_UNKNOWN) {
+        page->colors = COLORS_GRAY;
+        for (node = page->list->first; node; node = node->next) {
+            int gray = 1;
+            switch (node->cmd) {
+            case FZ_CMDFILLIMAGE:
+                gray = !node->item.image->colorspace ||
+                    (node->item.image->colorspace == fz_devicegray);
+                break;
+            case FZ_CMDFILLSHADE:
+                gray = (node->item.shade->cs == fz_devicegray);
+                break;
+            case FZ_CMDFILLPATH:
+            case FZ_CMDSTROKEPATH:
+            case FZ_CMDFILLTEXT:
+            case FZ_CMDSTROKETEXT:
+            case FZ_CMDFILLIMAGEMASK:
+                gray = color_is_gray(node->colorspace, node->color);
+                break;
+            default:
+                break;
+            }
+            if (!gray) {
+                page->colors = COLORS_COLOR;
+                break;
+            }
+        }
+        DEBUG("page %d is %s", page->pageNo,
+                (page->colors == COLORS_GRAY) ? "gray" : "colored");
+    }
+    return page->colors == COLORS_GRAY;
+}
+
+JNIEXPORT jboolean JNICALL
+    Java_de_hilses_droidreader_PdfPage_nativeIsGray
+    (JNIEnv *env, jobject this, jlong pagehandle)
+{
+    renderpage_t *page = (renderpage_t*)(unsigned long) pagehandle;
+
+    /* without content the render will fail anyway */
+    if (!page->list)
+        return JNI_FALSE;
+    return page_is_gray(page) ? JNI_TRUE : JNI_FALSE;
+}
+
+/* Text extraction.
+ *
+ * The text nodes of the display list carry the unicode value and the
+ * origin of every glyph. We give each character a box that goes from
+ * its origin to the origin of the next glyph (or half an em if there
+ * is none close by) and from the descender to the ascender line.
+ * Spaces and line breaks are inserted where the glyphs are apart or
+ * the baseline changes. They get empty boxes.
+ */
+typedef struct textbuf_s textbuf_t;
+struct textbuf_s
+{
+    jchar *chars;
+    float *boxes;
+    int len;
+    int cap;
+};
+
+static int is_text_node(fz_displaynode *node)
+{
+    return (node->cmd == FZ_CMDFILLTEXT) ||
+           (node->cmd == FZ_CMDSTROKETEXT) ||
+           (node->cmd == FZ_CMDCLIPTEXT) ||
+           (node->cmd == FZ_CMDCLIPSTROKETEXT) ||
+           (node->cmd == FZ_CMDIGNORETEXT);
+}
+
+static void text_putchar(textbuf_t *buf, jchar c, fz_rect *box)
+{
+    float *b;
+
+    if (buf->len == buf->cap) {
+        buf->cap = buf->cap ? buf->cap * 2 : 1024;
+        buf->chars = fz_realloc(buf->chars, buf->cap, sizeof(jchar));
+        buf->boxes = fz_realloc(buf->boxes, buf->cap * 4, sizeof(float));
+    }
+    b = buf->boxes + buf->len * 4;
+    if (box) {
+        b[0] = box->x0;
+        b[1] = box->y0;
+        b[2] = box->x1;
+        b[3] = box->y1;
     } else {
-        throw_exception(env, EXC, "cannot access instance fields!");
+        b[0] = b[1] = b[2] = b[3] = 0;
     }
+    buf->chars[buf->len++] = c;
+}
 
-cleanup:
-    if (dev)
-        fz_freedevice(dev);
+static void text_putucs(textbuf_t *buf, int ucs, fz_rect *box)
+{
+    if (ucs >= 0x10000) {
+        ucs -= 0x10000;
+        text_putchar(buf, 0xd800 + (ucs >> 10), box);
+        text_putchar(buf, 0xdc00 + (ucs & 0x3ff), box);
+    } else {
+        text_putchar(buf, ucs, box);
+    }
+}
 
-    if (pdfpage)
-        pdf_freepage(pdfpage);
+static int text_lastisspace(textbuf_t *buf)
+{
+    return !buf->len ||
+        (buf->chars[buf->len - 1] == ' ') || (buf->chars[buf->len - 1] == '\n');
+}
 
-#ifdef PDFRENDER_DEBUG
-    end = clock();
-    DEBUG("Page %d Load = %10.7fsec, %d items",pageno,((double) (end - start)) / CLOCKS_PER_SEC, itemcount);
-#endif
-    return (jlong)(unsigned long) page;
+static void include_point(fz_rect *box, fz_point p)
+{
+    if (p.x < box->x0) box->x0 = p.x;
+    if (p.y < box->y0) box->y0 = p.y;
+    if (p.x > box->x1) box->x1 = p.x;
+    if (p.y > box->y1) box->y1 = p.y;
+}
+
+static void extract_text(renderpage_t *page, textbuf_t *buf)
+{
+    fz_displaynode *node;
+    fz_text *text;
+    fz_textel *el;
+    fz_point org, up, adv, p, lastend;
+    fz_rect box;
+    float size, emsize, dx, dy, across, along;
+    int i, have = 0;
+
+    lastend.x = lastend.y = 0;
+
+    for (node = page->list->first; node; node = node->next) {
+        if (!is_text_node(node))
+            continue;
+        text = node->item.text;
+        emsize = sqrtf(text->trm.c * text->trm.c + text->trm.d * text->trm.d);
+
+        for (i = 0; i < text->len; i++) {
+            el = &text->els[i];
+            if (el->ucs <= 0)
+                continue;
+
+            org.x = el->x;
+            org.y = el->y;
+            org = fz_transformpoint(node->ctm, org);
+            p.x = text->trm.c;
+            p.y = text->trm.d;
+            up = fz_transformvector(node->ctm, p);
+            size = sqrtf(up.x * up.x + up.y * up.y);
+            if (size < 0.001)
+                continue;
+
+            p.x = 0;
+            p.y = 0;
+            if (i + 1 < text->len) {
+                p.x = text->els[i + 1].x - el->x;
+                p.y = text->els[i + 1].y - el->y;
+            }
+            if ((p.x == 0 && p.y == 0) || (fabsf(p.x) + fabsf(p.y) > emsize * 2)) {
+                p.x = text->trm.a / 2;
+                p.y = text->trm.b / 2;
+            }
+            adv = fz_transformvector(node->ctm, p);
+
+            if (have && !text_lastisspace(buf) && (el->ucs != ' ')) {
+                /* distance from the end of the last glyph, measured
+                 * across and along the baseline */
+                dx = org.x - lastend.x;
+                dy = org.y - lastend.y;
+                across = (dx * up.x + dy * up.y) / size;
+                along = (dx * up.y - dy * up.x) / size;
+                if ((fabsf(across) > size / 2) || (along < -size))
+                    text_putchar(buf, '\n', NULL);
+                else if (along > size / 4)
+                    text_putchar(buf, ' ', NULL);
+            }
+
+            box.x0 = box.y0 = 1e30f;
+            box.x1 = box.y1 = -1e30f;
+            p.x = org.x - up.x / 5;
+            p.y = org.y - up.y / 5;
+            include_point(&box, p);
+            p.x += adv.x;
+            p.y += adv.y;
+            include_point(&box, p);
+            p.x += up.x;
+            p.y += up.y;
+            include_point(&box, p);
+            p.x -= adv.x;
+            p.y -= adv.y;
+            include_point(&box, p);
+
+            if ((el->ucs != ' ') || !text_lastisspace(buf))
+                text_putucs(buf, el->ucs, &box);
+
+            lastend.x = org.x + adv.x;
+            lastend.y = org.y + adv.y;
+            have = 1;
+        }
+    }
+}
+
+JNIEXPORT jstring JNICALL
+    Java_de_hilses_droidreader_PdfPage_nativeGetText
+    (JNIEnv *env, jobject this, jlong pagehandle, jobjectArray boxesholder)
+{
+    renderpage_t *page = (renderpage_t*)(unsigned long) pagehandle;
+    textbuf_t buf;
+    jfloatArray boxes;
+    jstring result = NULL;
+
+    if (!page->list) {
+        throw_exception(env, EXC_PAGELOAD, "page content was released");
+        return NULL;
+    }
+
+    TRACE_BEGIN(TRACE_GETTEXT);
+    memset(&buf, 0, sizeof(buf));
+    extract_text(page, &buf);
+    DEBUG("extracted %d characters from page %d", buf.len, page->pageNo);
+
+    boxes = (*env)->NewFloatArray(env, buf.len * 4);
+    if (boxes == NULL)
+        goto cleanup;
+    if (buf.len)
+        (*env)->SetFloatArrayRegion(env, boxes, 0, buf.len * 4, buf.boxes);
+    (*env)->SetObjectArrayElement(env, boxesholder, 0, boxes);
+    result = (*env)->NewString(env, buf.chars, buf.len);
+
+cleanup:
+    if (buf.chars)
+        fz_free(buf.chars);
+    if (buf.boxes)
+        fz_free(buf.boxes);
+    TRACE_END(TRACE_GETTEXT);
+    return result;
 }
 
 JNIEXPORT void JNICALL
     Java_de_hilses_droidreader_PdfPage_nativeClosePage
     (JNIEnv *env, jobject this, jlong handle)
 {
-    /* Nothing to do! */
+    renderpage_t *page = (renderpage_t*)(unsigned long) handle;
+
+    /* Cached pages stay around for later use */
+    if (page && page->transient) {
+        drop_list(page);
+        fz_free(page);
+    } else if (page && page->users > 0)
+        page->users--;
+}
+
+/* Spatial index of display lists.
+ *
+ * When a tile covers only a small part of a page, most nodes of its
+ * display list draw nothing into it. The index sorts the drawing nodes
+ * into a grid of cells over the page by their bounding boxes. A render
+ * then only looks at the nodes of the cells the tile overlaps.
+ *
+ * Clips have to stay around the nodes they apply to. So all clip and
+ * popclip nodes take part in every render, except those of clips that
+ * end up with nothing to draw inside them. Text clips may accumulate
+ * over several nodes, they are always kept.
+ *
+ * fz_executedisplaylist() walks a list through the nodes' next
+ * pointers, so the visible nodes are linked into a list of their own
+ * for the render and relinked as before afterwards. That's fine since
+ * a page is only used by one thread at a time.
+ */
+
+/* lists with fewer nodes are always rendered as a whole */
+#define INDEX_MINNODES 256
+/* tiles covering more than this share of the page render the whole list */
+#define INDEX_MAXSHARE 0.5f
+/* nodes spanning more than this share of the cells are always visited */
+#define INDEX_BIGSHARE 4
+#define INDEX_MAXGRID 64
+
+struct listindex_s
+{
+    /* 0 if the list has nodes we can't render separately */
+    int usable;
+    int n;
+    fz_displaynode **nodes;
+    fz_rect bounds;
+    int grid;
+    float cellw;
+    float cellh;
+    /* drawing nodes per cell, in list order: cellnodes[cellstart[c]..cellstart[c+1]] */
+    int *cellstart;
+    int *cellnodes;
+    /* drawing nodes without bounds or spanning much of the page */
+    int *big;
+    int nbig;
+    /* clip and popclip nodes, in list order */
+    int *clips;
+    int nclips;
+    /* per node, the last query that collected it */
+    int *stamp;
+    int query;
+    int size;
+};
+
+static void free_index(listindex_t *index)
+{
+    if (index->nodes)
+        fz_free(index->nodes);
+    if (index->cellstart)
+        fz_free(index->cellstart);
+    if (index->cellnodes)
+        fz_free(index->cellnodes);
+    if (index->big)
+        fz_free(index->big);
+    if (index->clips)
+        fz_free(index->clips);
+    if (index->stamp)
+        fz_free(index->stamp);
+    fz_free(index);
+}
+
+static int is_clip_node(fz_displaynode *node)
+{
+    return (node->cmd == FZ_CMDCLIPPATH) ||
+           (node->cmd == FZ_CMDCLIPSTROKEPATH) ||
+           (node->cmd == FZ_CMDCLIPTEXT) ||
+           (node->cmd == FZ_CMDCLIPSTROKETEXT) ||
+           (node->cmd == FZ_CMDCLIPIMAGEMASK) ||
+           (node->cmd == FZ_CMDPOPCLIP);
+}
+
+/* whether a clip node starts a clip that a popclip ends */
+static int opens_clip(fz_displaynode *node)
+{
+    return is_clip_node(node) && (node->cmd != FZ_CMDPOPCLIP) &&
+        !((node->cmd == FZ_CMDCLIPTEXT) && node->flag);
+}
+
+static int is_drawing_node(fz_displaynode *node)
+{
+    switch (node->cmd) {
+    case FZ_CMDFILLPATH:
+    case FZ_CMDSTROKEPATH:
+    case FZ_CMDFILLTEXT:
+    case FZ_CMDSTROKETEXT:
+    case FZ_CMDIGNORETEXT:
+    case FZ_CMDFILLSHADE:
+    case FZ_CMDFILLIMAGE:
+    case FZ_CMDFILLIMAGEMASK:
+        return 1;
+    default:
+        return 0;
+    }
+}
+
+/* the range of cells a rect overlaps, returns 0 if it has no bounds */
+static int index_cells(listindex_t *index, fz_rect rect, int *cx0, int *cy0, int *cx1, int *cy1)
+{
+    if ((rect.x0 > rect.x1) || (rect.y0 > rect.y1))
+        return 0;
+    *cx0 = (int) floorf((rect.x0 - index->bounds.x0) / index->cellw);
+    *cy0 = (int) floorf((rect.y0 - index->bounds.y0) / index->cellh);
+    *cx1 = (int) floorf((rect.x1 - index->bounds.x0) / index->cellw);
+    *cy1 = (int) floorf((rect.y1 - index->bounds.y0) / index->cellh);
+    if (*cx0 < 0) *cx0 = 0;
+    if (*cy0 < 0) *cy0 = 0;
+    if (*cx1 >= index->grid) *cx1 = index->grid - 1;
+    if (*cy1 >= index->grid) *cy1 = index->grid - 1;
+    return (*cx0 <= *cx1) && (*cy0 <= *cy1);
+}
+
+static int index_isbig(listindex_t *index, fz_rect rect)
+{
+    int cx0, cy0, cx1, cy1;
+
+    if (!index_cells(index, rect, &cx0, &cy0, &cx1, &cy1))
+        return 1;
+    return (cx1 - cx0 + 1) * (cy1 - cy0 + 1) * INDEX_BIGSHARE > index->grid * index->grid;
+}
+
+static listindex_t *index_build(fz_displaylist *list)
+{
+    listindex_t *index;
+    fz_displaynode *node;
+    int i, c, x, y, depth = 0, total, cells;
+    int cx0, cy0, cx1, cy1;
+    int *fill;
+
+    index = fz_malloc(sizeof(listindex_t));
+    memset(index, 0, sizeof(listindex_t));
+
+    /* count the nodes and check the clips are nested */
+    index->bounds.x0 = index->bounds.y0 = 1;
+    index->bounds.x1 = index->bounds.y1 = -1;
+    for (node = list->first; node; node = node->next) {
+        if (!is_drawing_node(node) && !is_clip_node(node))
+            return index;
+        if (opens_clip(node))
+            depth++;
+        if (node->cmd == FZ_CMDPOPCLIP) {
+            if (depth == 0)
+                return index;
+            depth--;
+        }
+        if (is_drawing_node(node) && (node->rect.x0 <= node->rect.x1) &&
+                (node->rect.y0 <= node->rect.y1)) {
+            if (index->bounds.x0 > index->bounds.x1)
+                index->bounds = node->rect;
+            else
+                index->bounds = fz_mergerect(index->bounds, node->rect);
+        }
+        index->n++;
+    }
+    if (index->bounds.x0 > index->bounds.x1) {
+        index->bounds.x0 = index->bounds.y0 = 0;
+        index->bounds.x1 = index->bounds.y1 = 1;
+    }
+
+    index->nodes = fz_calloc(index->n ? index->n : 1, sizeof(fz_displaynode *));
+    index->stamp = fz_calloc(index->n ? index->n : 1, sizeof(int));
+    for (i = 0, node = list->first; node; node = node->next)
+        index->nodes[i++] = node;
+
+    /* about eight nodes per cell */
+    index->grid = (int) sqrtf(index->n / 8);
+    if (index->grid < 1)
+        index->grid = 1;
+    if (index->grid > INDEX_MAXGRID)
+        index->grid = INDEX_MAXGRID;
+    cells = index->grid * index->grid;
+    index->cellw = (index->bounds.x1 - index->bounds.x0) / index->grid;
+    index->cellh = (index->bounds.y1 - index->bounds.y0) / index->grid;
+    if (index->cellw <= 0)
+        index->cellw = 1;
+    if (index->cellh <= 0)
+        index->cellh = 1;
+
+    /* count the entries of each cell, then fill them in */
+    index->cellstart = fz_calloc(cells + 1, sizeof(int));
+    for (i=0;i<index->n;i++) {
+        node = index->nodes[i];
+        if (is_clip_node(node)) {
+            index->nclips++;
+        } else if (index_isbig(index, node->rect)) {
+            index->nbig++;
+        } else {
+            index_cells(index, node->rect, &cx0, &cy0, &cx1, &cy1);
+            for (y = cy0; y <= cy1; y++)
+                for (x = cx0; x <= cx1; x++)
+                    index->cellstart[y * index->grid + x + 1]++;
+        }
+    }
+    for (c = 0; c < cells; c++)
+        index->cellstart[c + 1] += index->cellstart[c];
+    total = index->cellstart[cells];
+
+    index->cellnodes = fz_calloc(total ? total : 1, sizeof(int));
+    index->big = fz_calloc(index->nbig ? index->nbig : 1, sizeof(int));
+    index->clips = fz_calloc(index->nclips ? index->nclips : 1, sizeof(int));
+    fill = fz_calloc(cells, sizeof(int));
+    index->nbig = index->nclips = 0;
+    for (i=0;i<index->n;i++) {
+        node = index->nodes[i];
+        if (is_clip_node(node)) {
+            index->clips[index->nclips++] = i;
+        } else if (index_isbig(index, node->rect)) {
+            index->big[index->nbig++] = i;
+        } else {
+            index_cells(index, node->rect, &cx0, &cy0, &cx1, &cy1);
+            for (y = cy0; y <= cy1; y++) {
+                for (x = cx0; x <= cx1; x++) {
+                    c = y * index->grid + x;
+                    index->cellnodes[index->cellstart[c] + fill[c]++] = i;
+                }
+            }
+        }
+    }
+    fz_free(fill);
+
+    index->size = sizeof(listindex_t) +
+        index->n * (sizeof(fz_displaynode *) + sizeof(int)) +
+        (cells + 1 + total + index->nbig + index->nclips) * sizeof(int);
+    index->usable = 1;
+    DEBUG("display list index: %d nodes, %dx%d cells, %d entries, %d big, %d clips",
+            index->n, index->grid, index->grid, total, index->nbig, index->nclips);
+    return index;
+}
+
+static int compare_ints(const void *a, const void *b)
+{
+    return *(const int *)a - *(const int *)b;
+}
+
+static int rects_overlap(fz_rect a, fz_rect b)
+{
+    return (a.x0 <= b.x1) && (a.x1 >= b.x0) && (a.y0 <= b.y1) && (a.y1 >= b.y0);
+}
+
+/* Collects the nodes to render for an area of the page, in list order.
+ * Returns their number.
+ */
+static int index_query(listindex_t *index, fz_rect area, int *out)
+{
+    int *visible, nvisible = 0, n = 0, i, j, c, x, y, k;
+    int cx0, cy0, cx1, cy1;
+    int *stack, depth = 0;
+    fz_displaynode *node;
+
+    visible = fz_calloc(index->n ? index->n : 1, sizeof(int));
+    index->query++;
+
+    /* the drawing nodes that overlap the area */
+    for (i=0;i<index->nbig;i++) {
+        k = index->big[i];
+        node = index->nodes[k];
+        if ((node->rect.x0 > node->rect.x1) || rects_overlap(node->rect, area)) {
+            index->stamp[k] = index->query;
+            visible[nvisible++] = k;
+        }
+    }
+    if (index_cells(index, area, &cx0, &cy0, &cx1, &cy1)) {
+        for (y = cy0; y <= cy1; y++) {
+            for (x = cx0; x <= cx1; x++) {
+                c = y * index->grid + x;
+                for (j = index->cellstart[c]; j < index->cellstart[c + 1]; j++) {
+                    k = index->cellnodes[j];
+                    if (index->stamp[k] == index->query)
+                        continue;
+                    index->stamp[k] = index->query;
+                    if (rects_overlap(index->nodes[k]->rect, area))
+                        visible[nvisible++] = k;
+                }
+            }
+        }
+    }
+    qsort(visible, nvisible, sizeof(int), compare_ints);
+
+    /* merge in the clips, dropping those with nothing inside; the stack
+     * holds where each open clip starts in the output, negated when it
+     * has to stay */
+    stack = fz_calloc(index->nclips ? index->nclips : 1, sizeof(int));
+    for (i = 0, j = 0; (i < nvisible) || (j < index->nclips); ) {
+        if ((j >= index->nclips) || ((i < nvisible) && (visible[i] < index->clips[j]))) {
+            out[n++] = visible[i++];
+            if (depth > 0 && stack[depth - 1] >= 0)
+                stack[depth - 1] = -stack[depth - 1] - 1;
+            continue;
+        }
+        k = index->clips[j++];
+        node = index->nodes[k];
+        if (opens_clip(node)) {
+            stack[depth++] = (node->cmd == FZ_CMDCLIPTEXT) ? -n - 1 : n;
+            out[n++] = k;
+        } else if (node->cmd == FZ_CMDPOPCLIP) {
+            int start = stack[--depth];
+            if (start >= 0) {
+                /* nothing to draw in this clip */
+                n = start;
+            } else {
+                out[n++] = k;
+                if (depth > 0 && stack[depth - 1] >= 0)
+                    stack[depth - 1] = -stack[depth - 1] - 1;
+            }
+        } else {
+            /* a text clip adding to the current one */
+            out[n++] = k;
+            if (depth > 0 && stack[depth - 1] >= 0)
+                stack[depth - 1] = -stack[depth - 1] - 1;
+        }
+    }
+
+    fz_free(stack);
+    fz_free(visible);
+    return n;
+}
+
+/*
+ * Level of detail
+ *
+ * When a page is shown small, much of its content ends up below a
+ * pixel: hairline details, tiny glyphs, the dots of a halftone. Drawing
+ * them costs as much as at full size but adds next to nothing to what
+ * is seen. With PDF_RENDER_LOD set, renders at less than LOD_MAXSCALE
+ * pixels per point skip drawing nodes whose bounds are smaller than
+ * LOD_MINSIZE pixels both ways, and draw filled text with glyphs
+ * smaller than LOD_GREEKSIZE pixels as grey bars along its lines
+ * ("greeking") instead of rasterizing every glyph. At larger scales
+ * every node is drawn as it is.
+ *
+ * The bars are display nodes of our own that are linked in place of the
+ * text nodes for the render and freed afterwards. Clips that have
+ * nothing left to draw inside are dropped like in index_query().
+ */
+
+/* no simplification at or above this many pixels per point */
+#define LOD_MAXSCALE 1.0f
+/* nodes smaller than this many pixels both ways are skipped */
+#define LOD_MINSIZE 0.5f
+/* filled text with glyphs smaller than this many pixels is greeked */
+#define LOD_GREEKSIZE 3.0f
+/* how opaque the bars are, they stand for ink and paper mixed */
+#define LOD_GREEKALPHA 0.4f
+
+static int rect_bounded(fz_rect r)
+{
+    return (r.x0 <= r.x1) && (r.y0 <= r.y1);
+}
+
+/* adds a bar from the origin of one glyph to past the origin of another,
+ * in the space of the glyph positions */
+static void greek_bar(fz_path *path, fz_point from, fz_point to, fz_point adv, fz_point up)
+{
+    float x0 = from.x + up.x * 0.15f;
+    float y0 = from.y + up.y * 0.15f;
+    float x1 = to.x + adv.x * 0.5f + up.x * 0.15f;
+    float y1 = to.y + adv.y * 0.5f + up.y * 0.15f;
+
+    fz_moveto(path, x0, y0);
+    fz_lineto(path, x1, y1);
+    fz_lineto(path, x1 + up.x * 0.4f, y1 + up.y * 0.4f);
+    fz_lineto(path, x0 + up.x * 0.4f, y0 + up.y * 0.4f);
+    fz_closepath(path);
+}
+
+/* Makes a node that fills bars where the glyphs of a text node are, one
+ * bar per run of glyphs along a line. Returns 0 for empty text.
+ */
+static fz_displaynode *greek_text(fz_displaynode *node)
+{
+    fz_text *text = node->item.text;
+    fz_displaynode *bar;
+    fz_path *path;
+    fz_point adv, up, from, last, p, d;
+    float em, along, across;
+    int i;
+
+    if (text->len == 0)
+        return 0;
+
+    /* one em along the line and across it, in the space of the positions */
+    adv.x = 1; adv.y = 0;
+    adv = fz_transformvector(text->trm, adv);
+    up.x = 0; up.y = 1;
+    up = fz_transformvector(text->trm, up);
+    if (text->wmode) {
+        /* vertical text runs down the line */
+        p = adv;
+        adv.x = -up.x; adv.y = -up.y;
+        up = p;
+    }
+    em = sqrtf(adv.x * adv.x + adv.y * adv.y);
+    if (em <= 0)
+        return 0;
+
+    path = fz_newpath();
+    from.x = last.x = text->els[0].x;
+    from.y = last.y = text->els[0].y;
+    for (i = 1; i < text->len; i++) {
+        p.x = text->els[i].x;
+        p.y = text->els[i].y;
+        d.x = p.x - last.x;
+        d.y = p.y - last.y;
+        along = (d.x * adv.x + d.y * adv.y) / em;
+        across = (d.x * adv.y - d.y * adv.x) / em;
+        /* a new line, a step back or a gap wider than a column gutter */
+        if ((fabsf(across) > 0.3f * em) || (along < 0) || (along > 3 * em)) {
+            greek_bar(path, from, last, adv, up);
+            from = p;
+        }
+        last = p;
+    }
+    greek_bar(path, from, last, adv, up);
+
+    bar = fz_malloc(sizeof(fz_displaynode));
+    memset(bar, 0, sizeof(fz_displaynode));
+    bar->cmd = FZ_CMDFILLPATH;
+    bar->rect = node->rect;
+    bar->item.path = path;
+    bar->ctm = node->ctm;
+    /* borrowed from the text node, which outlives the bar */
+    bar->colorspace = node->colorspace;
+    memcpy(bar->color, node->color, sizeof(bar->color));
+    bar->alpha = node->alpha * LOD_GREEKALPHA;
+    return bar;
+}
+
+static void free_bars(fz_displaynode **bars, int nbars)
+{
+    int i;
+
+    for (i=0;i<nbars;i++) {
+        fz_freepath(bars[i]->item.path);
+        fz_free(bars[i]);
+    }
+    fz_free(bars);
+}
+
+/* Simplifies a sequence of nodes in place for rendering at a scale.
+ * Greeked text is replaced by new nodes, which are returned in bars.
+ * Returns the number of nodes left.
+ */
+static int lod_filter(fz_displaynode **nodes, int n, float scale,
+        fz_displaynode ***bars, int *nbars)
+{
+    int *stack, depth = 0, out = 0, i;
+    fz_displaynode *node;
+    fz_rect r;
+
+    stack = fz_calloc(n ? n : 1, sizeof(int));
+    *bars = fz_calloc(n ? n : 1, sizeof(fz_displaynode *));
+    *nbars = 0;
+
+    for (i=0;i<n;i++) {
+        node = nodes[i];
+        r = node->rect;
+        if (is_drawing_node(node) && rect_bounded(r)) {
+            if (((r.x1 - r.x0) * scale < LOD_MINSIZE) &&
+                    ((r.y1 - r.y0) * scale < LOD_MINSIZE))
+                continue;
+            if ((node->cmd == FZ_CMDFILLTEXT) &&
+                    (fz_matrixexpansion(fz_concat(node->item.text->trm, node->ctm)) * scale
+                        < LOD_GREEKSIZE)) {
+                fz_displaynode *bar = greek_text(node);
+                if (!bar)
+                    continue;
+                (*bars)[(*nbars)++] = bar;
+                node = bar;
+            }
+        }
+
+        /* same bookkeeping of clips as in index_query() */
+        if (opens_clip(node)) {
+            stack[depth++] = (node->cmd == FZ_CMDCLIPTEXT) ? -out - 1 : out;
+            nodes[out++] = node;
+        } else if ((node->cmd == FZ_CMDPOPCLIP) && (depth > 0)) {
+            int start = stack[--depth];
+            if (start >= 0) {
+                out = start;
+            } else {
+                nodes[out++] = node;
+                if (depth > 0 && stack[depth - 1] >= 0)
+                    stack[depth - 1] = -stack[depth - 1] - 1;
+            }
+        } else {
+            nodes[out++] = node;
+            if (depth > 0 && stack[depth - 1] >= 0)
+                stack[depth - 1] = -stack[depth - 1] - 1;
+        }
+    }
+
+    fz_free(stack);
+    return out;
+}
+
+/* Renders nodes of a list, in the given order. */
+static void execute_nodes(fz_displaynode **nodes, int n, fz_device *dev, fz_matrix ctm)
+{
+    fz_displaylist visible;
+    fz_displaynode **next;
+    int i;
+
+    if (n == 0)
+        return;
+
+    /* link the nodes, remembering how they were linked before */
+    next = fz_calloc(n, sizeof(fz_displaynode *));
+    for (i=0;i<n;i++) {
+        next[i] = nodes[i]->next;
+        nodes[i]->next = (i + 1 < n) ? nodes[i + 1] : (fz_displaynode *)0;
+    }
+    visible.first = nodes[0];
+    visible.last = nodes[n - 1];
+
+    fz_executedisplaylist(&visible, dev, ctm);
+
+    for (i=0;i<n;i++)
+        nodes[i]->next = next[i];
+    fz_free(next);
+}
+
+/* Renders the part of a page that falls into the viewbox. Uses the
+ * index when the viewbox is small enough for it to pay off, and
+ * simplifies small content if lod is set.
+ */
+static void execute_page(renderpage_t *page, fz_device *dev, fz_matrix ctm, fz_bbox viewbox, int lod)
+{
+    fz_displaynode **nodes = 0, **bars = 0, *node;
+    fz_rect area;
+    float pagearea, share, scale;
+    int *order, n = -1, nbars = 0, i, count;
+
+    area.x0 = viewbox.x0;
+    area.y0 = viewbox.y0;
+    area.x1 = viewbox.x1;
+    area.y1 = viewbox.y1;
+    area = fz_transformrect(fz_invertmatrix(ctm), area);
+
+    scale = fz_matrixexpansion(ctm);
+    lod = lod && (scale < LOD_MAXSCALE);
+
+    pagearea = (page->pagebox.x1 - page->pagebox.x0) * (page->pagebox.y1 - page->pagebox.y0);
+    share = (pagearea > 0) ? (area.x1 - area.x0) * (area.y1 - area.y0) / pagearea : 1;
+    if ((share <= INDEX_MAXSHARE) && !(page->index && !page->index->usable)) {
+        if (!page->index) {
+            count = 0;
+            for (node = page->list->first; node && (count < INDEX_MINNODES); node = node->next)
+                count++;
+            if (count >= INDEX_MINNODES) {
+                page->index = index_build(page->list);
+                page->listsize += page->index->size;
+            }
+        }
+        if (page->index && page->index->usable) {
+            order = fz_calloc(page->index->n ? page->index->n : 1, sizeof(int));
+            n = index_query(page->index, area, order);
+            DEBUG("rendering %d of %d nodes", n, page->index->n);
+            nodes = fz_calloc(n ? n : 1, sizeof(fz_displaynode *));
+            for (i=0;i<n;i++)
+                nodes[i] = page->index->nodes[order[i]];
+            fz_free(order);
+        }
+    }
+
+    if (lod) {
+        if (!nodes) {
+            count = 0;
+            for (node = page->list->first; node; node = node->next)
+                count++;
+            nodes = fz_calloc(count ? count : 1, sizeof(fz_displaynode *));
+            for (n = 0, node = page->list->first; node; node = node->next)
+                nodes[n++] = node;
+        }
+        count = n;
+        n = lod_filter(nodes, n, scale, &bars, &nbars);
+        DEBUG("level of detail: %d of %d nodes left, %d greeked", n, count, nbars);
+    }
+
+    if (nodes) {
+        execute_nodes(nodes, n, dev, ctm);
+        fz_free(nodes);
+    } else {
+        fz_executedisplaylist(page->list, dev, ctm);
+    }
+    if (bars)
+        free_bars(bars, nbars);
 }
 
 JNIEXPORT void JNICALL
     Java_de_hilses_droidreader_PdfView_nativeCreateView
     (JNIEnv *env, jobject this, jlong dochandle, jlong pagehandle,
         jintArray viewboxarray, jfloatArray matrixarray,
-        jintArray bufferarray, jlong flags)
+        jarray bufferarray, jlong flags)
 {
+    renderdocument_t *doc = (renderdocument_t*)(unsigned long) dochandle;
     renderpage_t *page = (renderpage_t*)(unsigned long) pagehandle;
     fz_matrix ctm;
     fz_bbox viewbox;
@@ -813,12 +3476,21 @@ JNIEXPORT void JNICALL
     jfloat *matrix;
     jint *viewboxarr;
     jint *buffer;
+    void *output;
     int length, val;
     fz_pixmap pixmap;
     int i,j;
 
     DEBUG("PdfView(%p).nativeCreateView(%p)", this, page);
 
+    if (!page->list) {
+        /* the memory governor dropped the display list of this page */
+        throw_exception(env, EXC_PAGERENDER, "page content was released");
+        return;
+    }
+
+    TRACE_BEGIN(TRACE_CREATEVIEW);
+
     /* initialize parameter arrays for MuPDF */
     matrix = (*env)->GetPrimitiveArrayCritical(env, matrixarray, 0);
     ctm.a = matrix[0];
@@ -849,14 +3521,14 @@ JNIEXPORT void JNICALL
     DEBUG("Zoom: %5.3f",zoom);
 
     /* do the rendering */
-    buffer = (*env)->GetPrimitiveArrayCritical(env, bufferarray, 0);
+    output = (*env)->GetPrimitiveArrayCritical(env, bufferarray, 0);
 
     pixmap.x = viewbox.x0;
     pixmap.y = viewbox.y0;
     pixmap.w = viewbox.x1 - viewbox.x0;
     pixmap.h = viewbox.y1 - viewbox.y0;
     pixmap.refs = 1;
-    if (flags & PDF_RENDER_DISPLAY_INVERT) {
+    if ((flags & PDF_RENDER_DISPLAY_INVERT) || (flags & PDF_RENDER_FORMAT_ALPHA8)) {
         pixmap.n = 2;
         pixmap.colorspace = fz_devicegray;
     } else {
@@ -864,30 +3536,48 @@ JNIEXPORT void JNICALL
         pixmap.colorspace = fz_devicebgr;
     }
     pixmap.mask = 0;
+    j = pixmap.w * pixmap.h;
+
+    /* 32 bit output is rendered in place, the smaller formats through
+     * the scratch buffer of the document */
+    if (flags & (PDF_RENDER_FORMAT_RGB565 | PDF_RENDER_FORMAT_ALPHA8)) {
+        if (doc->scratchsize < j * pixmap.n) {
+            if (doc->scratch)
+                fz_free(doc->scratch);
+            governor.pixels += j * pixmap.n - doc->scratchsize;
+            doc->scratchsize = j * pixmap.n;
+            doc->scratch = fz_malloc(doc->scratchsize);
+        }
+        buffer = doc->scratch;
+    } else {
+        buffer = output;
+    }
     pixmap.samples = (void*)buffer;
 
     // white:
-    j = pixmap.w * pixmap.h;
-    for (i=0;i<j;i++)
-        buffer[i] = 0xffffffff;
+    memset(buffer, 0xff, j * pixmap.n);
 
     dev = fz_newdrawdevice(glyphcache, &pixmap);
-    fz_executedisplaylist(page->list, dev, ctm);
+    execute_page(page, dev, ctm, viewbox, (flags & PDF_RENDER_LOD) != 0);
     fz_freedevice(dev);
 
-    if (flags & PDF_RENDER_DISPLAY_INVERT) {
-        unsigned char *pGS = (unsigned char *)buffer;
-        for (i=j-1;i>=0;i--)
-        {
-            buffer[i] = ((jint)pGS[i*2] +
-                        ((jint)pGS[i*2] << 8) +
-                        ((jint)pGS[i*2] << 16) +
-                        ((jint)pGS[i*2 + 1] << 24))
-                        ^ 0xffffffff;
+    if (flags & PDF_RENDER_FORMAT_ALPHA8) {
+        /* ink coverage, the blit puts it over paper */
+        pixelkernels->graytoink(output, (unsigned char *)buffer, j);
+    } else if (flags & PDF_RENDER_FORMAT_RGB565) {
+        if (flags & PDF_RENDER_DISPLAY_INVERT) {
+            /* rendered in gray, see above */
+            pixelkernels->graytorgb565(output, (unsigned char *)buffer, j, 0xffff);
+        } else {
+            pixelkernels->bgratorgb565(output, (unsigned char *)buffer, j);
         }
+    } else if (flags & PDF_RENDER_DISPLAY_INVERT) {
+        /* in place, the gray pixels take the first half of the buffer */
+        pixelkernels->graytoinvertedargb((unsigned int *)buffer, (unsigned char *)buffer, j);
     }
 
-    (*env)->ReleasePrimitiveArrayCritical(env, bufferarray, buffer, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, bufferarray, output, 0);
 
+    TRACE_END(TRACE_CREATEVIEW);
     DEBUG("PdfView.nativeCreateView() done");
 }
@@ -0,0 +1,299 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+/* Pixel kernels, see pixelkernels.h.
+ *
+ * The vectorized kernels do blocks of pixels and leave the rest to the
+ * C ones. The x86 kernels are compiled for their instruction set with
+ * target attributes, so the library still runs on CPUs without it.
+ * The NEON kernels are in pixelkernels_neon.c, which is only compiled
+ * for ARM with NEON support.
+ */
+
+#include "pixelkernels.h"
+
+#if (defined(__x86_64__) || defined(__i386__)) && \
+    (defined(__clang__) || (__GNUC__ > 4) || ((__GNUC__ == 4) && (__GNUC_MINOR__ >= 9)))
+#define HAVE_X86_KERNELS
+#include <immintrin.h>
+#endif
+
+#ifdef HAVE_NEON_KERNELS
+#if defined(__aarch64__)
+/* NEON is always there */
+#elif defined(__ANDROID__)
+#include <cpu-features.h>
+#else
+#include <sys/auxv.h>
+#include <asm/hwcap.h>
+#endif
+#endif
+
+/* plain C */
+
+void pk_graytoinvertedargb_c(unsigned int *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    /* backwards, so it works in place */
+    for (i=n-1;i>=0;i--) {
+        unsigned int g = src[i*2];
+        dst[i] = (g | (g << 8) | (g << 16) | ((unsigned int)src[i*2 + 1] << 24))
+                ^ 0xffffffff;
+    }
+}
+
+void pk_bgratorgb565_c(unsigned short *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i<n;i++) {
+        dst[i] = ((src[i*4 + 2] >> 3) << 11) |
+                 ((src[i*4 + 1] >> 2) << 5) |
+                  (src[i*4] >> 3);
+    }
+}
+
+void pk_graytorgb565_c(unsigned short *dst, const unsigned char *src, int n, unsigned short mask)
+{
+    int i;
+
+    for (i=0;i<n;i++) {
+        unsigned int g = src[i*2];
+        dst[i] = (((g >> 3) << 11) | ((g >> 2) << 5) | (g >> 3)) ^ mask;
+    }
+}
+
+void pk_graytoink_c(unsigned char *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i<n;i++)
+        dst[i] = 255 - src[i*2];
+}
+
+static const pixelkernels_t pixelkernels_c = {
+    "C",
+    pk_graytoinvertedargb_c,
+    pk_bgratorgb565_c,
+    pk_graytorgb565_c,
+    pk_graytoink_c
+};
+
+#ifdef HAVE_X86_KERNELS
+
+/* SSE2 */
+
+__attribute__((target("sse2")))
+static void pk_graytoinvertedargb_sse2(unsigned int *dst, const unsigned char *src, int n)
+{
+    const __m128i lowbytes = _mm_set1_epi16(0x00ff);
+    const __m128i ones = _mm_set1_epi32(-1);
+    int blocks = n / 8, i;
+
+    /* the rest first, then the blocks backwards, so it works in place */
+    pk_graytoinvertedargb_c(dst + blocks * 8, src + blocks * 16, n - blocks * 8);
+    for (i=blocks-1;i>=0;i--) {
+        __m128i ga = _mm_loadu_si128((const __m128i *)(src + i * 16));
+        __m128i g = _mm_and_si128(ga, lowbytes);
+        __m128i gg = _mm_or_si128(g, _mm_slli_epi16(g, 8));
+        /* gray, gray, gray, alpha */
+        _mm_storeu_si128((__m128i *)(dst + i * 8),
+                _mm_xor_si128(_mm_unpacklo_epi16(gg, ga), ones));
+        _mm_storeu_si128((__m128i *)(dst + i * 8 + 4),
+                _mm_xor_si128(_mm_unpackhi_epi16(gg, ga), ones));
+    }
+}
+
+/* four BGRA pixels to RGB565 in the low halves of 32 bit lanes, sign
+ * extended for _mm_packs_epi32() */
+__attribute__((target("sse2")))
+static inline __m128i rgb565_sse2(__m128i p)
+{
+    __m128i v = _mm_and_si128(_mm_srli_epi32(p, 8), _mm_set1_epi32(0xf800));
+    v = _mm_or_si128(v, _mm_and_si128(_mm_srli_epi32(p, 5), _mm_set1_epi32(0x07e0)));
+    v = _mm_or_si128(v, _mm_and_si128(_mm_srli_epi32(p, 3), _mm_set1_epi32(0x001f)));
+    return _mm_srai_epi32(_mm_slli_epi32(v, 16), 16);
+}
+
+__attribute__((target("sse2")))
+static void pk_bgratorgb565_sse2(unsigned short *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i+8<=n;i+=8) {
+        __m128i p0 = _mm_loadu_si128((const __m128i *)(src + i * 4));
+        __m128i p1 = _mm_loadu_si128((const __m128i *)(src + i * 4 + 16));
+        _mm_storeu_si128((__m128i *)(dst + i),
+                _mm_packs_epi32(rgb565_sse2(p0), rgb565_sse2(p1)));
+    }
+    pk_bgratorgb565_c(dst + i, src + i * 4, n - i);
+}
+
+__attribute__((target("sse2")))
+static void pk_graytorgb565_sse2(unsigned short *dst, const unsigned char *src, int n, unsigned short mask)
+{
+    const __m128i lowbytes = _mm_set1_epi16(0x00ff);
+    const __m128i masks = _mm_set1_epi16((short)mask);
+    int i;
+
+    for (i=0;i+8<=n;i+=8) {
+        __m128i g = _mm_and_si128(_mm_loadu_si128((const __m128i *)(src + i * 2)), lowbytes);
+        __m128i v = _mm_slli_epi16(_mm_and_si128(g, _mm_set1_epi16(0xf8)), 8);
+        v = _mm_or_si128(v, _mm_slli_epi16(_mm_and_si128(g, _mm_set1_epi16(0xfc)), 3));
+        v = _mm_or_si128(v, _mm_srli_epi16(g, 3));
+        _mm_storeu_si128((__m128i *)(dst + i), _mm_xor_si128(v, masks));
+    }
+    pk_graytorgb565_c(dst + i, src + i * 2, n - i, mask);
+}
+
+__attribute__((target("sse2")))
+static void pk_graytoink_sse2(unsigned char *dst, const unsigned char *src, int n)
+{
+    const __m128i lowbytes = _mm_set1_epi16(0x00ff);
+    const __m128i ones = _mm_set1_epi32(-1);
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        __m128i g0 = _mm_and_si128(_mm_loadu_si128((const __m128i *)(src + i * 2)), lowbytes);
+        __m128i g1 = _mm_and_si128(_mm_loadu_si128((const __m128i *)(src + i * 2 + 16)), lowbytes);
+        _mm_storeu_si128((__m128i *)(dst + i), _mm_xor_si128(_mm_packus_epi16(g0, g1), ones));
+    }
+    pk_graytoink_c(dst + i, src + i * 2, n - i);
+}
+
+static const pixelkernels_t pixelkernels_sse2 = {
+    "SSE2",
+    pk_graytoinvertedargb_sse2,
+    pk_bgratorgb565_sse2,
+    pk_graytorgb565_sse2,
+    pk_graytoink_sse2
+};
+
+/* AVX2: the packs work within 128 bit lanes, so their results are put
+ * in order with a permute. Widening gray to 32 bit pixels is bound by
+ * the stores, there the SSE2 kernel is as fast or faster.
+ */
+
+__attribute__((target("avx2")))
+static inline __m256i rgb565_avx2(__m256i p)
+{
+    __m256i v = _mm256_and_si256(_mm256_srli_epi32(p, 8), _mm256_set1_epi32(0xf800));
+    v = _mm256_or_si256(v, _mm256_and_si256(_mm256_srli_epi32(p, 5), _mm256_set1_epi32(0x07e0)));
+    v = _mm256_or_si256(v, _mm256_and_si256(_mm256_srli_epi32(p, 3), _mm256_set1_epi32(0x001f)));
+    return _mm256_srai_epi32(_mm256_slli_epi32(v, 16), 16);
+}
+
+__attribute__((target("avx2")))
+static void pk_bgratorgb565_avx2(unsigned short *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        __m256i p0 = _mm256_loadu_si256((const __m256i *)(src + i * 4));
+        __m256i p1 = _mm256_loadu_si256((const __m256i *)(src + i * 4 + 32));
+        __m256i v = _mm256_packs_epi32(rgb565_avx2(p0), rgb565_avx2(p1));
+        _mm256_storeu_si256((__m256i *)(dst + i), _mm256_permute4x64_epi64(v, 0xd8));
+    }
+    pk_bgratorgb565_c(dst + i, src + i * 4, n - i);
+}
+
+__attribute__((target("avx2")))
+static void pk_graytorgb565_avx2(unsigned short *dst, const unsigned char *src, int n, unsigned short mask)
+{
+    const __m256i lowbytes = _mm256_set1_epi16(0x00ff);
+    const __m256i masks = _mm256_set1_epi16((short)mask);
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        __m256i g = _mm256_and_si256(_mm256_loadu_si256((const __m256i *)(src + i * 2)), lowbytes);
+        __m256i v = _mm256_slli_epi16(_mm256_and_si256(g, _mm256_set1_epi16(0xf8)), 8);
+        v = _mm256_or_si256(v, _mm256_slli_epi16(_mm256_and_si256(g, _mm256_set1_epi16(0xfc)), 3));
+        v = _mm256_or_si256(v, _mm256_srli_epi16(g, 3));
+        _mm256_storeu_si256((__m256i *)(dst + i), _mm256_xor_si256(v, masks));
+    }
+    pk_graytorgb565_c(dst + i, src + i * 2, n - i, mask);
+}
+
+__attribute__((target("avx2")))
+static void pk_graytoink_avx2(unsigned char *dst, const unsigned char *src, int n)
+{
+    const __m256i lowbytes = _mm256_set1_epi16(0x00ff);
+    const __m256i ones = _mm256_set1_epi32(-1);
+    int i;
+
+    for (i=0;i+32<=n;i+=32) {
+        __m256i g0 = _mm256_and_si256(_mm256_loadu_si256((const __m256i *)(src + i * 2)), lowbytes);
+        __m256i g1 = _mm256_and_si256(_mm256_loadu_si256((const __m256i *)(src + i * 2 + 32)), lowbytes);
+        __m256i v = _mm256_permute4x64_epi64(_mm256_packus_epi16(g0, g1), 0xd8);
+        _mm256_storeu_si256((__m256i *)(dst + i), _mm256_xor_si256(v, ones));
+    }
+    pk_graytoink_c(dst + i, src + i * 2, n - i);
+}
+
+static const pixelkernels_t pixelkernels_avx2 = {
+    "AVX2",
+    pk_graytoinvertedargb_sse2,
+    pk_bgratorgb565_avx2,
+    pk_graytorgb565_avx2,
+    pk_graytoink_avx2
+};
+
+#endif
+
+#ifdef HAVE_NEON_KERNELS
+static int have_neon(void)
+{
+#if defined(__aarch64__)
+    return 1;
+#elif defined(__ANDROID__)
+    return (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM) &&
+        (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON);
+#else
+    return (getauxval(AT_HWCAP) & HWCAP_NEON) != 0;
+#endif
+}
+#endif
+
+const pixelkernels_t *pixelkernels = &pixelkernels_c;
+
+int pixelkernels_select(int maxlevel)
+{
+    int level = PIXELKERNELS_SCALAR;
+
+    pixelkernels = &pixelkernels_c;
+#ifdef HAVE_X86_KERNELS
+    __builtin_cpu_init();
+    if ((maxlevel >= PIXELKERNELS_SIMD) && __builtin_cpu_supports("sse2")) {
+        pixelkernels = &pixelkernels_sse2;
+        level = PIXELKERNELS_SIMD;
+    }
+    if ((maxlevel >= PIXELKERNELS_AVX2) && __builtin_cpu_supports("avx2")) {
+        pixelkernels = &pixelkernels_avx2;
+        level = PIXELKERNELS_AVX2;
+    }
+#endif
+#ifdef HAVE_NEON_KERNELS
+    if ((maxlevel >= PIXELKERNELS_SIMD) && have_neon()) {
+        pixelkernels = &pixelkernels_neon;
+        level = PIXELKERNELS_SIMD;
+    }
+#endif
+    return level;
+}
@@ -0,0 +1,69 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+/* Pixel kernels: the loops that turn what MuPDF drew into the formats
+ * the Java side shows. There are plain C versions of all of them and
+ * vectorized ones for SSE2 and AVX2 on x86 and for NEON on ARM. The
+ * best ones the CPU supports are picked at run time.
+ *
+ * Gray pixmaps, as MuPDF draws them, have two bytes per pixel: gray
+ * and alpha. Color pixmaps have four: blue, green, red and alpha.
+ */
+
+#ifndef PIXELKERNELS_H
+#define PIXELKERNELS_H
+
+/* kernel sets, from slowest to fastest */
+#define PIXELKERNELS_SCALAR 0
+#define PIXELKERNELS_SIMD 1
+#define PIXELKERNELS_AVX2 2
+
+typedef struct pixelkernels_s pixelkernels_t;
+struct pixelkernels_s
+{
+    const char *name;
+    /* gray to inverted 32 bit ARGB, may work in place (dst == src) */
+    void (*graytoinvertedargb)(unsigned int *dst, const unsigned char *src, int n);
+    /* 32 bit BGRA to RGB565 */
+    void (*bgratorgb565)(unsigned short *dst, const unsigned char *src, int n);
+    /* gray to RGB565, xor'ed with a mask (0xffff inverts) */
+    void (*graytorgb565)(unsigned short *dst, const unsigned char *src, int n, unsigned short mask);
+    /* gray to how much ink there is, i.e. 255 - gray */
+    void (*graytoink)(unsigned char *dst, const unsigned char *src, int n);
+};
+
+/* the kernels in use */
+extern const pixelkernels_t *pixelkernels;
+
+/* Picks the fastest kernels the CPU supports, but at most those of a
+ * level. Returns the level picked.
+ */
+int pixelkernels_select(int maxlevel);
+
+/* the plain C kernels, which the others use for the last few pixels */
+void pk_graytoinvertedargb_c(unsigned int *dst, const unsigned char *src, int n);
+void pk_bgratorgb565_c(unsigned short *dst, const unsigned char *src, int n);
+void pk_graytorgb565_c(unsigned short *dst, const unsigned char *src, int n, unsigned short mask);
+void pk_graytoink_c(unsigned char *dst, const unsigned char *src, int n);
+
+#ifdef HAVE_NEON_KERNELS
+extern const pixelkernels_t pixelkernels_neon;
+#endif
+
+#endif
@@ -0,0 +1,98 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+/* NEON pixel kernels, see pixelkernels.h. The interleaving loads and
+ * stores split gray and alpha or the color channels for free.
+ */
+
+#include <arm_neon.h>
+
+#include "pixelkernels.h"
+
+static void pk_graytoinvertedargb_neon(unsigned int *dst, const unsigned char *src, int n)
+{
+    int blocks = n / 16, i;
+
+    /* the rest first, then the blocks backwards, so it works in place */
+    pk_graytoinvertedargb_c(dst + blocks * 16, src + blocks * 32, n - blocks * 16);
+    for (i=blocks-1;i>=0;i--) {
+        uint8x16x2_t ga = vld2q_u8(src + i * 32);
+        uint8x16x4_t bgra;
+        bgra.val[0] = vmvnq_u8(ga.val[0]);
+        bgra.val[1] = bgra.val[0];
+        bgra.val[2] = bgra.val[0];
+        bgra.val[3] = vmvnq_u8(ga.val[1]);
+        vst4q_u8((unsigned char *)(dst + i * 16), bgra);
+    }
+}
+
+static inline uint16x8_t rgb565_neon(uint8x8_t r, uint8x8_t g, uint8x8_t b)
+{
+    uint16x8_t v = vshll_n_u8(vand_u8(r, vdup_n_u8(0xf8)), 8);
+    v = vorrq_u16(v, vshll_n_u8(vand_u8(g, vdup_n_u8(0xfc)), 3));
+    return vorrq_u16(v, vmovl_u8(vshr_n_u8(b, 3)));
+}
+
+static void pk_bgratorgb565_neon(unsigned short *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        uint8x16x4_t p = vld4q_u8(src + i * 4);
+        vst1q_u16(dst + i, rgb565_neon(vget_low_u8(p.val[2]),
+                vget_low_u8(p.val[1]), vget_low_u8(p.val[0])));
+        vst1q_u16(dst + i + 8, rgb565_neon(vget_high_u8(p.val[2]),
+                vget_high_u8(p.val[1]), vget_high_u8(p.val[0])));
+    }
+    pk_bgratorgb565_c(dst + i, src + i * 4, n - i);
+}
+
+static void pk_graytorgb565_neon(unsigned short *dst, const unsigned char *src, int n, unsigned short mask)
+{
+    uint16x8_t masks = vdupq_n_u16(mask);
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        uint8x16x2_t ga = vld2q_u8(src + i * 2);
+        uint8x8_t lo = vget_low_u8(ga.val[0]);
+        uint8x8_t hi = vget_high_u8(ga.val[0]);
+        vst1q_u16(dst + i, veorq_u16(rgb565_neon(lo, lo, lo), masks));
+        vst1q_u16(dst + i + 8, veorq_u16(rgb565_neon(hi, hi, hi), masks));
+    }
+    pk_graytorgb565_c(dst + i, src + i * 2, n - i, mask);
+}
+
+static void pk_graytoink_neon(unsigned char *dst, const unsigned char *src, int n)
+{
+    int i;
+
+    for (i=0;i+16<=n;i+=16) {
+        uint8x16x2_t ga = vld2q_u8(src + i * 2);
+        vst1q_u8(dst + i, vmvnq_u8(ga.val[0]));
+    }
+    pk_graytoink_c(dst + i, src + i * 2, n - i);
+}
+
+const pixelkernels_t pixelkernels_neon = {
+    "NEON",
+    pk_graytoinvertedargb_neon,
+    pk_bgratorgb565_neon,
+    pk_graytorgb565_neon,
+    pk_graytoink_neon
+};
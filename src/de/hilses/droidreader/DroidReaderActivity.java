@@ -25,23 +25,26 @@ the Free Software Foundation, either version 3 of the License, or
 package de.hilses.droidreader;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.String;
+import java.lang.reflect.Method;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 
 import org.openintents.intents.FileManagerIntents;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.ActivityNotFoundException;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
+import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -53,8 +56,10 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.webkit.WebView;
+import android.widget.AdapterView;
 import android.widget.EditText;
 import android.widget.FrameLayout;
+import android.widget.GridView;
 import android.widget.Toast;
 
 public class DroidReaderActivity extends Activity {
@@ -68,6 +73,10 @@ public class DroidReaderActivity extends Activity {
     private static final int DIALOG_GOTO_PAGE = 3;
     private static final int DIALOG_WELCOME = 4;
     private static final int DIALOG_ENTER_ZOOM = 5;
+    private static final int DIALOG_THUMBNAILS = 6;
+    private static final int DIALOG_SEARCH = 7;
+    private static final int DIALOG_SEARCH_RESULTS = 8;
+    private static final int DIALOG_OUTLINE = 9;
 
     private static final String PREFERENCE_EULA_ACCEPTED = "eula.accepted";
     private static final String PREFERENCES_EULA = "eula";
@@ -84,6 +93,18 @@ public class DroidReaderActivity extends Activity {
     private int mPageNo;
 
     private boolean mDocumentIsOpen = false;
+
+    /**
+     * the last search and the pages it found so far
+     */
+    private String mSearchQuery = null;
+    private DroidReaderSearchAdapter mSearchResults = null;
+
+    /**
+     * the outline entries leading to the level shown in the outline
+     * dialog, empty for the top level
+     */
+    private final ArrayList<PdfOutlineItem> mOutlinePath = new ArrayList<PdfOutlineItem>();
     private boolean mLoadedDocument = false;
     private boolean mWelcomeShown = false;
 
@@ -103,6 +124,7 @@ public class DroidReaderActivity extends Activity {
 
         if(mDocument == null)
             mDocument = new DroidReaderDocument();
+        mDocument.setCacheDir(getCacheDir());
 
         // Initialize the PdfRender engine
         PdfRender.setFontProvider(new DroidReaderFontProvider(this));
@@ -237,6 +259,31 @@ public class DroidReaderActivity extends Activity {
     //    super.onConfigurationChanged(newConfig);
     //}
 
+    /**
+     * Determines the memory budget for the native rendering code. We
+     * give it half of what the system allows for the application's heap.
+     * ActivityManager.getMemoryClass() came with API level 5, so it is
+     * looked up via reflection and the VM's heap limit is used on older
+     * devices.
+     * @return the budget in bytes
+     */
+    private int getMemoryBudget() {
+        long heap = Runtime.getRuntime().maxMemory();
+        try {
+            ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            Method getMemoryClass = ActivityManager.class.getMethod("getMemoryClass");
+            heap = ((Integer) getMemoryClass.invoke(am)).longValue() * 1024 * 1024;
+        } catch (Exception e) {
+            // not available on this platform version, stick to maxMemory()
+        }
+        long budget = heap / 2;
+        if(budget < 4 * 1024 * 1024)
+            budget = 4 * 1024 * 1024;
+        if(budget > Integer.MAX_VALUE)
+            budget = Integer.MAX_VALUE;
+        return (int) budget;
+    }
+
     private void readPreferences() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         DisplayMetrics metrics = new DisplayMetrics();
@@ -261,13 +308,16 @@ public class DroidReaderActivity extends Activity {
             mDocument.setDpi(dpi, dpi);
         }
 
-        if(prefs.getBoolean("tilesize_by_factor", true)) {
+        if(prefs.getBoolean("tilesize_auto", true)) {
+            // the document measures how fast it renders
+            mDocument.setTileAuto();
+        } else if(prefs.getBoolean("tilesize_by_factor", true)) {
             // set the tile size for rendering by factor
             Float factor = Float.parseFloat(prefs.getString("tilesize_factor", "1.5"));
             mDocument.setTileMax((int) (metrics.widthPixels * factor), (int) (metrics.heightPixels * factor));
         } else {
             int tilesize_x = Integer.parseInt(prefs.getString("tilesize_x", "640"));
-            int tilesize_y = Integer.parseInt(prefs.getString("tilesize_x", "480"));
+            int tilesize_y = Integer.parseInt(prefs.getString("tilesize_y", "480"));
             if(metrics.widthPixels < metrics.heightPixels) {
                 mDocument.setTileMax(tilesize_x, tilesize_y);
             } else {
@@ -275,10 +325,25 @@ public class DroidReaderActivity extends Activity {
             }
         }
 
+        int glyphcache = Integer.parseInt(prefs.getString("glyphcache_size", "1024"));
+        if((glyphcache < 64) || (glyphcache > 65536))
+            glyphcache = 1024; // sanity check fallback
+        PdfRender.setGlyphCacheSize(glyphcache * 1024);
+
+        PdfRender.fitzMemory = getMemoryBudget();
+
         boolean invert = prefs.getBoolean("invert_display", false);
         mDocument.setDisplayInvert(invert);
         mReaderView.setDisplayInvert(invert);
 
+        mDocument.setLevelOfDetail(prefs.getBoolean("level_of_detail", true));
+        mDocument.setInteractive(prefs.getBoolean("interactive_quality", true));
+
+        int format = Integer.parseInt(prefs.getString("pixel_format", "3"));
+        if((format < PdfView.FORMAT_ARGB_8888) || (format > PdfView.FORMAT_AUTO))
+            format = PdfView.FORMAT_AUTO; // sanity check fallback
+        mDocument.setPixelFormat(format);
+
         if (prefs.getBoolean("full_screen",false)) {
             this.getWindow().addFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
         } else {
@@ -286,6 +351,8 @@ public class DroidReaderActivity extends Activity {
         }
 
         mDocument.mHorizontalScrollLock = prefs.getBoolean("horizontal_scroll_lock",false);
+        mDocument.setContinuous(prefs.getBoolean("continuous_scroll", false));
+        DroidReaderTrace.setEnabled(prefs.getBoolean("trace", false));
     }
 
     /** Creates the menu items */
@@ -421,6 +488,20 @@ public class DroidReaderActivity extends Activity {
         case R.id.goto_ask:
             showDialog(DIALOG_GOTO_PAGE);
             return true;
+        case R.id.goto_thumbnails:
+            if (mDocumentIsOpen)
+                showDialog(DIALOG_THUMBNAILS);
+            return true;
+        case R.id.goto_search:
+            if (mDocumentIsOpen)
+                showDialog(DIALOG_SEARCH);
+            return true;
+        case R.id.goto_outline:
+            if (mDocumentIsOpen) {
+                mOutlinePath.clear();
+                showOutline();
+            }
+            return true;
 
         // File menu
 
@@ -477,6 +558,8 @@ public class DroidReaderActivity extends Activity {
             }
             break;
         case REQUEST_CODE_OPTION_DIALOG:
+            // CID font settings might have changed
+            PdfRender.flushFontCache();
             readPreferences();
             tryLoadLastFile();
             break;
@@ -575,6 +658,9 @@ public class DroidReaderActivity extends Activity {
         boolean prev = false;
         boolean next = false;
 
+        if (mDocumentIsOpen && followLink(X, Y))
+            return;
+
         if (mDocumentIsOpen) {
             left = width * (float)0.25;
             right = width * (float)0.75;
@@ -596,6 +682,7 @@ public class DroidReaderActivity extends Activity {
                                     mDocument.mPage.mMediabox[3]-mDocument.mPage.mMediabox[1]));
                 Log.d("DroidReaderMetrics",String.format("Display size = (%d,%d)",mDocument.mDisplaySizeX,mDocument.mDisplaySizeY));
                 Log.d("DroidReaderMetrics",String.format("DPI = (%d, %d)",mDocument.mDpiX,mDocument.mDpiY));
+                mDocument.loadContentBox();
                 Log.d("DroidReaderMetrics",String.format("Content size = (%2.0f,%2.0f)",
                                     mDocument.mPage.mContentbox[2]-mDocument.mPage.mContentbox[0],
                                     mDocument.mPage.mContentbox[3]-mDocument.mPage.mContentbox[1]));
@@ -603,6 +690,28 @@ public class DroidReaderActivity extends Activity {
                                     mDocument.mPage.mContentbox[0],mDocument.mPage.mContentbox[1]));
                 Log.d("DroidReaderMetrics",String.format("Document offset = (%d,%d)",
                                     mDocument.mOffsetX,mDocument.mOffsetY));
+                int[] glyphs = PdfRender.getGlyphCacheStats();
+                Log.d("DroidReaderMetrics",String.format("Glyph cache: %d hits, %d misses, %d evictions, %d/%d bytes in %d glyphs",
+                                    glyphs[PdfRender.GLYPHCACHE_HITS], glyphs[PdfRender.GLYPHCACHE_MISSES],
+                                    glyphs[PdfRender.GLYPHCACHE_EVICTIONS], glyphs[PdfRender.GLYPHCACHE_BYTES],
+                                    glyphs[PdfRender.GLYPHCACHE_LIMIT], glyphs[PdfRender.GLYPHCACHE_ENTRIES]));
+                int[] mem;
+                // the render thread may be changing the page lists and the store
+                synchronized(mDocument.mDocumentLock) {
+                    mem = mDocument.mDocument.getMemoryStats();
+                }
+                Log.d("DroidReaderMetrics",String.format("Memory: %d/%d bytes (lists %d, store %d, glyphs %d, pixels %d), MuPDF total %d, peak %d",
+                                    mem[PdfDocument.MEMORY_LISTS] + mem[PdfDocument.MEMORY_STORE]
+                                    + mem[PdfDocument.MEMORY_GLYPHS] + mem[PdfDocument.MEMORY_PIXELS],
+                                    mem[PdfDocument.MEMORY_BUDGET], mem[PdfDocument.MEMORY_LISTS],
+                                    mem[PdfDocument.MEMORY_STORE], mem[PdfDocument.MEMORY_GLYPHS],
+                                    mem[PdfDocument.MEMORY_PIXELS], mem[PdfDocument.MEMORY_USED],
+                                    mem[PdfDocument.MEMORY_PEAK]));
+                for (String line : DroidReaderMetrics.toText().split("\n"))
+                    Log.d("DroidReaderMetrics", line);
+                Log.d("DroidReaderMetrics", DroidReaderMetrics.toJson());
+                if (DroidReaderTrace.ON)
+                    writeTrace();
             }
             if (next) {
                 if(mDocument.havePage(1, true))
@@ -614,6 +723,44 @@ public class DroidReaderActivity extends Activity {
         }
     }
 
+    /**
+     * follows the link at a tapped position, if there is one
+     * @return whether there was a link
+     */
+    protected boolean followLink(float X, float Y) {
+        PdfLink link = mDocument.findLink(X, Y);
+        if (link == null)
+            return false;
+        if (link.page > 0) {
+            openPage(link.page, false);
+        } else if (link.uri != null) {
+            try {
+                startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(link.uri)));
+            } catch (ActivityNotFoundException e) {
+                Toast.makeText(this, R.string.error_no_link_viewer,
+                        Toast.LENGTH_SHORT).show();
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * writes the recorded trace events to the SD card
+     */
+    protected void writeTrace() {
+        File file = new File(Environment.getExternalStorageDirectory(), "droidreader-trace.json");
+        try {
+            DroidReaderTrace.dump(file);
+            Toast.makeText(this, getString(R.string.trace_written, file.getPath()),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, getString(R.string.error_trace, e.getMessage()),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
     protected Dialog onCreateDialog(int id) {
         switch(id) {
         case DIALOG_GET_PASSWORD:
@@ -711,10 +858,173 @@ public class DroidReaderActivity extends Activity {
                 });
             AlertDialog zoomDialog = zoomBuilder.create();
             return zoomDialog;
+        case DIALOG_THUMBNAILS:
+            AlertDialog.Builder thumbnailBuilder = new AlertDialog.Builder(this);
+            GridView grid = (GridView) getLayoutInflater().inflate(R.layout.thumbnaildialog, null);
+            grid.setAdapter(new DroidReaderThumbnailAdapter(mDocument, getLayoutInflater()));
+            thumbnailBuilder.setView(grid);
+            thumbnailBuilder.setNegativeButton(R.string.button_page_cancel,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        dialog.cancel();
+                    }
+                });
+            final AlertDialog thumbnailDialog = thumbnailBuilder.create();
+            grid.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                    thumbnailDialog.dismiss();
+                    DroidReaderActivity.this.openPage(position + 1, false);
+                }
+            });
+            return thumbnailDialog;
+        case DIALOG_SEARCH:
+            AlertDialog.Builder searchBuilder = new AlertDialog.Builder(this);
+            searchBuilder.setMessage(R.string.prompt_search);
+            View searchinput = getLayoutInflater().inflate(R.layout.searchdialog,
+                    (ViewGroup) findViewById(R.id.input_search));
+            searchBuilder.setView(searchinput);
+            searchBuilder.setPositiveButton(R.string.button_search,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        DroidReaderActivity.this.search(
+                                ((EditText)
+                                        ((AlertDialog) dialog).findViewById(R.id.input_search))
+                                        .getText()
+                                        .toString());
+                        dialog.dismiss();
+                    }
+                });
+            searchBuilder.setNegativeButton(R.string.button_page_cancel,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        DroidReaderActivity.this.mDocument.mSearch.cancel();
+                        DroidReaderActivity.this.mDocument.setSearchQuery(null);
+                        dialog.cancel();
+                    }
+                });
+            AlertDialog searchDialog = searchBuilder.create();
+            return searchDialog;
+        case DIALOG_SEARCH_RESULTS:
+            AlertDialog.Builder resultBuilder = new AlertDialog.Builder(this);
+            resultBuilder.setTitle(mSearchQuery);
+            final DroidReaderSearchAdapter results = mSearchResults;
+            resultBuilder.setAdapter(results,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        int page = results.getPage(which);
+                        if (page > 0)
+                            DroidReaderActivity.this.openPage(page, false);
+                        dialog.dismiss();
+                    }
+                });
+            resultBuilder.setNegativeButton(R.string.button_page_cancel,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        DroidReaderActivity.this.mDocument.mSearch.cancel();
+                        dialog.cancel();
+                    }
+                });
+            return resultBuilder.create();
+        case DIALOG_OUTLINE:
+            return createOutlineDialog();
         }
         return null;
     }
 
+    /**
+     * shows the level of the outline that mOutlinePath leads to
+     */
+    protected void showOutline() {
+        if (mOutlinePath.isEmpty() && (mDocument.getOutline(null).length == 0)) {
+            Toast.makeText(this, R.string.outline_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // the dialog is bound to one level of the outline
+        removeDialog(DIALOG_OUTLINE);
+        showDialog(DIALOG_OUTLINE);
+    }
+
+    /**
+     * Builds the dialog for one level of the outline. Choosing an entry
+     * with sub-entries shows them, with the entry itself on top so
+     * its page can still be opened.
+     */
+    protected Dialog createOutlineDialog() {
+        final PdfOutlineItem parent = mOutlinePath.isEmpty() ?
+                null : mOutlinePath.get(mOutlinePath.size() - 1);
+        final PdfOutlineItem[] children = mDocument.getOutline(parent);
+        final int first = ((parent != null) && (parent.page > 0)) ? 1 : 0;
+
+        String[] titles = new String[children.length + first];
+        if (first > 0)
+            titles[0] = parent.title;
+        for (int i = 0; i < children.length; i++)
+            titles[i + first] = children[i].title + (children[i].hasChildren ? " \u00bb" : "");
+
+        AlertDialog.Builder outlineBuilder = new AlertDialog.Builder(this);
+        if (parent == null)
+            outlineBuilder.setTitle(R.string.menu_goto_outline);
+        else
+            outlineBuilder.setTitle(parent.title);
+        outlineBuilder.setItems(titles,
+            new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    dialog.dismiss();
+                    PdfOutlineItem item = (which < first) ? parent : children[which - first];
+                    if ((item != parent) && item.hasChildren) {
+                        mOutlinePath.add(item);
+                        showOutline();
+                    } else if (item.page > 0) {
+                        DroidReaderActivity.this.openPage(item.page, false);
+                    }
+                }
+            });
+        if (parent != null)
+            outlineBuilder.setNeutralButton(R.string.button_outline_up,
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        dialog.dismiss();
+                        mOutlinePath.remove(mOutlinePath.size() - 1);
+                        showOutline();
+                    }
+                });
+        outlineBuilder.setNegativeButton(R.string.button_page_cancel,
+            new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int id) {
+                    dialog.cancel();
+                }
+            });
+        return outlineBuilder.create();
+    }
+
+    /**
+     * Starts searching for the given text and shows the pages with hits
+     * as they are found, so the user can pick one of them. The text is
+     * highlighted on the pages.
+     */
+    protected void search(String query) {
+        if (PdfText.normalizeQuery(query).length() == 0)
+            return;
+        mSearchQuery = query;
+        mSearchResults = new DroidReaderSearchAdapter(this, getLayoutInflater());
+        mDocument.setSearchQuery(query);
+        mDocument.startSearch(query, mSearchResults);
+        // the dialog is bound to the results of one search
+        removeDialog(DIALOG_SEARCH_RESULTS);
+        showDialog(DIALOG_SEARCH_RESULTS);
+    }
+
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog) {
+        super.onPrepareDialog(id, dialog);
+        if (id == DIALOG_THUMBNAILS) {
+            // the document might have changed since the dialog was created
+            GridView grid = (GridView) dialog.findViewById(R.id.thumbnail_grid);
+            ((DroidReaderThumbnailAdapter) grid.getAdapter()).notifyDataSetChanged();
+            grid.setSelection(mDocument.mPage.no - 1);
+        }
+    }
+
     AlertDialog showHtmlDialog(int titleResource, String htmlFile) {
         AlertDialog.Builder htmlBuilder = new AlertDialog.Builder(this);
         WebView htmlWebView = new WebView(this);
@@ -732,93 +1042,54 @@ public class DroidReaderActivity extends Activity {
         return htmlDialog;
     }
 
+    /**
+     * Stores the view details of the current document, or restores them
+     * when it is opened. Writing happens in the background.
+     * @param doWrite true to store, false to restore
+     */
     protected void readOrWriteDB(boolean doWrite) {
-        SQLiteDatabase pdfDB = null;
-        try {
-            pdfDB = this.openOrCreateDatabase("DroidReaderPDFDB", MODE_PRIVATE, null );
-            pdfDB.execSQL(	"CREATE TABLE IF NOT EXISTS LastReadPoint (" +
-                            "Filename VARCHAR, Zoom DECIMAL(10,5), " +
-                            "Rotation INTEGER, Page INTEGER, " +
-                            "OffsetX INTEGER, OffsetY INTEGER, " +
-                            "MarginOffsetX INTEGER, MarginOffsetY INTEGER, " +
-                            "ContentFitMode INTEGER, MemoryMode INTEGER, " +
-                            "Password VARCHAR );");
-            Cursor c = pdfDB.rawQuery ("SELECT * FROM LastReadPoint WHERE Filename = '" + mFilename + "'", null);
-
-            // c shouldn't be null, if it is then there's an external problem
-            if (c != null) {
-                if (c.getCount() > 0) {
-                    // There's already an entry for this file.
-                    c.moveToFirst();
-                    if (doWrite) {
-                        pdfDB.execSQL("UPDATE LastReadPoint SET " +
-                            "Zoom = " + mDocument.mZoom + " , " +
-                            "Rotation = " + mDocument.mRotation + " , " +
-                            "Page = " + mPageNo + " , " +
-                            "OffsetX = " + mDocument.mOffsetX + " , " +
-                            "OffsetY = " + mDocument.mOffsetY + " , " +
-                            "MarginOffsetX = " + mDocument.mMarginOffsetX + " , " +
-                            "MarginOffsetY = " + mDocument.mMarginOffsetY + " , " +
-                            "ContentFitMode = " + mDocument.mContentFitMode + " , MemoryMode = 0 ," +
-                            "Password = '" + mPassword + "' " +
-                            "WHERE Filename = '" + mFilename + "';");
-                    } else {
-                        mDocument.mZoom = c.getFloat(c.getColumnIndex("Zoom"));
-                        mDocument.mRotation = c.getInt(c.getColumnIndex("Rotation"));
-                        mPageNo = c.getInt(c.getColumnIndex("Page"));
-                        if (mPageNo == 0)
-                            mPageNo = 1;
-//                        mOffsetX = c.getInt(c.getColumnIndex("OffsetX"));
-//                        mOffsetY = c.getInt(c.getColumnIndex("OffsetY"));
-                        mDocument.mMarginOffsetX = c.getInt(c.getColumnIndex("MarginOffsetX"));
-                        mDocument.mMarginOffsetY = c.getInt(c.getColumnIndex("MarginOffsetY"));
-                        mDocument.mContentFitMode = c.getInt(c.getColumnIndex("ContentFitMode"));
+        if (mFilename == null)
+            return;
+        DroidReaderReadingState store = DroidReaderReadingState.get(this);
+        String fingerprint = DroidReaderFingerprint.get(mFilename);
+        if (doWrite) {
+            DroidReaderReadingState.Entry entry =
+                new DroidReaderReadingState.Entry(mFilename, fingerprint);
+            entry.zoom = mDocument.mZoom;
+            entry.rotation = mDocument.mRotation;
+            entry.page = mPageNo;
+            entry.offsetX = mDocument.mOffsetX;
+            entry.offsetY = mDocument.mOffsetY;
+            entry.marginOffsetX = mDocument.mMarginOffsetX;
+            entry.marginOffsetY = mDocument.mMarginOffsetY;
+            entry.contentFitMode = mDocument.mContentFitMode;
+            entry.password = mPassword;
+            store.write(entry);
+        } else {
+            DroidReaderReadingState.Entry entry = store.read(mFilename, fingerprint);
+            if (entry == null) {
+                // No entry found for this file: use the defaults
+                entry = new DroidReaderReadingState.Entry(mFilename, fingerprint);
+            }
+            mDocument.mZoom = entry.zoom;
+            mDocument.mRotation = entry.rotation;
+            mPageNo = entry.page;
+            if (mPageNo == 0)
+                mPageNo = 1;
+//            mOffsetX = entry.offsetX;
+//            mOffsetY = entry.offsetY;
+            mDocument.mMarginOffsetX = entry.marginOffsetX;
+            mDocument.mMarginOffsetY = entry.marginOffsetY;
+            mDocument.mContentFitMode = entry.contentFitMode;
 
 // Don't restore the password. This would be a bit of a security nightmare,
 // because documents would be unsecured after the password was entered once -
 // and there wouldn't be any way to re-secure them. Presumably people who
 // use password-protected PDFs will prefer to enter the password whenever they
 // open the document.
-//						if (mPassword.length() == 0) {
-//							mPassword = c.getString(c.getColumnIndex("Password"));
-//						}
-                    }
-                } else {
-                    // No entry found for this file.
-                    if (doWrite) {
-                        pdfDB.execSQL("INSERT INTO LastReadPoint VALUES ('" +
-                            mFilename + "', " +
-                            mDocument.mZoom + " , " +
-                            mDocument.mRotation + " , " +
-                            mPageNo + " , " +
-                            mDocument.mOffsetX + " , " +
-                            mDocument.mOffsetY + " , " +
-                            mDocument.mMarginOffsetX + " , " +
-                            mDocument.mMarginOffsetY + " , " +
-                            mDocument.mContentFitMode + " , 0 , '" +
-                            mPassword + "');" );
-                    } else {
-                        // reading: Set some default values
-                        mDocument.mZoom = DroidReaderDocument.ZOOM_FIT;
-                        mDocument.mRotation = 0;
-//                        mOffsetX = 0;
-//                        mOffsetY = 0;
-                        mDocument.mMarginOffsetX = 0;
-                        mDocument.mMarginOffsetY = 0;
-                        mDocument.mContentFitMode = 0;
-                        mPageNo = 1;
-                    }
-                }
-                c.close();
-            } else {
-                if (LOG) Log.d ("DroidReaderDB", "Problem here... no Cursor, query must have failed");
-            }
-        } catch (SQLiteException se ) {
-            Log.e(getClass().getSimpleName(), "Could not create or open the database");
-        } finally {
-            if (pdfDB != null) {
-                pdfDB.close();
-            }
+//            if (mPassword.length() == 0) {
+//                mPassword = entry.password;
+//            }
         }
     }
 }
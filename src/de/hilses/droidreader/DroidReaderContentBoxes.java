@@ -0,0 +1,134 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Keeps the content boxes of the pages of one document, so fitting
+ * to the content does not need to look at the page content again once
+ * a page has been visited. The boxes are stored in a file in the
+ * cache directory. New boxes are appended to it as they are found.
+ */
+class DroidReaderContentBoxes {
+	private static final String TAG = "DroidReaderContentBoxes";
+	protected final static boolean LOG = false;
+
+	/**
+	 * page number -> float[4] content box
+	 */
+	protected final HashMap<Integer,float[]> mBoxes = new HashMap<Integer,float[]>();
+
+	/**
+	 * the file the boxes are stored in, null if we can't store them
+	 */
+	protected File mFile;
+
+	/**
+	 * Loads the content boxes known for a document
+	 * @param cacheDir the directory to keep the file in, may be null
+	 * @param filename the PDF file
+	 */
+	DroidReaderContentBoxes(File cacheDir, String filename) {
+		if(cacheDir == null)
+			return;
+		mFile = new File(cacheDir, "contentbox-" + DroidReaderDocument.cacheKey(filename));
+		load();
+	}
+
+	private void load() {
+		if(!mFile.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			while(true) {
+				int page = in.readInt();
+				float[] box = new float[4];
+				for(int i = 0; i < 4; i++)
+					box[i] = in.readFloat();
+				mBoxes.put(page, box);
+			}
+		} catch (EOFException e) {
+			// done reading
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read " + mFile + ": " + e.getMessage());
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if(LOG) Log.d(TAG, "loaded " + mBoxes.size() + " content boxes from " + mFile);
+	}
+
+	/**
+	 * Looks up the content box of a page
+	 * @param page the page number
+	 * @param box float[4] that is set to the content box if it is known
+	 * @return true if the content box was known
+	 */
+	boolean get(int page, float[] box) {
+		float[] known = mBoxes.get(page);
+		if(known == null)
+			return false;
+		System.arraycopy(known, 0, box, 0, 4);
+		return true;
+	}
+
+	/**
+	 * Remembers the content box of a page
+	 * @param page the page number
+	 * @param box the content box as float[4]
+	 */
+	void put(int page, float[] box) {
+		mBoxes.put(page, box.clone());
+		if(mFile == null)
+			return;
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(mFile, true));
+			out.writeInt(page);
+			for(int i = 0; i < 4; i++)
+				out.writeFloat(box[i]);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot write " + mFile + ": " + e.getMessage());
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
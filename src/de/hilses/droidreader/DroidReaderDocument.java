@@ -1,7 +1,15 @@
 package de.hilses.droidreader;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.util.Log;
 
 public class DroidReaderDocument {
@@ -59,6 +67,7 @@ public class DroidReaderDocument {
 
 				if(mRun) {
 					boolean doRender = true;
+					if(DroidReaderTrace.ON) DroidReaderTrace.begin("lazySleep");
 					do {
 						if(mLazyStart > 0) {
 							try {
@@ -69,28 +78,77 @@ public class DroidReaderDocument {
 							}
 						}
 					} while(doRender == false);
+					if(DroidReaderTrace.ON) DroidReaderTrace.end("lazySleep");
+				}
+
+				if(mRun && mRefineOnly && isMoving()) {
+					// the preview stays until the motion is over
+					newRenderJob(IDLE_DELAY);
+					continue;
 				}
 
 				if(mRun) {
 					if(LOG) Log.d(TAG, "now rendering the current render job");
+					// renders during motion are previews, refined when it is over
+					float scale = isMoving() ? INTERACTIVE_SCALE : 1;
+					mRefineOnly = false;
+					long waitStart = System.nanoTime();
+					if(DroidReaderTrace.ON) DroidReaderTrace.begin("queueWait");
 					synchronized(mDocumentLock) {
-						if(mDocument.mHandle != 0 && mPage.mHandle != 0) {
+						DroidReaderMetrics.QUEUE_WAIT.record(DroidReaderMetrics.micros(waitStart));
+						if(DroidReaderTrace.ON) {
+							DroidReaderTrace.end("queueWait");
+							DroidReaderTrace.begin("render");
+						}
+						if(mContinuous) {
+							if(mDocument.mHandle != 0 && mPage.mHandle != 0)
+								renderContinuous(scale);
+						} else if(mDocument.mHandle != 0 && mPage.mHandle != 0) {
 							if(mMetadataDirty) {
 								calcPageMetadata();
 							}
+							if(currentZoomBucket() > mPage.zoomBucket) {
+								// images of the page need a higher resolution now
+								int no = mPage.no;
+								int bucket = mPage.zoomBucket;
+								try {
+									loadPage(mPage, no, currentZoomBucket());
+								} catch (PageLoadException e) {
+									Log.e(TAG, "cannot load page "+no+": "+e.getMessage());
+									// keep showing the page as it was
+									try {
+										loadPage(mPage, no, bucket);
+									} catch (PageLoadException e2) {
+										Log.e(TAG, "cannot load page "+no+" again: "+e2.getMessage());
+									}
+								}
+							}
+							if(mTileAuto)
+								tuneTileSize(mPage, mPageSizeX, mPageSizeY, mView, 1);
 							calcCenteredViewBox();
+							updateHighlights();
 							try {
 								if(LOG) Log.d(TAG, "now rendering: "+mViewBox.toShortString());
-								mView.render(mDocument, mPage, mViewBox, mPageMatrix);
+								if(mPage.mHandle != 0) {
+									long start = System.nanoTime();
+									mView.render(mDocument, mPage, mViewBox, mPageMatrix, scale);
+									recordRender(mPage, mViewBox, scale, start);
+								}
 							} catch (PageRenderException e) {
 								// TODO: error handling
 							}
 						}
 						mHavePixmap = true;
+						if(DroidReaderTrace.ON) DroidReaderTrace.end("render");
 					}
 
 					if(LOG) Log.d(TAG, "now alerting the RenderListener");
 					mRenderListener.onNewRenderedPixmap();
+
+					if(scale < 1) {
+						mRefineOnly = true;
+						newRenderJob(IDLE_DELAY);
+					}
 				}
 			}
 			if(LOG) Log.d(TAG, "shutting down.");
@@ -120,8 +178,40 @@ public class DroidReaderDocument {
 
 	protected static final int RENDER_LAZY = 250;
 
+	/**
+	 * the scale of the previews rendered during motion
+	 */
+	static final float INTERACTIVE_SCALE = 0.5f;
+
+	/**
+	 * how long after the last motion a preview is refined, in ms
+	 */
+	static final int IDLE_DELAY = 300;
+
 	protected static final int PAGE_LAST = -1;
 
+	/**
+	 * how many pages can be shown at once in continuous mode
+	 */
+	protected static final int NUM_SLOTS = 3;
+
+	/**
+	 * the space between pages in continuous mode, in pixels
+	 */
+	protected static final int PAGE_GAP = 8;
+
+	/**
+	 * a page that is shown in continuous mode, with its own rendered pixmap
+	 */
+	static class PageSlot {
+		final PdfPage mPage = new PdfPage();
+		final PdfView mView = new PdfView();
+		final Matrix mMatrix = new Matrix();
+		int mSizeX = 0;
+		int mSizeY = 0;
+		boolean mHavePixmap = false;
+	}
+
 	protected RenderThread mRenderThread = null;
 
 	final PdfDocument mDocument = new PdfDocument();
@@ -137,6 +227,12 @@ public class DroidReaderDocument {
 	int mDpiY = 160;
 	int mTileMaxX = 1024;
 	int mTileMaxY = 1024;
+	/**
+	 * whether mTileMaxX and mTileMaxY are chosen by mTileTuner
+	 */
+	boolean mTileAuto = false;
+	final DroidReaderTileTuner mTileTuner = new DroidReaderTileTuner();
+	private final int[] mTileSize = new int[2];
 	int mRotation = 0;
 
 	int mOffsetX = 0;
@@ -158,8 +254,108 @@ public class DroidReaderDocument {
 
     boolean mHorizontalScrollLock = false;
 
+	/**
+	 * whether renders during scrolling, flinging and zooming are
+	 * previews at INTERACTIVE_SCALE
+	 */
+	boolean mInteractive = false;
+	/**
+	 * when the display last moved, by System.nanoTime()
+	 */
+	volatile long mLastMotion = 0;
+	/**
+	 * whether the queued render job only refines a preview
+	 */
+	volatile boolean mRefineOnly = false;
+
+	/**
+	 * whether pages are shown below each other instead of one at a time.
+	 * In continuous mode, mPage is the page in the middle of the display
+	 * and mOffsetY is relative to its top.
+	 */
+	boolean mContinuous = false;
+	final PageSlot[] mSlots = new PageSlot[NUM_SLOTS];
+	{
+		for(int i = 0; i < NUM_SLOTS; i++)
+			mSlots[i] = new PageSlot();
+	}
+	/**
+	 * the position of the display in the whole document in continuous mode
+	 */
+	int mScrollY = 0;
+	/**
+	 * width and height of each page in points, after applying the page's
+	 * own rotation. 0 for pages that have not been opened yet.
+	 */
+	float[] mPageSizes = null;
+	/**
+	 * the top of each page in pixels, one more entry for the end of the
+	 * last page
+	 */
+	int[] mPageTops = null;
+	boolean mLayoutDirty = true;
+	/**
+	 * set when the display should move to mPage with the next layout
+	 */
+	boolean mScrollToPage = true;
+
 	RenderListener mRenderListener = new DummyRenderListener();
 
+	/**
+	 * directory for data we keep about documents, may be null
+	 */
+	File mCacheDir = null;
+	/**
+	 * known content boxes of the pages of the open document
+	 */
+	DroidReaderContentBoxes mContentBoxes = null;
+	/**
+	 * thumbnails of the pages of the open document
+	 */
+	DroidReaderThumbnails mThumbnails = null;
+	/**
+	 * the word index of the open document
+	 */
+	DroidReaderSearchIndex mSearchIndex = null;
+	/**
+	 * searches the text of the open document
+	 */
+	final DroidReaderSearch mSearch = new DroidReaderSearch(this);
+
+	/**
+	 * the text that is highlighted, null if nothing is searched for
+	 */
+	String mSearchQuery = null;
+	/**
+	 * the page mHighlights belong to
+	 */
+	int mHighlightPage = 0;
+	/**
+	 * where mSearchQuery is found on mHighlightPage, in page coordinates
+	 */
+	ArrayList<RectF> mHighlights = null;
+
+	/**
+	 * how many pages we keep the links of
+	 */
+	static final int LINK_CACHE_PAGES = 8;
+
+	/**
+	 * how many bytes the display list files of all documents may take
+	 */
+	static final long LIST_CACHE_LIMIT = 16 * 1024 * 1024;
+	/**
+	 * the links of recently tapped pages, least recently used first
+	 */
+	final LinkedHashMap<Integer,PdfLinks> mLinks =
+		new LinkedHashMap<Integer,PdfLinks>(LINK_CACHE_PAGES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,PdfLinks> eldest) {
+				return size() > LINK_CACHE_PAGES;
+			}
+		};
+
 	final Object mDocumentLock = new Object();
 
 	void open(String filename, String password, int pageNo)
@@ -169,9 +365,35 @@ public class DroidReaderDocument {
 		mOffsetX = mMarginOffsetX;
 		mOffsetY = mMarginOffsetY;
 		synchronized(mDocumentLock) {
+			closeSlots();
 			mPage.close();
-			mDocument.open(filename, password);
-			mPage.open(mDocument, pageNo, mDocument.isMemoryHog());
+			long start = System.nanoTime();
+			if(DroidReaderTrace.ON) DroidReaderTrace.begin("openDocument");
+			try {
+				mDocument.open(filename, password);
+			} finally {
+				if(DroidReaderTrace.ON) DroidReaderTrace.end("openDocument");
+			}
+			DroidReaderMetrics.OPEN_TIME.record(DroidReaderMetrics.micros(start));
+			openListCache(filename);
+			mTileTuner.forgetPages();
+			mPageSizes = new float[2 * mDocument.pagecount];
+			mPageTops = null;
+			mContentBoxes = new DroidReaderContentBoxes(mCacheDir, filename);
+			if(mThumbnails != null)
+				mThumbnails.stop();
+			mThumbnails = new DroidReaderThumbnails(this, mCacheDir, filename);
+			mSearch.cancel();
+			if(mSearchIndex != null)
+				mSearchIndex.stop();
+			mSearchIndex = new DroidReaderSearchIndex(this, mCacheDir, filename);
+			mSearchIndex.start();
+			mHighlightPage = 0;
+			mHighlights = null;
+			mLinks.clear();
+			loadPage(mPage, pageNo, currentZoomBucket());
+			rememberPageSize(mPage);
+			mScrollToPage = true;
 		}
         if (mContentFitMode != CONTENT_FIT_NONE)
             calcContentFit();
@@ -180,18 +402,34 @@ public class DroidReaderDocument {
 		render(false);
 	}
 
+	/**
+	 * opens a page for display and records how long that took
+	 */
+	private void loadPage(PdfPage page, int no, int zoomBucket) throws PageLoadException {
+		long start = System.nanoTime();
+		page.open(mDocument, no, 0, zoomBucket);
+		DroidReaderMetrics.pageOpened(page, start);
+	}
+
 	void openPage(int no, boolean isRelative)
 	throws PageLoadException
 	{
 		if(LOG) Log.d(TAG, "opening page "+(isRelative?"(rel) ":"(abs) ")+no);
 		mOffsetX = mMarginOffsetX;
 		mOffsetY = mMarginOffsetY;
-		synchronized(mDocumentLock) {
-			int realPageNo = ((isRelative ? mPage.no : 0) + no);
-			if(!isRelative && (realPageNo == PAGE_LAST))
-				realPageNo = mDocument.pagecount;
-			mPage.close();
-			mPage.open(mDocument, realPageNo, mDocument.isMemoryHog());
+		if(DroidReaderTrace.ON) DroidReaderTrace.begin("openPage");
+		try {
+			synchronized(mDocumentLock) {
+				int realPageNo = ((isRelative ? mPage.no : 0) + no);
+				if(!isRelative && (realPageNo == PAGE_LAST))
+					realPageNo = mDocument.pagecount;
+				mPage.close();
+				loadPage(mPage, realPageNo, currentZoomBucket());
+				rememberPageSize(mPage);
+				mScrollToPage = true;
+			}
+		} finally {
+			if(DroidReaderTrace.ON) DroidReaderTrace.end("openPage");
 		}
         if (mContentFitMode != CONTENT_FIT_NONE)
             calcContentFit();
@@ -200,6 +438,13 @@ public class DroidReaderDocument {
 		render(false);
 	}
 
+	/**
+	 * the zoom bucket for the current zoom and display resolution
+	 */
+	int currentZoomBucket() {
+		return PdfPage.zoomBucket(mZoom * Math.max(mDpiX, mDpiY) / 72);
+	}
+
 	boolean havePage(int no, boolean isRelative) {
 		synchronized(mDocumentLock) {
 			int realPageNo = ((isRelative ? mPage.no : 0) + no);
@@ -223,6 +468,7 @@ public class DroidReaderDocument {
 
 	void render(long lazyStart) {
 		if(mDoRender && (mRenderThread != null)) {
+			mRefineOnly = false;
 			mRenderThread.newRenderJob(lazyStart);
 		}
 	}
@@ -235,9 +481,254 @@ public class DroidReaderDocument {
 		}
 	}
 
+	void setCacheDir(File dir) {
+		mCacheDir = dir;
+	}
+
+	/**
+	 * Sets up the directory the native code keeps the display lists of
+	 * the document in. The directories of other documents that were
+	 * used least recently are removed when they all take more than
+	 * LIST_CACHE_LIMIT bytes.
+	 */
+	private void openListCache(String filename) {
+		if(mCacheDir == null)
+			return;
+		File dir = new File(mCacheDir, "lists-" + cacheKey(filename));
+		if(!dir.isDirectory() && !dir.mkdirs())
+			return;
+		// marks the directory as used
+		dir.setLastModified(System.currentTimeMillis());
+
+		File[] dirs = mCacheDir.listFiles();
+		if(dirs != null) {
+			Arrays.sort(dirs, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long d = b.lastModified() - a.lastModified();
+					return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+				}
+			});
+			long total = 0;
+			for(File other : dirs) {
+				if(!other.getName().startsWith("lists-") || !other.isDirectory())
+					continue;
+				File[] files = other.listFiles();
+				if(files == null)
+					continue;
+				long size = 0;
+				for(File file : files)
+					size += file.length();
+				total += size;
+				if((total > LIST_CACHE_LIMIT) && !other.equals(dir)) {
+					if(LOG) Log.d(TAG, "removing display lists in " + other);
+					for(File file : files)
+						file.delete();
+					other.delete();
+				}
+			}
+		}
+		// the current document may fill the whole cache, the others make room
+		mDocument.setListCache(dir.getPath(), (int) LIST_CACHE_LIMIT);
+	}
+
+	/**
+	 * Builds the name under which data about a document is kept in
+	 * the cache directory. It depends on the content of the document,
+	 * not on its path, see DroidReaderFingerprint.
+	 * @param filename the PDF file
+	 * @return a key that changes when the document is replaced
+	 */
+	static String cacheKey(String filename) {
+		return DroidReaderFingerprint.get(filename);
+	}
+
+	/**
+	 * makes sure the content box of the current page is known, either
+	 * from an earlier visit or by looking at the page content
+	 */
+	void loadContentBox() {
+		synchronized(mDocumentLock) {
+			if(mPage.mHaveContentbox || (mPage.mHandle == 0))
+				return;
+			float[] box = new float[4];
+			if((mContentBoxes != null) && mContentBoxes.get(mPage.no, box)) {
+				mPage.setContentBox(box);
+				return;
+			}
+			try {
+				mPage.loadContentBox();
+				if(mContentBoxes != null)
+					mContentBoxes.put(mPage.no, mPage.mContentbox);
+			} catch (PageLoadException e) {
+				// fall back to the whole page
+				mPage.setContentBox(mPage.mMediabox);
+			}
+		}
+	}
+
+	/**
+	 * Sets the text to highlight on the pages
+	 * @param query the text, or null to remove the highlights
+	 */
+	void setSearchQuery(String query) {
+		if(LOG) Log.d(TAG, "setSearchQuery: "+query);
+		synchronized(mDocumentLock) {
+			mSearchQuery = query;
+			mHighlightPage = 0;
+			mHighlights = null;
+		}
+		render(false);
+	}
+
+	/**
+	 * Gets the entries of the outline below an entry, reading them from
+	 * the document if that hasn't been done yet
+	 * @param parent the entry, or null for the top level entries
+	 * @return the entries
+	 */
+	PdfOutlineItem[] getOutline(PdfOutlineItem parent) {
+		synchronized(mDocumentLock) {
+			if(parent == null)
+				parent = mDocument.getOutline();
+			if(parent == null)
+				return new PdfOutlineItem[0];
+			return parent.getChildren(mDocument);
+		}
+	}
+
+	/**
+	 * Finds the link at a position on the display
+	 * @param x horizontal display position in pixels
+	 * @param y vertical display position in pixels
+	 * @return the link, or null if there is none
+	 */
+	PdfLink findLink(float x, float y) {
+		synchronized(mDocumentLock) {
+			int no;
+			Matrix matrix;
+			float[] point;
+			if(mContinuous) {
+				if(mPageTops == null)
+					return null;
+				int docY = (int) y + mScrollY;
+				no = pageAt(docY);
+				PageSlot slot = slotFor(no);
+				if((slot == null) || !slot.mHavePixmap)
+					return null;
+				matrix = slot.mMatrix;
+				point = new float[] { x + mOffsetX, docY - mPageTops[no - 1] };
+			} else {
+				if(mPage.mHandle == 0)
+					return null;
+				no = mPage.no;
+				matrix = mPageMatrix;
+				point = new float[] { x + mOffsetX, y + mOffsetY };
+			}
+
+			// back from display pixels to page coordinates
+			Matrix inverse = new Matrix();
+			if(!matrix.invert(inverse))
+				return null;
+			inverse.mapPoints(point);
+
+			PdfLinks links = mLinks.get(no);
+			if(links == null) {
+				links = mDocument.getLinks(no);
+				mLinks.put(no, links);
+			}
+			return links.find(point[0], point[1]);
+		}
+	}
+
+	/**
+	 * Starts searching the pages of the document, nearest to the
+	 * current page first. A search that is still running is cancelled.
+	 * @param query the text to look for
+	 * @param listener gets told about pages with hits
+	 */
+	void startSearch(String query, DroidReaderSearch.SearchListener listener) {
+		mSearch.start(query, Math.max(1, mPage.no), listener);
+	}
+
+	/**
+	 * finds where the search query is on the current page. Called by
+	 * the RenderThread with mDocumentLock held.
+	 */
+	private void updateHighlights() {
+		if((mSearchQuery == null) || (mHighlightPage == mPage.no) || (mPage.mHandle == 0))
+			return;
+		ArrayList<RectF> highlights = new ArrayList<RectF>();
+		try {
+			PdfText text = mPage.getText();
+			int length = PdfText.normalizeQuery(mSearchQuery).length();
+			for(int start : text.find(mSearchQuery))
+				highlights.addAll(text.runs(start, start + length));
+		} catch (PageLoadException e) {
+			Log.e(TAG, "cannot get text of page "+mPage.no+": "+e.getMessage());
+		}
+		mHighlights = highlights;
+		mHighlightPage = mPage.no;
+	}
+
 	void setDisplayInvert(boolean invert)
 	{
 		mView.setDisplayInvert(invert);
+		for(PageSlot slot : mSlots)
+			slot.mView.setDisplayInvert(invert);
+	}
+
+	void setLevelOfDetail(boolean lod)
+	{
+		mView.setLevelOfDetail(lod);
+		for(PageSlot slot : mSlots)
+			slot.mView.setLevelOfDetail(lod);
+	}
+
+	/**
+	 * @param interactive true to render previews at a reduced scale
+	 *                    while the display moves
+	 */
+	void setInteractive(boolean interactive)
+	{
+		mInteractive = interactive;
+	}
+
+	private void noteMotion() {
+		mLastMotion = System.nanoTime();
+	}
+
+	/**
+	 * @return whether the display moved less than IDLE_DELAY ago and
+	 *         renders should be previews
+	 */
+	private boolean isMoving() {
+		return mInteractive
+				&& ((System.nanoTime() - mLastMotion) < IDLE_DELAY * 1000000L);
+	}
+
+	void setPixelFormat(int format)
+	{
+		mView.setFormat(format);
+		for(PageSlot slot : mSlots)
+			slot.mView.setFormat(format);
+	}
+
+	void setContinuous(boolean continuous) {
+		if(LOG) Log.d(TAG, "setContinuous: "+continuous);
+		if(continuous == mContinuous)
+			return;
+		synchronized(mDocumentLock) {
+			mContinuous = continuous;
+			if(continuous) {
+				mScrollToPage = true;
+				mLayoutDirty = true;
+			} else {
+				closeSlots();
+			}
+		}
+		mHavePixmap = false;
+		mMetadataDirty = true;
+		render(false);
 	}
 
 	void setDpi(int x, int y) {
@@ -250,12 +741,39 @@ public class DroidReaderDocument {
 
 	void setTileMax(int x, int y) {
 		if(LOG) Log.d(TAG, "setTileMax: "+x+","+y);
+		mTileAuto = false;
 		mTileMaxX = x;
 		mTileMaxY = y;
 		mMetadataDirty = true;
 		render(false);
 	}
 
+	/**
+	 * lets the tile size follow the measured render cost, see
+	 * DroidReaderTileTuner
+	 */
+	void setTileAuto() {
+		if(LOG) Log.d(TAG, "setTileAuto");
+		mTileAuto = true;
+		mMetadataDirty = true;
+		render(false);
+	}
+
+	/**
+	 * sets mTileMaxX and mTileMaxY for rendering a page
+	 * @param page the page to render
+	 * @param sizeX width of the page at the current zoom
+	 * @param sizeY height of the page at the current zoom
+	 * @param view the view the page is rendered with
+	 * @param views how many views are rendered
+	 */
+	private void tuneTileSize(PdfPage page, int sizeX, int sizeY, PdfView view, int views) {
+		mTileTuner.tileSize(page, mDisplaySizeX, mDisplaySizeY, sizeX, sizeY,
+				PdfView.bytesPerPixel(view.mPixelFormat), views, mTileSize);
+		mTileMaxX = mTileSize[0];
+		mTileMaxY = mTileSize[1];
+	}
+
 	void setRotation(int degrees, boolean isRelative) {
 		if(LOG) Log.d(TAG, "setRotation: "+(isRelative?"(rel) ":"(abs) ")+degrees+"°");
 		mRotation = ((isRelative ? mRotation : 0) + degrees + 360) % 360;
@@ -267,6 +785,7 @@ public class DroidReaderDocument {
 		if(LOG) Log.d(TAG, "setZoom: "+(isRelative?"(rel) ":"(abs) ")+zoom);
 		mZoom = (isRelative ? mZoom : 1) * zoom;
 		mMetadataDirty = true;
+		noteMotion();
 		render(false);
 	}
 
@@ -284,6 +803,13 @@ public class DroidReaderDocument {
 		if(mMetadataDirty)
 			calcPageMetadata();
 
+		noteMotion();
+
+		if(mContinuous && (mPageSizes != null) && (mPage.no > 0)) {
+			offsetContinuous(x, y, isRelative);
+			return;
+		}
+
         if (!mHorizontalScrollLock)
             mOffsetX = (isRelative ? mOffsetX : 0) + x;
 		mOffsetY = (isRelative ? mOffsetY : 0) + y;
@@ -299,6 +825,25 @@ public class DroidReaderDocument {
 		}
 	}
 
+	private void offsetContinuous(int x, int y, boolean isRelative) {
+		if(mLayoutDirty)
+			layoutPages();
+
+		if(!mHorizontalScrollLock)
+			mOffsetX = (isRelative ? mOffsetX : 0) + x;
+		if(mOffsetX > mOffsetMaxX) mOffsetX = mOffsetMaxX;
+		else if(mOffsetX < 0) mOffsetX = 0;
+
+		int top = mPageTops[mPage.no - 1];
+		mScrollY = (isRelative ? mScrollY : top) + y;
+		clampScroll();
+		mOffsetY = mScrollY - top;
+
+		if(!withinSlots()) {
+			render(true);
+		}
+	}
+
 	void startRendering(int displaySizeX, int displaySizeY) {
 		if(LOG) Log.d(TAG, "startRendering");
 		mDisplaySizeX = displaySizeX;
@@ -348,6 +893,8 @@ public class DroidReaderDocument {
         float height;
         float width;
 
+        loadContentBox();
+
         top = mPage.mMediabox[3] - mPage.mContentbox[3];
         bottom = mPage.mMediabox[3] - mPage.mContentbox[1];
         left = mPage.mContentbox[0] - mPage.mMediabox[0];
@@ -409,21 +956,7 @@ public class DroidReaderDocument {
 		float pageHeight = mPage.mMediabox[3]-mPage.mMediabox[1];
 		float pageWidth = mPage.mMediabox[2]-mPage.mMediabox[0];
 
-		mPageMatrix.reset();
-		// mirror on X-axis (because of different coord systems)
-		mPageMatrix.postScale(1, -1);
-		// move left by <left border> px and up by <"bottom" of page> pixels
-		mPageMatrix.postTranslate(-mPage.mMediabox[0], mPage.mMediabox[3]);
-		// now do the rotation
-		mPageMatrix.postRotate(mPage.rotate + mRotation);
-		// calculate proper zoom values and correct offsets resulting from rotation
-		if(((mPage.rotate + mRotation) % 360) == 90) {
-			mPageMatrix.postTranslate(pageHeight, 0);
-		} else if(((mPage.rotate + mRotation) % 360) == 180) {
-			mPageMatrix.postTranslate(pageWidth, pageHeight);
-		} else if(((mPage.rotate + mRotation) % 360) == 270) {
-			mPageMatrix.postTranslate(0, pageWidth);
-		}
+		PdfPage.setupPageMatrix(mPageMatrix, mPage.mMediabox, mPage.rotate + mRotation);
 
 		if(((mPage.rotate + mRotation) % 180) == 90) {
 			float save = pageHeight;
@@ -481,9 +1014,298 @@ public class DroidReaderDocument {
 		}
 
 		mMetadataDirty = false;
+		mLayoutDirty = true;
 		if(LOG) Log.d(TAG, "calculated new display metadata");
 	}
 
+	/**
+	 * notes the size of a page for the layout of continuous mode
+	 */
+	private void rememberPageSize(PdfPage page) {
+		if((mPageSizes == null) || (page.no < 1) || (2 * page.no > mPageSizes.length))
+			return;
+		float width = page.mMediabox[2] - page.mMediabox[0];
+		float height = page.mMediabox[3] - page.mMediabox[1];
+		if((page.rotate % 180) == 90) {
+			float save = height;
+			height = width;
+			width = save;
+		}
+		int i = 2 * (page.no - 1);
+		if((mPageSizes[i] != width) || (mPageSizes[i + 1] != height)) {
+			mPageSizes[i] = width;
+			mPageSizes[i + 1] = height;
+			mLayoutDirty = true;
+		}
+	}
+
+	/**
+	 * Calculates where each page goes in continuous mode. Pages that have
+	 * not been opened yet are assumed to be as large as the current page,
+	 * their place is corrected once they are opened. The display stays on
+	 * the same spot of the page it shows.
+	 */
+	private void layoutPages() {
+		if((mPageSizes == null) || (mDocument.pagecount < 1))
+			return;
+		int count = mDocument.pagecount;
+		float zoomX = mZoom * mDpiX / 72;
+		float zoomY = mZoom * mDpiY / 72;
+		boolean swap = (mRotation % 180) == 90;
+
+		// remember the spot we're looking at
+		int anchorPage = 1;
+		float anchorFraction = 0;
+		if(!mScrollToPage && (mPageTops != null)) {
+			anchorPage = pageAt(mScrollY);
+			int height = mPageTops[anchorPage] - mPageTops[anchorPage - 1] - PAGE_GAP;
+			if(height > 0)
+				anchorFraction = ((float) (mScrollY - mPageTops[anchorPage - 1])) / height;
+		}
+
+		int[] tops = new int[count + 1];
+		int maxSizeX = mPageSizeX;
+		for(int i = 0; i < count; i++) {
+			float width = mPageSizes[2 * i + (swap ? 1 : 0)];
+			float height = mPageSizes[2 * i + (swap ? 0 : 1)];
+			int sizeY = (height > 0) ? (int) (height * zoomY) : mPageSizeY;
+			if(width > 0)
+				maxSizeX = Math.max(maxSizeX, (int) (width * zoomX));
+			tops[i + 1] = tops[i] + sizeY + PAGE_GAP;
+		}
+		mPageTops = tops;
+
+		if(maxSizeX <= mDisplaySizeX) {
+			mIsScrollingX = false;
+			mOffsetX = 0;
+			mOffsetMaxX = 0;
+		} else {
+			mIsScrollingX = true;
+			mOffsetMaxX = maxSizeX - mDisplaySizeX;
+		}
+		mIsScrollingY = true;
+
+		if(mScrollToPage && (mPage.no > 0)) {
+			mScrollY = tops[mPage.no - 1] + mOffsetY;
+			mScrollToPage = false;
+		} else {
+			mScrollY = tops[anchorPage - 1] + (int) (anchorFraction
+					* (tops[anchorPage] - tops[anchorPage - 1] - PAGE_GAP));
+		}
+		clampScroll();
+		mLayoutDirty = false;
+		if(LOG) Log.d(TAG, "layout of "+count+" pages, height "+tops[count]);
+	}
+
+	/**
+	 * finds the page at a vertical position in continuous mode
+	 * @param y position in pixels from the top of the first page
+	 * @return the page number
+	 */
+	int pageAt(int y) {
+		int[] tops = mPageTops;
+		int low = 0;
+		int high = tops.length - 2;
+		while(low < high) {
+			int mid = (low + high + 1) / 2;
+			if(tops[mid] <= y)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low + 1;
+	}
+
+	private void clampScroll() {
+		int max = mPageTops[mPageTops.length - 1] - PAGE_GAP - mDisplaySizeY;
+		if(mScrollY > max) mScrollY = max;
+		if(mScrollY < 0) mScrollY = 0;
+	}
+
+	private PageSlot slotFor(int no) {
+		for(PageSlot slot : mSlots)
+			if((slot.mPage.mHandle != 0) && (slot.mPage.no == no))
+				return slot;
+		return null;
+	}
+
+	private PageSlot freeSlot() {
+		for(PageSlot slot : mSlots)
+			if(slot.mPage.mHandle == 0)
+				return slot;
+		return null;
+	}
+
+	private void closeSlots() {
+		for(PageSlot slot : mSlots) {
+			slot.mPage.close();
+			slot.mHavePixmap = false;
+		}
+	}
+
+	/**
+	 * checks whether the rendered pixmaps cover what is visible in
+	 * continuous mode
+	 */
+	private boolean withinSlots() {
+		int[] tops = mPageTops;
+		if(tops == null)
+			return false;
+		int first = pageAt(mScrollY);
+		int last = Math.min(pageAt(mScrollY + mDisplaySizeY - 1), first + NUM_SLOTS - 1);
+		for(int no = first; no <= last; no++) {
+			PageSlot slot = slotFor(no);
+			if((slot == null) || !slot.mHavePixmap)
+				return false;
+			Rect box = slot.mView.mViewBox;
+			int top = Math.max(0, mScrollY - tops[no - 1]);
+			int bottom = Math.min(slot.mSizeY, mScrollY + mDisplaySizeY - tops[no - 1]);
+			int right = Math.min(slot.mSizeX, mOffsetX + mDisplaySizeX);
+			if((top < box.top) || (bottom > box.bottom))
+				return false;
+			if((mOffsetX < slot.mSizeX) && ((mOffsetX < box.left) || (right > box.right)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the visible pages in continuous mode. Each visible page
+	 * keeps its own PdfPage open, which also keeps it in the page cache
+	 * of the native code. Called by the RenderThread with mDocumentLock held.
+	 */
+	private void renderContinuous(float scale) {
+		if(mMetadataDirty)
+			calcPageMetadata();
+		if(mLayoutDirty)
+			layoutPages();
+		if(mPageTops == null)
+			return;
+
+		int bucket = currentZoomBucket();
+		int first = pageAt(mScrollY);
+		int last = Math.min(pageAt(mScrollY + mDisplaySizeY - 1), first + NUM_SLOTS - 1);
+		int center = Math.min(pageAt(mScrollY + mDisplaySizeY / 2), last);
+
+		// the page in the middle of the display is the current page
+		if(center != mPage.no) {
+			try {
+				loadPage(mPage, center, bucket);
+				rememberPageSize(mPage);
+				calcPageMetadata();
+			} catch (PageLoadException e) {
+				Log.e(TAG, "cannot load page "+center+": "+e.getMessage());
+			}
+		}
+
+		for(PageSlot slot : mSlots) {
+			if((slot.mPage.mHandle != 0) && ((slot.mPage.no < first) || (slot.mPage.no > last))) {
+				slot.mPage.close();
+				slot.mHavePixmap = false;
+			}
+		}
+
+		for(int no = first; no <= last; no++) {
+			PageSlot slot = slotFor(no);
+			try {
+				if(slot == null) {
+					slot = freeSlot();
+					slot.mHavePixmap = false;
+					loadPage(slot.mPage, no, bucket);
+					rememberPageSize(slot.mPage);
+				} else if(bucket > slot.mPage.zoomBucket) {
+					// images of the page need a higher resolution now. The
+					// native code only decodes them anew when nobody holds
+					// the page, and mPage shares it for the current page.
+					boolean current = (mPage.no == no);
+					if(current)
+						mPage.close();
+					try {
+						loadPage(slot.mPage, no, bucket);
+					} finally {
+						// nothing is rendered without mPage
+						if(current)
+							loadPage(mPage, no, bucket);
+					}
+				}
+			} catch (PageLoadException e) {
+				Log.e(TAG, "cannot load page "+no+": "+e.getMessage());
+				continue;
+			}
+			// learning the real size of a page moves the pages below it
+			if(mLayoutDirty)
+				layoutPages();
+			renderSlot(slot, scale);
+			mRenderListener.onNewRenderedPixmap();
+		}
+
+		if(mPage.no > 0)
+			mOffsetY = mScrollY - mPageTops[mPage.no - 1];
+		updateHighlights();
+	}
+
+	/**
+	 * renders the visible part of a page plus some margin, like
+	 * calcCenteredViewBox() does for a single page
+	 */
+	private void renderSlot(PageSlot slot, float scale) {
+		PdfPage page = slot.mPage;
+		float zoomX = mZoom * mDpiX / 72;
+		float zoomY = mZoom * mDpiY / 72;
+		int rotation = page.rotate + mRotation;
+
+		PdfPage.setupPageMatrix(slot.mMatrix, page.mMediabox, rotation);
+		slot.mMatrix.postScale(zoomX, zoomY);
+		float width = page.mMediabox[2] - page.mMediabox[0];
+		float height = page.mMediabox[3] - page.mMediabox[1];
+		if((rotation % 180) == 90) {
+			float save = height;
+			height = width;
+			width = save;
+		}
+		slot.mSizeX = (int) (width * zoomX);
+		slot.mSizeY = (int) (height * zoomY);
+		if(mTileAuto)
+			tuneTileSize(page, slot.mSizeX, slot.mSizeY, slot.mView, NUM_SLOTS);
+
+		int left = Math.max(0, mOffsetX - Math.max(0, (mTileMaxX - mDisplaySizeX) / 2));
+		int top = Math.max(0, mScrollY - mPageTops[page.no - 1]
+				- Math.max(0, (mTileMaxY - mDisplaySizeY) / 2));
+		Rect box = new Rect(left, top,
+				Math.min(slot.mSizeX, left + mTileMaxX),
+				Math.min(slot.mSizeY, top + mTileMaxY));
+		if(box.isEmpty()) {
+			slot.mHavePixmap = false;
+			return;
+		}
+
+		try {
+			if(LOG) Log.d(TAG, "now rendering page "+page.no+": "+box.toShortString());
+			long start = System.nanoTime();
+			slot.mView.render(mDocument, page, box, slot.mMatrix, scale);
+			recordRender(page, box, scale, start);
+			slot.mHavePixmap = true;
+		} catch (PageRenderException e) {
+			Log.e(TAG, "cannot render page "+page.no+": "+e.getMessage());
+			slot.mHavePixmap = false;
+		}
+	}
+
+	/**
+	 * records a render in the metrics and, at full quality, in
+	 * mTileTuner. Previews are simplified and would make it believe
+	 * renders are cheaper than they are.
+	 */
+	private void recordRender(PdfPage page, Rect box, float scale, long start) {
+		int pixels = (int) (box.width() * box.height() * scale * scale);
+		if(scale < 1) {
+			DroidReaderMetrics.previewRendered(pixels, start);
+		} else {
+			DroidReaderMetrics.rendered(pixels, start);
+			mTileTuner.rendered(page, pixels, DroidReaderMetrics.micros(start));
+		}
+	}
+
 	private boolean withinViewBox() {
 		if(mIsScrollingX &&
 				(((mOffsetX + mDisplaySizeX) > mViewBox.right) ||
@@ -512,8 +1334,19 @@ public class DroidReaderDocument {
 	public void closeDocument() {
 		stopRendering();
 		synchronized(mDocumentLock) {
+			closeSlots();
 			mPage.close();
 			mDocument.close();
+			mLinks.clear();
+			mView.release();
+			for(PageSlot slot : mSlots)
+				slot.mView.release();
+			mHavePixmap = false;
 		}
+		if(mThumbnails != null)
+			mThumbnails.stop();
+		if(mSearchIndex != null)
+			mSearchIndex.stop();
+		mSearch.stop();
 	}
 }
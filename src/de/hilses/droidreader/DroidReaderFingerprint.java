@@ -0,0 +1,175 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Log;
+
+/**
+ * Identifies a document by its content rather than by its path, so
+ * what we know about it survives moving or copying the file. The
+ * fingerprint is made of the file size, an MD5 hash of the first and
+ * the last BLOCK bytes and the first part of the trailer's /ID, if
+ * there is one. Only those blocks are read, so it is quick to compute
+ * even for large files.
+ *
+ * The /ID is looked up in the raw bytes of the blocks, which is where
+ * the trailer or the cross-reference stream lives in practice. This
+ * way the fingerprint is known before the document is opened.
+ */
+final class DroidReaderFingerprint {
+	private static final String TAG = "DroidReaderFingerprint";
+
+	/**
+	 * how many bytes are hashed at each end of the file
+	 */
+	static final int BLOCK = 64 * 1024;
+
+	/**
+	 * how many hex digits of the /ID are used at most
+	 */
+	static final int MAX_ID = 64;
+
+	/**
+	 * the last fingerprint, since the same file is usually asked for
+	 * several times when it is opened
+	 */
+	private static String sPath = null;
+	private static long sLength = -1;
+	private static long sModified = -1;
+	private static String sFingerprint = null;
+
+	private DroidReaderFingerprint() {
+	}
+
+	/**
+	 * Gets the fingerprint of a file
+	 * @param filename the PDF file
+	 * @return the fingerprint, which can be used in file names
+	 */
+	static synchronized String get(String filename) {
+		File file = new File(filename);
+		long length = file.length();
+		long modified = file.lastModified();
+		if(filename.equals(sPath) && (length == sLength) && (modified == sModified))
+			return sFingerprint;
+
+		String fingerprint;
+		try {
+			fingerprint = compute(file);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read " + filename + ": " + e.getMessage());
+			// the path is better than nothing
+			fingerprint = Integer.toHexString(filename.hashCode())
+					+ "-" + Long.toHexString(length)
+					+ "-" + Long.toHexString(modified);
+		}
+		sPath = filename;
+		sLength = length;
+		sModified = modified;
+		sFingerprint = fingerprint;
+		return fingerprint;
+	}
+
+	private static String compute(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long length = in.length();
+			byte[] head = new byte[(int) Math.min(length, BLOCK)];
+			in.readFully(head);
+			byte[] tail = head;
+			if(length > BLOCK) {
+				tail = new byte[(int) Math.min(length - BLOCK, BLOCK)];
+				in.seek(length - tail.length);
+				in.readFully(tail);
+			}
+
+			MessageDigest md5;
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("no MD5: " + e.getMessage());
+			}
+			md5.update(head);
+			if(tail != head)
+				md5.update(tail);
+
+			StringBuilder fingerprint = new StringBuilder();
+			fingerprint.append(Long.toHexString(length)).append('-');
+			appendHex(fingerprint, md5.digest());
+			// the last trailer wins, a linearized file has its first one at the start
+			String id = findId(tail);
+			if((id == null) && (tail != head))
+				id = findId(head);
+			if(id != null)
+				fingerprint.append('-').append(id);
+			return fingerprint.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * finds the last "/ID [<...>" in a block
+	 * @return the first ID string in lower case hex, or null
+	 */
+	static String findId(byte[] block) {
+		for(int i = block.length - 3; i >= 0; i--) {
+			if((block[i] != '/') || (block[i + 1] != 'I') || (block[i + 2] != 'D'))
+				continue;
+			int p = skipSpace(block, i + 3);
+			if((p >= block.length) || (block[p] != '['))
+				continue;
+			p = skipSpace(block, p + 1);
+			if((p >= block.length) || (block[p] != '<'))
+				continue;
+			StringBuilder id = new StringBuilder();
+			for(p++; (p < block.length) && (block[p] != '>'); p++) {
+				char c = Character.toLowerCase((char) block[p]);
+				if((((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')))
+						&& (id.length() < MAX_ID))
+					id.append(c);
+			}
+			if((p < block.length) && (id.length() > 0))
+				return id.toString();
+		}
+		return null;
+	}
+
+	private static int skipSpace(byte[] block, int p) {
+		while((p < block.length) && ((block[p] == ' ') || (block[p] == '\r')
+				|| (block[p] == '\n') || (block[p] == '\t')))
+			p++;
+		return p;
+	}
+
+	private static void appendHex(StringBuilder out, byte[] bytes) {
+		for(byte b : bytes) {
+			out.append(Character.forDigit((b >> 4) & 0xf, 16));
+			out.append(Character.forDigit(b & 0xf, 16));
+		}
+	}
+}
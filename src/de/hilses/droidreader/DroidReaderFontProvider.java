@@ -102,37 +102,8 @@ public class DroidReaderFontProvider implements FontProvider {
 			return mFontCache.get(fontName);
 		}
 		
-		if(fontName.equals("Courier")) {
-			fontFile = "NimbusMonL-Regu.cff";
-		} else if(fontName.equals("Courier-Bold")) {
-			fontFile = "NimbusMonL-Bold.cff";
-		} else if(fontName.equals("Courier-Oblique")) {
-			fontFile = "NimbusMonL-ReguObli.cff";
-		} else if(fontName.equals("Courier-BoldOblique")) {
-			fontFile = "NimbusMonL-BoldObli.cff";
-		} else if(fontName.equals("Helvetica")) {
-			fontFile = "NimbusSanL-Regu.cff";
-		} else if(fontName.equals("Helvetica-Bold")) {
-			fontFile = "NimbusSanL-Bold.cff";
-		} else if(fontName.equals("Helvetica-Oblique")) {
-			fontFile = "NimbusSanL-ReguItal.cff";
-		} else if(fontName.equals("Helvetica-BoldOblique")) {
-			fontFile = "NimbusSanL-BoldItal.cff";
-		} else if(fontName.equals("Times-Roman")) {
-			fontFile = "NimbusRomNo9L-Regu.cff";
-		} else if(fontName.equals("Times-Bold")) {
-			fontFile = "NimbusRomNo9L-Medi.cff";
-		} else if(fontName.equals("Times-Italic")) {
-			fontFile = "NimbusRomNo9L-ReguItal.cff";
-		} else if(fontName.equals("Times-BoldItalic")) {
-			fontFile = "NimbusRomNo9L-MediItal.cff";
-		} else if(fontName.equals("Symbol")) {
-			fontFile = "StandardSymL.cff";
-		} else if(fontName.equals("ZapfDingbats")) {
-			fontFile = "Dingbats.cff";
-		} else if(fontName.equals("Chancery")) {
-			fontFile = "URWChanceryL-MediItal.cff";
-		} else {
+		fontFile = PdfRender.standardFontFile(fontName);
+		if(fontFile == null) {
 			if(LOG) Log.d(TAG, "no such font available as a buffer.");
 			return null;
 		}
@@ -0,0 +1,309 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms of the render pipeline. They are always on
+ * and cheap to update: a histogram counts values in power of two
+ * buckets, so recording a value is a few array operations. A snapshot
+ * of all of them can be taken as text or JSON.
+ *
+ * Times are in microseconds, sizes in bytes.
+ */
+final class DroidReaderMetrics {
+	/**
+	 * counts values in buckets that double in size, which is enough to
+	 * tell percentiles within a factor of two
+	 */
+	static class Histogram {
+		final String name;
+		final String unit;
+		/**
+		 * bucket b counts values v with 2^(b-1) <= v < 2^b, bucket 0 those <= 0
+		 */
+		private final long[] mBuckets = new long[64];
+		private long mCount = 0;
+		private long mSum = 0;
+		private long mMin = Long.MAX_VALUE;
+		private long mMax = Long.MIN_VALUE;
+
+		Histogram(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		synchronized void record(long value) {
+			mBuckets[(value <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(value)]++;
+			mCount++;
+			mSum += value;
+			if(value < mMin) mMin = value;
+			if(value > mMax) mMax = value;
+		}
+
+		synchronized long count() {
+			return mCount;
+		}
+
+		/**
+		 * @param fraction e.g. 0.5 for the median
+		 * @return the upper end of the bucket the percentile is in,
+		 *         but no more than the largest value, 0 if empty
+		 */
+		synchronized long percentile(double fraction) {
+			long rank = (long) Math.ceil(fraction * mCount);
+			long seen = 0;
+			for(int b = 0; b < mBuckets.length; b++) {
+				seen += mBuckets[b];
+				if((seen >= rank) && (seen > 0))
+					return (b == 0) ? Math.min(0, mMax) : Math.min((1L << b) - 1, mMax);
+			}
+			return 0;
+		}
+
+		synchronized void reset() {
+			for(int b = 0; b < mBuckets.length; b++)
+				mBuckets[b] = 0;
+			mCount = 0;
+			mSum = 0;
+			mMin = Long.MAX_VALUE;
+			mMax = Long.MIN_VALUE;
+		}
+
+		synchronized void appendText(StringBuilder out) {
+			out.append(String.format(Locale.US, "%-24s %8d", name, mCount));
+			if(mCount > 0)
+				out.append(String.format(Locale.US,
+						"  mean %d  p50 %d  p90 %d  p99 %d  min %d  max %d %s",
+						mSum / mCount, percentile(0.5), percentile(0.9), percentile(0.99),
+						mMin, mMax, unit));
+			out.append('\n');
+		}
+
+		synchronized void appendJson(StringBuilder out) {
+			out.append('"').append(name).append("\":{\"unit\":\"").append(unit)
+				.append("\",\"count\":").append(mCount);
+			if(mCount > 0) {
+				out.append(",\"sum\":").append(mSum)
+					.append(",\"min\":").append(mMin)
+					.append(",\"max\":").append(mMax)
+					.append(",\"p50\":").append(percentile(0.5))
+					.append(",\"p90\":").append(percentile(0.9))
+					.append(",\"p99\":").append(percentile(0.99));
+			}
+			out.append('}');
+		}
+	}
+
+	static class Counter {
+		final String name;
+		private final AtomicLong mValue = new AtomicLong();
+
+		Counter(String name) {
+			this.name = name;
+		}
+
+		void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		long get() {
+			return mValue.get();
+		}
+
+		void reset() {
+			mValue.set(0);
+		}
+	}
+
+	/**
+	 * opening a document
+	 */
+	static final Histogram OPEN_TIME = new Histogram("open_time", "us");
+	/**
+	 * loading a page that was not in the page cache
+	 */
+	static final Histogram PAGE_LOAD_TIME = new Histogram("page_load_time", "us");
+	/**
+	 * display lists of loaded pages
+	 */
+	static final Histogram DISPLAY_LIST_SIZE = new Histogram("display_list_size", "bytes");
+	/**
+	 * rendering time of a pixmap, per megapixel of it
+	 */
+	static final Histogram RENDER_TIME = new Histogram("render_time_per_mpixel", "us");
+	/**
+	 * rendering time of a preview during motion, per megapixel of it.
+	 * Previews are simplified, so they are cheaper than RENDER_TIME.
+	 */
+	static final Histogram PREVIEW_TIME = new Histogram("preview_time_per_mpixel", "us");
+	/**
+	 * drawing a frame onto the display
+	 */
+	static final Histogram BLIT_TIME = new Histogram("blit_time", "us");
+	/**
+	 * the render thread waiting for the document, which thumbnails,
+	 * search and indexing use as well
+	 */
+	static final Histogram QUEUE_WAIT = new Histogram("render_queue_wait", "us");
+
+	static final Counter PAGE_CACHE_HITS = new Counter("page_cache_hits");
+	static final Counter PAGE_CACHE_MISSES = new Counter("page_cache_misses");
+	static final Counter FRAMES = new Counter("frames");
+	/**
+	 * frames missed while scrolling because drawing took longer than
+	 * one frame
+	 */
+	static final Counter DROPPED_FRAMES = new Counter("dropped_frames");
+
+	static final Histogram[] HISTOGRAMS = {
+		OPEN_TIME, PAGE_LOAD_TIME, DISPLAY_LIST_SIZE, RENDER_TIME, PREVIEW_TIME,
+		BLIT_TIME, QUEUE_WAIT };
+	static final Counter[] COUNTERS = {
+		PAGE_CACHE_HITS, PAGE_CACHE_MISSES, FRAMES, DROPPED_FRAMES };
+
+	/**
+	 * the time of one frame at 60 frames per second
+	 */
+	static final long FRAME_MICROS = 16667;
+
+	private DroidReaderMetrics() {
+	}
+
+	/**
+	 * @param startNanos a value of System.nanoTime()
+	 * @return the microseconds since then
+	 */
+	static long micros(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1000;
+	}
+
+	/**
+	 * Records the opening of a page for display
+	 * @param page the page that was opened
+	 * @param startNanos System.nanoTime() before opening it
+	 */
+	static void pageOpened(PdfPage page, long startNanos) {
+		if(page.cached) {
+			PAGE_CACHE_HITS.add(1);
+		} else {
+			PAGE_CACHE_MISSES.add(1);
+			PAGE_LOAD_TIME.record(micros(startNanos));
+			DISPLAY_LIST_SIZE.record(page.listSize);
+		}
+	}
+
+	/**
+	 * Records the rendering of a pixmap
+	 * @param pixels the size of the pixmap
+	 * @param startNanos System.nanoTime() before rendering it
+	 */
+	static void rendered(int pixels, long startNanos) {
+		if(pixels > 0)
+			RENDER_TIME.record(micros(startNanos) * 1000000 / pixels);
+	}
+
+	/**
+	 * Records the rendering of a preview during motion
+	 * @param pixels the size of the pixmap
+	 * @param startNanos System.nanoTime() before rendering it
+	 */
+	static void previewRendered(int pixels, long startNanos) {
+		if(pixels > 0)
+			PREVIEW_TIME.record(micros(startNanos) * 1000000 / pixels);
+	}
+
+	/**
+	 * Records the drawing of a frame
+	 * @param startNanos System.nanoTime() before drawing it
+	 * @param animating whether the display is moving, frames that are
+	 *        late count as dropped only then
+	 */
+	static void frameDrawn(long startNanos, boolean animating) {
+		long time = micros(startNanos);
+		BLIT_TIME.record(time);
+		FRAMES.add(1);
+		if(animating && (time > FRAME_MICROS))
+			DROPPED_FRAMES.add(time / FRAME_MICROS);
+	}
+
+	/**
+	 * Sets all counters and histograms back to zero
+	 */
+	static void reset() {
+		for(Histogram histogram : HISTOGRAMS)
+			histogram.reset();
+		for(Counter counter : COUNTERS)
+			counter.reset();
+	}
+
+	/**
+	 * @return the page cache hits in percent of all page opens
+	 */
+	static long pageCacheHitRate() {
+		long hits = PAGE_CACHE_HITS.get();
+		long total = hits + PAGE_CACHE_MISSES.get();
+		return (total > 0) ? hits * 100 / total : 0;
+	}
+
+	/**
+	 * @return a snapshot of all metrics, one per line
+	 */
+	static String toText() {
+		StringBuilder out = new StringBuilder();
+		for(Histogram histogram : HISTOGRAMS)
+			histogram.appendText(out);
+		for(Counter counter : COUNTERS)
+			out.append(String.format(Locale.US, "%-24s %8d\n", counter.name, counter.get()));
+		out.append(String.format(Locale.US, "%-24s %8d%%\n", "page_cache_hit_rate", pageCacheHitRate()));
+		int[] glyphs = PdfRender.getGlyphCacheStats();
+		out.append(String.format(Locale.US, "%-24s %8d%%\n", "glyph_cache_hit_rate", glyphHitRate(glyphs)));
+		return out.toString();
+	}
+
+	/**
+	 * @return a snapshot of all metrics as a JSON object
+	 */
+	static String toJson() {
+		StringBuilder out = new StringBuilder("{");
+		for(Histogram histogram : HISTOGRAMS) {
+			histogram.appendJson(out);
+			out.append(',');
+		}
+		for(Counter counter : COUNTERS)
+			out.append('"').append(counter.name).append("\":").append(counter.get()).append(',');
+		int[] glyphs = PdfRender.getGlyphCacheStats();
+		out.append("\"page_cache_hit_rate\":").append(pageCacheHitRate())
+			.append(",\"glyph_cache_hits\":").append(glyphs[PdfRender.GLYPHCACHE_HITS])
+			.append(",\"glyph_cache_misses\":").append(glyphs[PdfRender.GLYPHCACHE_MISSES])
+			.append(",\"glyph_cache_hit_rate\":").append(glyphHitRate(glyphs))
+			.append('}');
+		return out.toString();
+	}
+
+	private static long glyphHitRate(int[] glyphs) {
+		long hits = glyphs[PdfRender.GLYPHCACHE_HITS];
+		long total = hits + glyphs[PdfRender.GLYPHCACHE_MISSES];
+		return (total > 0) ? hits * 100 / total : 0;
+	}
+}
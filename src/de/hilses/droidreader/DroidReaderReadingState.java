@@ -0,0 +1,332 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Remembers where each document was left: page, zoom, rotation and the
+ * like, in the LastReadPoint table of the DroidReaderPDFDB database.
+ *
+ * Documents are known by their content fingerprint, so the state
+ * survives moving or copying a file. Rows from before fingerprints
+ * were stored are found by their file name and get the fingerprint
+ * the next time they are written.
+ *
+ * There is one store per process. It keeps the database open and its
+ * statements compiled. Lookups go through unique indices on Filename
+ * and Fingerprint. Writes are queued and done by a background thread,
+ * which writes all states that came in meanwhile in one transaction,
+ * so pausing the activity doesn't wait for the disk. The database has
+ * a lock of its own, the queue is never held while it is written.
+ */
+class DroidReaderReadingState {
+	private static final String TAG = "DroidReaderReadingState";
+	protected final static boolean LOG = false;
+
+	private static final String DATABASE = "DroidReaderPDFDB";
+	/**
+	 * version 1 added the unique index on Filename, version 2 the
+	 * Fingerprint column
+	 */
+	private static final int SCHEMA_VERSION = 2;
+
+	/**
+	 * how long the writer waits for more states before it writes
+	 */
+	static final int WRITE_DELAY = 200;
+
+	/**
+	 * the state of one document
+	 */
+	static class Entry {
+		final String filename;
+		final String fingerprint;
+		float zoom = DroidReaderDocument.ZOOM_FIT;
+		int rotation = 0;
+		int page = 1;
+		int offsetX = 0;
+		int offsetY = 0;
+		int marginOffsetX = 0;
+		int marginOffsetY = 0;
+		int contentFitMode = 0;
+		String password = "";
+
+		Entry(String filename, String fingerprint) {
+			this.filename = filename;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private static DroidReaderReadingState sInstance = null;
+
+	/**
+	 * @param context any context of the application
+	 * @return the store of this process
+	 */
+	static synchronized DroidReaderReadingState get(Context context) {
+		if(sInstance == null)
+			sInstance = new DroidReaderReadingState(context.getApplicationContext());
+		return sInstance;
+	}
+
+	private final Context mContext;
+
+	/**
+	 * guards mDB and mStore
+	 */
+	private final Object mDatabaseLock = new Object();
+	private SQLiteDatabase mDB = null;
+	private SQLiteStatement mStore = null;
+
+	/**
+	 * states waiting to be written, by fingerprint
+	 */
+	private LinkedHashMap<String,Entry> mPending = new LinkedHashMap<String,Entry>();
+	/**
+	 * states the writer is writing just now, null when it isn't
+	 */
+	private LinkedHashMap<String,Entry> mWriting = null;
+	private Thread mWriter = null;
+
+	private DroidReaderReadingState(Context context) {
+		mContext = context;
+	}
+
+	/**
+	 * opens the database on first use and brings its schema up to date,
+	 * must be called with mDatabaseLock held
+	 * @return false if the database cannot be used
+	 */
+	private boolean openDatabase() {
+		if(mDB != null)
+			return true;
+		try {
+			mDB = mContext.openOrCreateDatabase(DATABASE, Context.MODE_PRIVATE, null);
+			enableWriteAheadLogging(mDB);
+			mDB.execSQL("CREATE TABLE IF NOT EXISTS LastReadPoint (" +
+					"Filename VARCHAR, Zoom DECIMAL(10,5), " +
+					"Rotation INTEGER, Page INTEGER, " +
+					"OffsetX INTEGER, OffsetY INTEGER, " +
+					"MarginOffsetX INTEGER, MarginOffsetY INTEGER, " +
+					"ContentFitMode INTEGER, MemoryMode INTEGER, " +
+					"Password VARCHAR );");
+			int version = mDB.getVersion();
+			if(version < SCHEMA_VERSION) {
+				mDB.beginTransaction();
+				try {
+					if(version < 1) {
+						// the table had no key, keep the newest row of each file
+						mDB.execSQL("DELETE FROM LastReadPoint WHERE rowid NOT IN " +
+								"(SELECT MAX(rowid) FROM LastReadPoint GROUP BY Filename);");
+						mDB.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS LastReadPointFilename " +
+								"ON LastReadPoint (Filename);");
+					}
+					if(version < 2) {
+						mDB.execSQL("ALTER TABLE LastReadPoint ADD COLUMN Fingerprint VARCHAR;");
+						mDB.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS LastReadPointFingerprint " +
+								"ON LastReadPoint (Fingerprint);");
+					}
+					mDB.setVersion(SCHEMA_VERSION);
+					mDB.setTransactionSuccessful();
+				} finally {
+					mDB.endTransaction();
+				}
+			}
+			// replaces both the row of the same file and that of the same content
+			mStore = mDB.compileStatement("INSERT OR REPLACE INTO LastReadPoint (" +
+					"Filename, Zoom, Rotation, Page, OffsetX, OffsetY, " +
+					"MarginOffsetX, MarginOffsetY, ContentFitMode, MemoryMode, " +
+					"Password, Fingerprint) VALUES " +
+					"(?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?);");
+			return true;
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Could not create or open the database: " + e.getMessage());
+			if(mDB != null)
+				mDB.close();
+			mDB = null;
+			return false;
+		}
+	}
+
+	/**
+	 * SQLiteDatabase.enableWriteAheadLogging() came with API level 11,
+	 * so it is looked up via reflection. Older devices keep the
+	 * rollback journal.
+	 */
+	private static void enableWriteAheadLogging(SQLiteDatabase db) {
+		try {
+			Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+			enable.invoke(db);
+		} catch (Exception e) {
+			// not available on this platform version
+		}
+	}
+
+	/**
+	 * Looks up the state of a document. A state that is still waiting
+	 * to be written is returned as well.
+	 * @param filename the document
+	 * @param fingerprint its fingerprint, see DroidReaderFingerprint
+	 * @return the state, or null if the document is not known
+	 */
+	Entry read(String filename, String fingerprint) {
+		synchronized(this) {
+			Entry pending = mPending.get(fingerprint);
+			if((pending == null) && (mWriting != null))
+				pending = mWriting.get(fingerprint);
+			if(pending != null)
+				return pending;
+		}
+		synchronized(mDatabaseLock) {
+			if(!openDatabase())
+				return null;
+			Entry entry = query(filename, fingerprint, "Fingerprint = ?", fingerprint);
+			if(entry == null)
+				entry = query(filename, fingerprint, "Filename = ? AND Fingerprint IS NULL", filename);
+			return entry;
+		}
+	}
+
+	private Entry query(String filename, String fingerprint, String where, String arg) {
+		Cursor c = null;
+		try {
+			c = mDB.rawQuery("SELECT Zoom, Rotation, Page, OffsetX, OffsetY, " +
+					"MarginOffsetX, MarginOffsetY, ContentFitMode, Password " +
+					"FROM LastReadPoint WHERE " + where, new String[] { arg });
+			if(!c.moveToFirst())
+				return null;
+			Entry entry = new Entry(filename, fingerprint);
+			entry.zoom = c.getFloat(0);
+			entry.rotation = c.getInt(1);
+			entry.page = c.getInt(2);
+			entry.offsetX = c.getInt(3);
+			entry.offsetY = c.getInt(4);
+			entry.marginOffsetX = c.getInt(5);
+			entry.marginOffsetY = c.getInt(6);
+			entry.contentFitMode = c.getInt(7);
+			entry.password = c.getString(8);
+			return entry;
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Could not read the state of " + filename + ": " + e.getMessage());
+			return null;
+		} finally {
+			if(c != null)
+				c.close();
+		}
+	}
+
+	/**
+	 * Queues the state of a document for writing, it replaces a state
+	 * of the same document that wasn't written yet
+	 * @param entry the state
+	 */
+	synchronized void write(Entry entry) {
+		mPending.remove(entry.fingerprint);
+		mPending.put(entry.fingerprint, entry);
+		if(mWriter == null) {
+			mWriter = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, TAG);
+			mWriter.setPriority(Thread.MIN_PRIORITY);
+			mWriter.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	private void writeLoop() {
+		while(true) {
+			LinkedHashMap<String,Entry> batch;
+			synchronized(this) {
+				while(mPending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+			// give states that come in right after this one a chance to join
+			try {
+				Thread.sleep(WRITE_DELAY);
+			} catch (InterruptedException e) {
+			}
+			synchronized(this) {
+				batch = mPending;
+				mWriting = batch;
+				mPending = new LinkedHashMap<String,Entry>();
+			}
+			synchronized(mDatabaseLock) {
+				if(openDatabase())
+					store(new ArrayList<Entry>(batch.values()));
+			}
+			synchronized(this) {
+				mWriting = null;
+			}
+			if(LOG) Log.d(TAG, "wrote " + batch.size() + " states");
+		}
+	}
+
+	/**
+	 * writes states in one transaction, must be called with
+	 * mDatabaseLock held
+	 */
+	private void store(ArrayList<Entry> batch) {
+		try {
+			mDB.beginTransaction();
+			try {
+				for(Entry entry : batch) {
+					mStore.bindString(1, entry.filename);
+					mStore.bindDouble(2, entry.zoom);
+					mStore.bindLong(3, entry.rotation);
+					mStore.bindLong(4, entry.page);
+					mStore.bindLong(5, entry.offsetX);
+					mStore.bindLong(6, entry.offsetY);
+					mStore.bindLong(7, entry.marginOffsetX);
+					mStore.bindLong(8, entry.marginOffsetY);
+					mStore.bindLong(9, entry.contentFitMode);
+					if(entry.password != null)
+						mStore.bindString(10, entry.password);
+					else
+						mStore.bindNull(10);
+					mStore.bindString(11, entry.fingerprint);
+					mStore.execute();
+				}
+				mDB.setTransactionSuccessful();
+			} finally {
+				mDB.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, "Could not write " + batch.size() + " states: " + e.getMessage());
+		}
+	}
+}
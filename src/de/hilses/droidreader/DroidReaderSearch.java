@@ -0,0 +1,206 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import java.util.BitSet;
+
+import android.util.Log;
+
+/**
+ * Searches the text of the pages of the open document in a background
+ * thread. Pages are searched starting at a given page and moving away
+ * from it in both directions, so the nearest hits come first. Each page
+ * with hits is reported as soon as it has been searched.
+ *
+ * Pages that are in the search index and don't contain the words of
+ * the query are skipped without looking at their text.
+ */
+class DroidReaderSearch {
+	/**
+	 * interface for search results, called from the search thread
+	 */
+	interface SearchListener {
+		/**
+		 * a page with hits was found
+		 * @param page the page number
+		 * @param count the number of hits on the page
+		 */
+		public void onSearchHit(int page, int count);
+		/**
+		 * all pages have been searched
+		 */
+		public void onSearchDone();
+	}
+
+	private static final String TAG = "DroidReaderSearch";
+	protected final static boolean LOG = false;
+
+	protected final DroidReaderDocument mDocument;
+
+	/**
+	 * the search that is waiting to be started
+	 */
+	protected String mQuery = null;
+	protected int mFromPage = 1;
+	protected SearchListener mListener = null;
+	protected boolean mPending = false;
+	/**
+	 * changes whenever a search is started or cancelled, the running
+	 * search stops when it notices
+	 */
+	protected int mGeneration = 0;
+
+	protected Thread mThread = null;
+	protected boolean mRun = true;
+
+	private final PdfPage mPage = new PdfPage();
+
+	DroidReaderSearch(DroidReaderDocument document) {
+		mDocument = document;
+	}
+
+	/**
+	 * Starts a new search, a search that is still running is cancelled
+	 * @param query the text to look for
+	 * @param fromPage the page to start at
+	 * @param listener gets told about the results
+	 */
+	synchronized void start(String query, int fromPage, SearchListener listener) {
+		if(LOG) Log.d(TAG, "searching \"" + query + "\" from page " + fromPage);
+		mGeneration++;
+		mQuery = query;
+		mFromPage = fromPage;
+		mListener = listener;
+		mPending = true;
+
+		if(mThread == null) {
+			mThread = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, TAG);
+			mThread.setPriority(Thread.MIN_PRIORITY);
+			mThread.setDaemon(true);
+			mThread.start();
+		} else {
+			notify();
+		}
+	}
+
+	/**
+	 * Cancels the running search, it stops after the page it is at
+	 */
+	synchronized void cancel() {
+		mGeneration++;
+		mPending = false;
+	}
+
+	/**
+	 * Stops the background thread
+	 */
+	synchronized void stop() {
+		mRun = false;
+		mGeneration++;
+		notify();
+	}
+
+	private synchronized boolean isCurrent(int generation) {
+		return mRun && (generation == mGeneration);
+	}
+
+	private void work() {
+		while(true) {
+			String query;
+			int fromPage;
+			SearchListener listener;
+			int generation;
+			synchronized(this) {
+				while(mRun && !mPending) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if(!mRun)
+					return;
+				mPending = false;
+				query = mQuery;
+				fromPage = mFromPage;
+				listener = mListener;
+				generation = mGeneration;
+			}
+			search(query, fromPage, listener, generation);
+		}
+	}
+
+	private void search(String query, int fromPage, SearchListener listener, int generation) {
+		int pageCount = mDocument.mDocument.pagecount;
+
+		// pages up to this one are in the index, the others need to be looked at
+		int indexed = 0;
+		BitSet candidates = null;
+		DroidReaderSearchIndex index = mDocument.mSearchIndex;
+		if((index != null) && !DroidReaderSearchIndex.words(query).isEmpty()) {
+			indexed = index.indexedPages();
+			candidates = new BitSet(pageCount + 1);
+			for(int page : index.search(query))
+				candidates.set(page);
+		}
+
+		for(int i = 0; i < 2 * pageCount; i++) {
+			// fromPage, fromPage + 1, fromPage - 1, fromPage + 2, ...
+			int no = ((i & 1) == 1) ? (fromPage + (i + 1) / 2) : (fromPage - i / 2);
+			if((no < 1) || (no > pageCount))
+				continue;
+			if(!isCurrent(generation))
+				return;
+			if((candidates != null) && (no <= indexed) && !candidates.get(no))
+				continue;
+			int count = count(no, query, pageCount);
+			if((count > 0) && isCurrent(generation))
+				listener.onSearchHit(no, count);
+		}
+
+		if(isCurrent(generation))
+			listener.onSearchDone();
+	}
+
+	/**
+	 * counts the hits on a page. The page is opened as a transient
+	 * page, so the page cache of the document stays as it is, and with
+	 * its images not reduced.
+	 */
+	private int count(int no, String query, int pageCount) {
+		synchronized(mDocument.mDocumentLock) {
+			PdfDocument doc = mDocument.mDocument;
+			if((doc.mHandle == 0) || (doc.pagecount != pageCount))
+				return 0;
+			try {
+				mPage.open(doc, no, PdfPage.FLAG_TRANSIENT, -1);
+				return mPage.getText().find(query).length;
+			} catch (PageLoadException e) {
+				Log.e(TAG, "cannot get text of page " + no + ": " + e.getMessage());
+				return 0;
+			} finally {
+				mPage.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Provides the list of pages a search found, in page order. Pages are
+ * added while the search is running. The last row tells whether the
+ * search is still going on or found nothing.
+ */
+class DroidReaderSearchAdapter extends BaseAdapter
+		implements DroidReaderSearch.SearchListener {
+	protected final Context mContext;
+	protected final LayoutInflater mInflater;
+	protected final Handler mHandler = new Handler();
+
+	/**
+	 * the pages with hits and their number of hits, sorted by page,
+	 * only touched on the UI thread
+	 */
+	protected final ArrayList<int[]> mHits = new ArrayList<int[]>();
+	protected boolean mDone = false;
+
+	DroidReaderSearchAdapter(Context context, LayoutInflater inflater) {
+		mContext = context;
+		mInflater = inflater;
+	}
+
+	@Override
+	public int getCount() {
+		// the status row goes away once there are hits and we're done
+		return mHits.size() + ((mDone && !mHits.isEmpty()) ? 0 : 1);
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return (position < mHits.size()) ? Integer.valueOf(mHits.get(position)[0]) : null;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+
+	/**
+	 * @param position the row
+	 * @return the page number of a row, or 0 for the status row
+	 */
+	int getPage(int position) {
+		return (position < mHits.size()) ? mHits.get(position)[0] : 0;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		return position < mHits.size();
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView row = (TextView) convertView;
+		if(row == null)
+			row = (TextView) mInflater.inflate(R.layout.searchresult, parent, false);
+
+		if(position < mHits.size()) {
+			int[] hit = mHits.get(position);
+			row.setText(mContext.getString(R.string.search_result_page, hit[0], hit[1]));
+		} else {
+			row.setText(mDone ? R.string.search_no_hits : R.string.search_running);
+		}
+		return row;
+	}
+
+	/**
+	 * called from the search thread
+	 */
+	@Override
+	public void onSearchHit(final int page, final int count) {
+		mHandler.post(new Runnable() {
+			public void run() {
+				int i = mHits.size();
+				while((i > 0) && (mHits.get(i - 1)[0] > page))
+					i--;
+				mHits.add(i, new int[] { page, count });
+				notifyDataSetChanged();
+			}
+		});
+	}
+
+	/**
+	 * called from the search thread
+	 */
+	@Override
+	public void onSearchDone() {
+		mHandler.post(new Runnable() {
+			public void run() {
+				mDone = true;
+				notifyDataSetChanged();
+			}
+		});
+	}
+}
@@ -0,0 +1,369 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+/**
+ * An inverted index of the words of a document: for each word, the
+ * pages it appears on. It is built in a background thread, one page
+ * after the other, and stored in a file in the cache directory, so
+ * indexing continues where it stopped when the document is opened
+ * again.
+ *
+ * The file starts with a header (magic, version, page count, number of
+ * indexed pages, number of words). Each word follows with its page
+ * list, which is stored as differences between page numbers.
+ */
+class DroidReaderSearchIndex {
+	private static final String TAG = "DroidReaderSearchIndex";
+	protected final static boolean LOG = false;
+
+	private static final int MAGIC = 0x44525849;
+	private static final int VERSION = 1;
+
+	/**
+	 * after how many pages the index is written to the file
+	 */
+	static final int SAVE_INTERVAL = 100;
+
+	/**
+	 * pages a word appears on, in ascending order
+	 */
+	static class Postings {
+		int[] pages;
+		int count;
+
+		Postings(int capacity) {
+			pages = new int[Math.max(2, capacity)];
+		}
+
+		void add(int page) {
+			if((count > 0) && (pages[count - 1] == page))
+				return;
+			if(count == pages.length) {
+				int[] grown = new int[count * 2];
+				System.arraycopy(pages, 0, grown, 0, count);
+				pages = grown;
+			}
+			pages[count++] = page;
+		}
+	}
+
+	protected final DroidReaderDocument mDocument;
+	protected final int mPageCount;
+
+	/**
+	 * the index file, null if we can't store the index
+	 */
+	protected File mFile = null;
+
+	protected final TreeMap<String,Postings> mWords = new TreeMap<String,Postings>();
+	/**
+	 * pages 1 to mIndexedPages are in the index
+	 */
+	protected int mIndexedPages = 0;
+
+	protected Thread mThread = null;
+	protected volatile boolean mRun = true;
+
+	private final PdfPage mPage = new PdfPage();
+
+	/**
+	 * Sets up the index for the document that is currently open
+	 * @param document the DroidReaderDocument to index
+	 * @param cacheDir the directory to keep the index file in, may be null
+	 * @param filename the PDF file
+	 */
+	DroidReaderSearchIndex(DroidReaderDocument document, File cacheDir, String filename) {
+		mDocument = document;
+		mPageCount = document.mDocument.pagecount;
+		if(cacheDir != null)
+			mFile = new File(cacheDir, "search-" + DroidReaderDocument.cacheKey(filename));
+	}
+
+	/**
+	 * Starts loading and building the index in the background
+	 */
+	synchronized void start() {
+		if(mThread != null)
+			return;
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, TAG);
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the background thread, the index built so far is written
+	 * to the file by the thread
+	 */
+	synchronized void stop() {
+		mRun = false;
+	}
+
+	synchronized int indexedPages() {
+		return mIndexedPages;
+	}
+
+	/**
+	 * Splits text into lower case words
+	 * @param text the text
+	 * @return the words
+	 */
+	static ArrayList<String> words(String text) {
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		int length = text.length();
+		for(int i = 0; i <= length; i++) {
+			boolean inWord = (i < length) && Character.isLetterOrDigit(text.charAt(i));
+			if(inWord && (start < 0)) {
+				start = i;
+			} else if(!inWord && (start >= 0)) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Looks up the pages that contain all words of a query. Each word
+	 * of the query also matches longer words starting with it. Pages
+	 * that are not indexed yet are not found.
+	 * @param query the words to look for
+	 * @return the page numbers in ascending order
+	 */
+	synchronized int[] search(String query) {
+		ArrayList<String> words = words(query);
+		if(words.isEmpty())
+			return new int[0];
+
+		BitSet result = null;
+		for(String word : words) {
+			BitSet pages = new BitSet(mPageCount + 1);
+			for(Postings postings : mWords.subMap(word, word + Character.MAX_VALUE).values())
+				for(int i = 0; i < postings.count; i++)
+					pages.set(postings.pages[i]);
+			if(result == null)
+				result = pages;
+			else
+				result.and(pages);
+		}
+
+		int[] found = new int[result.cardinality()];
+		int n = 0;
+		for(int page = result.nextSetBit(0); page >= 0; page = result.nextSetBit(page + 1))
+			found[n++] = page;
+		if(LOG) Log.d(TAG, "found \"" + query + "\" on " + n + " pages");
+		return found;
+	}
+
+	private void work() {
+		load();
+		int unsaved = 0;
+		while(mRun && (mIndexedPages < mPageCount)) {
+			int no = mIndexedPages + 1;
+			long start = System.nanoTime();
+			PdfText text = extract(no);
+			if(!mRun)
+				break;
+			// leave the document to the reader for longer than the page took
+			pause((System.nanoTime() - start) / 1000000 + 1);
+			synchronized(this) {
+				if(text != null)
+					add(text);
+				mIndexedPages = no;
+			}
+			if(++unsaved == SAVE_INTERVAL) {
+				save();
+				unsaved = 0;
+			}
+		}
+		if(unsaved > 0)
+			save();
+		if(LOG) Log.d(TAG, "indexed " + mIndexedPages + " of " + mPageCount + " pages");
+	}
+
+	private static void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	/**
+	 * gets the text of a page. The page is opened as a transient page,
+	 * so the page cache of the document stays as it is. Its images are
+	 * not reduced, which would make the reader decode them again.
+	 */
+	private PdfText extract(int no) {
+		synchronized(mDocument.mDocumentLock) {
+			PdfDocument doc = mDocument.mDocument;
+			if(!mRun || (doc.mHandle == 0) || (doc.pagecount != mPageCount)) {
+				mRun = false;
+				return null;
+			}
+			try {
+				mPage.open(doc, no, PdfPage.FLAG_TRANSIENT, -1);
+				return mPage.getText();
+			} catch (PageLoadException e) {
+				Log.e(TAG, "cannot get text of page " + no + ": " + e.getMessage());
+				return null;
+			} finally {
+				mPage.close();
+			}
+		}
+	}
+
+	private void add(PdfText text) {
+		for(String word : words(text.text)) {
+			Postings postings = mWords.get(word);
+			if(postings == null) {
+				postings = new Postings(2);
+				mWords.put(word, postings);
+			}
+			postings.add(text.page);
+		}
+	}
+
+	private void load() {
+		if((mFile == null) || !mFile.exists())
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			if((in.readInt() != MAGIC) || (in.readInt() != VERSION) || (in.readInt() != mPageCount))
+				return;
+			int indexedPages = in.readInt();
+			int count = in.readInt();
+			TreeMap<String,Postings> words = new TreeMap<String,Postings>();
+			for(int i = 0; i < count; i++) {
+				String word = in.readUTF();
+				int n = readVarInt(in);
+				Postings postings = new Postings(n);
+				int page = 0;
+				for(int j = 0; j < n; j++) {
+					page += readVarInt(in);
+					postings.add(page);
+				}
+				words.put(word, postings);
+			}
+			synchronized(this) {
+				mWords.putAll(words);
+				mIndexedPages = indexedPages;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read " + mFile + ": " + e.getMessage());
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if(LOG) Log.d(TAG, "loaded index of " + mIndexedPages + " pages from " + mFile);
+	}
+
+	/**
+	 * writes the index to a new file that replaces the old one, so a
+	 * crash while writing leaves the old index intact. The new file has
+	 * a name of its own, an index of the same document that was just
+	 * stopped may still be saving.
+	 */
+	private synchronized void save() {
+		if(mFile == null)
+			return;
+		File temp = null;
+		DataOutputStream out = null;
+		try {
+			temp = File.createTempFile(mFile.getName() + "-", ".new", mFile.getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mPageCount);
+			out.writeInt(mIndexedPages);
+			out.writeInt(mWords.size());
+			for(Map.Entry<String,Postings> entry : mWords.entrySet()) {
+				Postings postings = entry.getValue();
+				out.writeUTF(entry.getKey());
+				writeVarInt(out, postings.count);
+				int page = 0;
+				for(int i = 0; i < postings.count; i++) {
+					writeVarInt(out, postings.pages[i] - page);
+					page = postings.pages[i];
+				}
+			}
+			out.close();
+			out = null;
+			if(!temp.renameTo(mFile))
+				Log.e(TAG, "cannot replace " + mFile);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot write " + mFile + ": " + e.getMessage());
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if((temp != null) && temp.exists())
+				temp.delete();
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Provides the cells of the thumbnail grid. Only the visible cells
+ * exist, they are reused while scrolling. Thumbnails that are not ready
+ * yet are requested from DroidReaderThumbnails, the grid is refreshed
+ * when they arrive.
+ */
+class DroidReaderThumbnailAdapter extends BaseAdapter
+		implements DroidReaderThumbnails.ThumbnailListener {
+	protected final DroidReaderDocument mDocument;
+	protected final LayoutInflater mInflater;
+	protected final Handler mHandler = new Handler();
+	protected boolean mRefreshPending = false;
+
+	private final Runnable mRefresh = new Runnable() {
+		public void run() {
+			mRefreshPending = false;
+			notifyDataSetChanged();
+		}
+	};
+
+	DroidReaderThumbnailAdapter(DroidReaderDocument document, LayoutInflater inflater) {
+		mDocument = document;
+		mInflater = inflater;
+	}
+
+	@Override
+	public int getCount() {
+		return mDocument.mDocument.pagecount;
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return Integer.valueOf(position + 1);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position + 1;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View cell = convertView;
+		if(cell == null)
+			cell = mInflater.inflate(R.layout.thumbnail, parent, false);
+
+		ImageView image = (ImageView) cell.findViewById(R.id.thumbnail_image);
+		TextView label = (TextView) cell.findViewById(R.id.thumbnail_page);
+
+		Bitmap bitmap = null;
+		DroidReaderThumbnails thumbnails = mDocument.mThumbnails;
+		if(thumbnails != null) {
+			thumbnails.setListener(this);
+			bitmap = thumbnails.get(position + 1);
+		}
+		if(bitmap != null)
+			image.setImageBitmap(bitmap);
+		else
+			image.setImageDrawable(null);
+		label.setText(String.valueOf(position + 1));
+
+		return cell;
+	}
+
+	/**
+	 * called from the thumbnail thread, several thumbnails arriving in
+	 * a row only cause one refresh
+	 */
+	@Override
+	public void onThumbnailReady(int page) {
+		synchronized(this) {
+			if(mRefreshPending)
+				return;
+			mRefreshPending = true;
+		}
+		mHandler.post(mRefresh);
+	}
+}
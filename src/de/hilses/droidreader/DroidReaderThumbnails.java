@@ -0,0 +1,423 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package de.hilses.droidreader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+/**
+ * Renders small images of pages in a background thread and keeps them
+ * in memory and in a file in the cache directory.
+ *
+ * The file consists of records of page number, data length and JPEG
+ * data, new thumbnails get appended. Its index is built when the
+ * thumbnails of a document are first asked for. A record that was not
+ * written completely is cut off then.
+ *
+ * The thumbnail files of documents that were used least recently are
+ * removed when they all take more than FILE_CACHE_LIMIT bytes.
+ */
+class DroidReaderThumbnails {
+	/**
+	 * interface for notification on rendered thumbnails, called from
+	 * the thumbnail thread
+	 */
+	interface ThumbnailListener {
+		public void onThumbnailReady(int page);
+	}
+
+	private static final String TAG = "DroidReaderThumbnails";
+	protected final static boolean LOG = false;
+
+	/**
+	 * the longer side of a thumbnail in pixels
+	 */
+	static final int THUMBNAIL_SIZE = 128;
+
+	/**
+	 * how many thumbnails we keep in memory
+	 */
+	static final int MEMORY_CACHE_SIZE = 64;
+
+	/**
+	 * how many requests we remember, older ones were most likely
+	 * scrolled out of view already
+	 */
+	static final int MAX_REQUESTS = 32;
+
+	/**
+	 * how many bytes the thumbnail files of all documents may take
+	 */
+	static final long FILE_CACHE_LIMIT = 8 * 1024 * 1024;
+
+	/**
+	 * the start of the file names of thumbnail files
+	 */
+	private static final String FILE_PREFIX = "thumbs" + THUMBNAIL_SIZE + "-";
+
+	protected final DroidReaderDocument mDocument;
+
+	/**
+	 * the thumbnail file, null if we can't store thumbnails
+	 */
+	protected File mFile = null;
+
+	/**
+	 * page number -> offset of the JPEG data in the file
+	 */
+	protected final HashMap<Integer,Long> mIndex = new HashMap<Integer,Long>();
+	/**
+	 * page number -> length of the JPEG data in the file
+	 */
+	protected final HashMap<Integer,Integer> mLength = new HashMap<Integer,Integer>();
+	protected boolean mIndexLoaded = false;
+
+	/**
+	 * recently used thumbnails
+	 */
+	protected final LinkedHashMap<Integer,Bitmap> mBitmaps =
+		new LinkedHashMap<Integer,Bitmap>(MEMORY_CACHE_SIZE, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,Bitmap> eldest) {
+				return size() > MEMORY_CACHE_SIZE;
+			}
+		};
+
+	/**
+	 * pages waiting for their thumbnail, the newest request comes first
+	 */
+	protected final LinkedList<Integer> mRequests = new LinkedList<Integer>();
+
+	protected ThumbnailListener mListener = null;
+	protected Thread mThread = null;
+	protected boolean mRun = true;
+
+	private final PdfPage mPage = new PdfPage();
+	private final PdfView mView = new PdfView();
+	private final Matrix mMatrix = new Matrix();
+
+	/**
+	 * Sets up the thumbnails for the document that is currently open
+	 * @param document the DroidReaderDocument to render from
+	 * @param cacheDir the directory to keep the thumbnail file in, may be null
+	 * @param filename the PDF file
+	 */
+	DroidReaderThumbnails(DroidReaderDocument document, File cacheDir, String filename) {
+		mDocument = document;
+		// thumbnails are too small to show fine detail anyway
+		mView.setLevelOfDetail(true);
+		if(cacheDir != null)
+			mFile = new File(cacheDir, FILE_PREFIX + DroidReaderDocument.cacheKey(filename));
+	}
+
+	void setListener(ThumbnailListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Gets the thumbnail of a page. If it is not in memory, it will be
+	 * loaded or rendered in the background and the listener is told
+	 * when it is ready.
+	 * @param page the page number
+	 * @return the thumbnail, or null if it is not available yet
+	 */
+	synchronized Bitmap get(int page) {
+		Bitmap bitmap = mBitmaps.get(page);
+		if(bitmap != null)
+			return bitmap;
+
+		mRequests.remove(Integer.valueOf(page));
+		mRequests.addFirst(page);
+		while(mRequests.size() > MAX_REQUESTS)
+			mRequests.removeLast();
+
+		if(mThread == null) {
+			mThread = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, TAG);
+			mThread.setPriority(Thread.MIN_PRIORITY);
+			mThread.setDaemon(true);
+			mThread.start();
+		} else {
+			notify();
+		}
+		return null;
+	}
+
+	/**
+	 * Stops the background thread, outstanding requests are dropped.
+	 * The thread gives back the memory of its pixmap when it ends.
+	 */
+	synchronized void stop() {
+		mRun = false;
+		mRequests.clear();
+		notify();
+	}
+
+	private void work() {
+		while(true) {
+			int page;
+			synchronized(this) {
+				while(mRun && mRequests.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if(!mRun)
+					break;
+				page = mRequests.removeFirst();
+			}
+
+			if(!mIndexLoaded)
+				loadIndex();
+
+			Bitmap bitmap = load(page);
+			if(bitmap == null) {
+				bitmap = render(page);
+				if(bitmap == null)
+					continue;
+				save(page, bitmap);
+			}
+
+			synchronized(this) {
+				mBitmaps.put(page, bitmap);
+			}
+			if(mListener != null)
+				mListener.onThumbnailReady(page);
+		}
+		// a new instance comes with the next document
+		mView.release();
+	}
+
+	private void loadIndex() {
+		mIndexLoaded = true;
+		if(mFile == null)
+			return;
+		pruneFiles();
+		if(!mFile.exists())
+			return;
+		DataInputStream in = null;
+		long offset = 0;
+		long fileLength = mFile.length();
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+			while(offset + 8 <= fileLength) {
+				int page = in.readInt();
+				int length = in.readInt();
+				if((length < 0) || (offset + 8 + length > fileLength))
+					break; // broken or incomplete record
+				mIndex.put(page, offset + 8);
+				mLength.put(page, length);
+				in.skipBytes(length);
+				offset += 8 + length;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read " + mFile + ": " + e.getMessage());
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		// new records go right after the last good one
+		if(offset < fileLength)
+			truncate(offset);
+		if(LOG) Log.d(TAG, "found " + mIndex.size() + " thumbnails in " + mFile);
+	}
+
+	/**
+	 * cuts the file off at length
+	 */
+	private void truncate(long length) {
+		if(LOG) Log.d(TAG, "cutting " + mFile + " off at " + length);
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mFile, "rw");
+			file.setLength(length);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot repair " + mFile + ", removing it: " + e.getMessage());
+			mIndex.clear();
+			mLength.clear();
+			mFile.delete();
+		} finally {
+			if(file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the thumbnail file as used and removes the thumbnail files
+	 * of other documents that were used least recently, when they all
+	 * take more than FILE_CACHE_LIMIT bytes.
+	 */
+	private void pruneFiles() {
+		mFile.setLastModified(System.currentTimeMillis());
+		File[] files = mFile.getParentFile().listFiles();
+		if(files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = b.lastModified() - a.lastModified();
+				return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+			}
+		});
+		long total = 0;
+		for(File other : files) {
+			if(!other.getName().startsWith(FILE_PREFIX) || !other.isFile())
+				continue;
+			total += other.length();
+			if((total > FILE_CACHE_LIMIT) && !other.equals(mFile)) {
+				if(LOG) Log.d(TAG, "removing thumbnails in " + other);
+				other.delete();
+			}
+		}
+	}
+
+	private Bitmap load(int page) {
+		Long offset = mIndex.get(page);
+		if(offset == null)
+			return null;
+		RandomAccessFile file = null;
+		try {
+			byte[] data = new byte[mLength.get(page)];
+			file = new RandomAccessFile(mFile, "r");
+			file.seek(offset);
+			file.readFully(data);
+			return BitmapFactory.decodeByteArray(data, 0, data.length);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read thumbnail from " + mFile + ": " + e.getMessage());
+			return null;
+		} finally {
+			if(file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void save(int page, Bitmap bitmap) {
+		if(mFile == null)
+			return;
+		ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 75, jpeg);
+		byte[] data = jpeg.toByteArray();
+		RandomAccessFile file = null;
+		long offset = -1;
+		try {
+			file = new RandomAccessFile(mFile, "rw");
+			offset = file.length();
+			// a document with a lot of pages keeps the rest in memory only
+			if(offset + 8 + data.length > FILE_CACHE_LIMIT)
+				return;
+			file.seek(offset);
+			file.writeInt(page);
+			file.writeInt(data.length);
+			file.write(data);
+			mIndex.put(page, offset + 8);
+			mLength.put(page, data.length);
+		} catch (IOException e) {
+			Log.e(TAG, "cannot write " + mFile + ": " + e.getMessage());
+			// don't leave a partial record for the next one to follow
+			if((file != null) && (offset >= 0)) {
+				try {
+					file.setLength(offset);
+				} catch (IOException e2) {
+				}
+			}
+		} finally {
+			if(file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * renders a page at thumbnail size. The page is opened as a transient
+	 * page, so the page cache of the document stays as it is.
+	 */
+	private Bitmap render(int no) {
+		int width, height;
+		synchronized(mDocument.mDocumentLock) {
+			PdfDocument doc = mDocument.mDocument;
+			if(!mRun || (doc.mHandle == 0) || (no < 1) || (no > doc.pagecount))
+				return null;
+			try {
+				mPage.open(doc, no, PdfPage.FLAG_TRANSIENT, -1);
+				float[] mediabox = mPage.mMediabox;
+				RectF bounds = new RectF(mediabox[0], mediabox[1], mediabox[2], mediabox[3]);
+
+				mMatrix.reset();
+				mMatrix.postScale(1, -1);
+				mMatrix.postTranslate(-mediabox[0], mediabox[3]);
+				mMatrix.postRotate(mPage.rotate);
+				mMatrix.mapRect(bounds);
+				mMatrix.postTranslate(-bounds.left, -bounds.top);
+				float scale = THUMBNAIL_SIZE / Math.max(bounds.width(), bounds.height());
+				mMatrix.postScale(scale, scale);
+
+				width = Math.max(1, (int) (bounds.width() * scale));
+				height = Math.max(1, (int) (bounds.height() * scale));
+				mView.render(doc, mPage, new Rect(0, 0, width, height), mMatrix);
+			} catch (PageLoadException e) {
+				Log.e(TAG, "cannot load page " + no + ": " + e.getMessage());
+				return null;
+			} catch (PageRenderException e) {
+				Log.e(TAG, "cannot render page " + no + ": " + e.getMessage());
+				return null;
+			} finally {
+				mPage.close();
+			}
+		}
+		return Bitmap.createBitmap(mView.mBuf, width, height, Bitmap.Config.ARGB_8888);
+	}
+}
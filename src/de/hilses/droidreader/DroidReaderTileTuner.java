@@ -0,0 +1,197 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Chooses the size of the area that is rendered around the display,
+ * from how long renders actually take on this device.
+ *
+ * A render costs time per megapixel, and pages with more content cost
+ * more. Each page gets the moving average of its own cost once it has
+ * been rendered. For pages that haven't been rendered yet, a line is
+ * fitted through the costs of all pages over the size of their display
+ * lists. The list size stands in for the number of nodes.
+ *
+ * The area is as large as can be rendered in TARGET_MICROS, so
+ * scrolling within it needs no render and leaving it costs a bounded
+ * delay. It is never smaller than the display. It is at most
+ * MAX_FACTOR times the display each way, and it may not use more than
+ * a MEMORY_SHARE part of the native memory budget. The margin only goes
+ * in the directions where the page is larger than the display.
+ */
+class DroidReaderTileTuner {
+	static final String TAG = "DroidReaderTileTuner";
+	protected final static boolean LOG = false;
+
+	/**
+	 * how long a render may take
+	 */
+	static final long TARGET_MICROS = 120000;
+	/**
+	 * the largest tile side, in display sides
+	 */
+	static final float MAX_FACTOR = 3f;
+	/**
+	 * the tile side before anything has been measured, in display sides
+	 */
+	static final float DEFAULT_FACTOR = 1.5f;
+	/**
+	 * tiles may use this part of PdfRender.fitzMemory
+	 */
+	static final int MEMORY_SHARE = 4;
+	/**
+	 * tile sides are multiples of this, so they don't change for every
+	 * small difference in the measurements
+	 */
+	static final int GRANULARITY = 32;
+	/**
+	 * weight of the older measurements in the averages
+	 */
+	static final double DECAY = 0.8;
+	/**
+	 * for how many pages the cost is kept
+	 */
+	static final int PAGES = 32;
+
+	/**
+	 * microseconds per megapixel, by page number
+	 */
+	private final LinkedHashMap<Integer,Double> mPageCost =
+		new LinkedHashMap<Integer,Double>(PAGES, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,Double> eldest) {
+				return size() > PAGES;
+			}
+		};
+
+	/**
+	 * decayed sums for fitting cost = base + slope * list size over all pages
+	 */
+	private double mN = 0;
+	private double mSumX = 0;
+	private double mSumY = 0;
+	private double mSumXX = 0;
+	private double mSumXY = 0;
+
+	/**
+	 * Records a render
+	 * @param page the page that was rendered
+	 * @param pixels how many pixels were rendered
+	 * @param micros how long it took
+	 */
+	synchronized void rendered(PdfPage page, int pixels, long micros) {
+		if(pixels <= 0)
+			return;
+		double cost = (double) micros * 1000000 / pixels;
+		Double old = mPageCost.get(page.no);
+		mPageCost.put(page.no, (old == null) ? cost : DECAY * old + (1 - DECAY) * cost);
+
+		double x = page.listSize;
+		mN = DECAY * mN + 1;
+		mSumX = DECAY * mSumX + x;
+		mSumY = DECAY * mSumY + cost;
+		mSumXX = DECAY * mSumXX + x * x;
+		mSumXY = DECAY * mSumXY + x * cost;
+	}
+
+	/**
+	 * Forgets the costs of pages, for when another document is opened.
+	 * The fitted line is kept since it is about the device as much as
+	 * about the document.
+	 */
+	synchronized void forgetPages() {
+		mPageCost.clear();
+	}
+
+	/**
+	 * @return the expected microseconds per megapixel for a page, or
+	 *         0 if nothing has been measured yet
+	 */
+	synchronized double cost(PdfPage page) {
+		Double cost = mPageCost.get(page.no);
+		if(cost != null)
+			return cost;
+		if(mN == 0)
+			return 0;
+		double mean = mSumY / mN;
+		double var = mSumXX / mN - (mSumX / mN) * (mSumX / mN);
+		if(var <= 0)
+			return mean;
+		double slope = (mSumXY / mN - (mSumX / mN) * mean) / var;
+		// a page with more content shouldn't be cheaper
+		slope = Math.max(0, slope);
+		return Math.max(mean / 4, mean + slope * (page.listSize - mSumX / mN));
+	}
+
+	/**
+	 * Chooses the tile size for a page
+	 * @param page the page
+	 * @param displayX width of the display
+	 * @param displayY height of the display
+	 * @param pageX width of the page at the current zoom
+	 * @param pageY height of the page at the current zoom
+	 * @param bytesPerPixel size of a pixel in the render buffer
+	 * @param views how many tiles are kept at the same time
+	 * @param out set to the width and height of the tile
+	 */
+	void tileSize(PdfPage page, int displayX, int displayY, int pageX, int pageY,
+			int bytesPerPixel, int views, int[] out) {
+		double display = (double) displayX * displayY;
+		double area;
+		double cost = cost(page);
+		if(cost > 0)
+			area = TARGET_MICROS * 1000000.0 / cost;
+		else
+			area = display * DEFAULT_FACTOR * DEFAULT_FACTOR;
+		area = Math.min(area, (double) PdfRender.fitzMemory / MEMORY_SHARE / bytesPerPixel / views);
+		area = Math.max(area, display);
+
+		boolean growX = pageX > displayX;
+		boolean growY = pageY > displayY;
+		double tileX = displayX;
+		double tileY = displayY;
+		if(growX && growY) {
+			double factor = Math.sqrt(area / display);
+			tileX *= factor;
+			tileY *= factor;
+		} else if(growX) {
+			tileX = area / displayY;
+		} else if(growY) {
+			tileY = area / displayX;
+		}
+		out[0] = round(Math.min(tileX, displayX * MAX_FACTOR), displayX);
+		out[1] = round(Math.min(tileY, displayY * MAX_FACTOR), displayY);
+		if(LOG) Log.d(TAG, "page " + page.no + ": " + (int) cost + " us/Mpixel, tile "
+				+ out[0] + "x" + out[1]);
+	}
+
+	private static int round(double side, int display) {
+		int rounded = ((int) side / GRANULARITY) * GRANULARITY;
+		return Math.max(rounded, display);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Records when the steps of opening and drawing pages begin and end, in
+ * a ring buffer that keeps the latest events. The native code keeps a
+ * ring of its own. Both are written to a file in the JSON trace event
+ * format that chrome://tracing and Perfetto read.
+ *
+ * Callers check ON before recording, so a disabled recorder costs no
+ * more than reading a field:
+ *
+ * <pre>if(DroidReaderTrace.ON) DroidReaderTrace.begin("doDraw");</pre>
+ */
+final class DroidReaderTrace {
+	static final String TAG = "DroidReaderTrace";
+
+	static final int CAPACITY = 16384;
+	/**
+	 * how many native events are fetched at most
+	 */
+	static final int NATIVE_CAPACITY = 4096;
+
+	/**
+	 * whether events are recorded
+	 */
+	static volatile boolean ON = false;
+
+	private static final long[] sTimes = new long[CAPACITY];
+	private static final int[] sTids = new int[CAPACITY];
+	private static final String[] sNames = new String[CAPACITY];
+	private static final char[] sPhases = new char[CAPACITY];
+	private static final AtomicInteger sNext = new AtomicInteger();
+
+	/**
+	 * thread names by thread ID, for the metadata of the trace
+	 */
+	private static final Map<Integer,String> sThreads = new ConcurrentHashMap<Integer,String>();
+
+	private DroidReaderTrace() {
+	}
+
+	/**
+	 * Turns recording on or off, turning it on starts a new recording
+	 * @param enabled true to record events
+	 */
+	static synchronized void setEnabled(boolean enabled) {
+		if(enabled && !ON) {
+			sNext.set(0);
+			sThreads.clear();
+		}
+		PdfRender.setTracing(enabled);
+		ON = enabled;
+	}
+
+	static void begin(String name) {
+		record(name, 'B');
+	}
+
+	static void end(String name) {
+		record(name, 'E');
+	}
+
+	private static void record(String name, char phase) {
+		long time = System.nanoTime();
+		int tid = android.os.Process.myTid();
+		int i = (sNext.getAndIncrement() & Integer.MAX_VALUE) % CAPACITY;
+		sTimes[i] = time;
+		sTids[i] = tid;
+		sNames[i] = name;
+		sPhases[i] = phase;
+		if(!sThreads.containsKey(tid))
+			sThreads.put(tid, Thread.currentThread().getName());
+	}
+
+	/**
+	 * Writes the recorded Java and native events to a file, sorted by
+	 * time. Events that are recorded while writing may be missing.
+	 * @param file the file to write
+	 * @throws IOException when the file cannot be written
+	 */
+	static synchronized void dump(File file) throws IOException {
+		int javaCount = Math.min(sNext.get(), CAPACITY);
+		long[] nativeTimes = new long[NATIVE_CAPACITY];
+		int[] nativeTids = new int[NATIVE_CAPACITY];
+		int[] nativeCodes = new int[NATIVE_CAPACITY];
+		int nativeCount = PdfRender.getTrace(nativeTimes, nativeTids, nativeCodes);
+		String[] nativeNames = PdfRender.getTraceNames();
+
+		// sort the events by time through an index, Java events first
+		int count = javaCount + nativeCount;
+		long[] order = new long[count];
+		long base = Long.MAX_VALUE;
+		for(int i = 0; i < javaCount; i++)
+			base = Math.min(base, sTimes[i]);
+		for(int i = 0; i < nativeCount; i++)
+			base = Math.min(base, nativeTimes[i]);
+		for(int i = 0; i < count; i++) {
+			long time = (i < javaCount) ? sTimes[i] : nativeTimes[i - javaCount];
+			// microseconds relative to the first event, the index in the low bits
+			order[i] = (((time - base) / 1000) << 20) | i;
+		}
+		Arrays.sort(order);
+
+		int pid = android.os.Process.myPid();
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			out.write("{\"traceEvents\":[");
+			boolean first = true;
+			for(Map.Entry<Integer,String> thread : sThreads.entrySet()) {
+				if(!first)
+					out.write(",");
+				first = false;
+				out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid
+						+ ",\"tid\":" + thread.getKey() + ",\"args\":{\"name\":\""
+						+ escape(thread.getValue()) + "\"}}");
+			}
+			for(int j = 0; j < count; j++) {
+				int i = (int) (order[j] & 0xfffff);
+				long ts = order[j] >>> 20;
+				String name;
+				char phase;
+				int tid;
+				if(i < javaCount) {
+					name = sNames[i];
+					phase = sPhases[i];
+					tid = sTids[i];
+				} else {
+					int code = nativeCodes[i - javaCount];
+					name = nativeNames[code >> 8];
+					phase = (char) (code & 0xff);
+					tid = nativeTids[i - javaCount];
+				}
+				if(!first)
+					out.write(",");
+				first = false;
+				out.write("\n{\"name\":\"" + escape(name) + "\",\"ph\":\"" + phase
+						+ "\",\"ts\":" + ts + ",\"pid\":" + pid + ",\"tid\":" + tid + "}");
+			}
+			out.write("\n]}\n");
+		} finally {
+			out.close();
+		}
+		Log.i(TAG, "wrote " + count + " trace events to " + file);
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -24,9 +24,13 @@ the Free Software Foundation, either version 3 of the License, or
 
 package de.hilses.droidreader;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.RectF;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.widget.Scroller;
@@ -57,6 +61,10 @@ class DroidReaderViewThread extends Thread {
 	 * Paint for the status text
 	 */
 	protected final Paint mStatusPaint;
+	/**
+	 * Paint for marking search hits
+	 */
+	protected final Paint mHighlightPaint;
 
 	/**
 	 * Flag that our thread should be running
@@ -87,6 +95,9 @@ class DroidReaderViewThread extends Thread {
 		mEmptyPaint = new Paint();
 		mNoPagePaint = new Paint();
 		mStatusPaint = new Paint();
+		mHighlightPaint = new Paint();
+		mHighlightPaint.setStyle(Paint.Style.FILL);
+		mHighlightPaint.setColor(0x60ffff00); // translucent yellow
 
 		setPainters(false);
 
@@ -130,14 +141,20 @@ class DroidReaderViewThread extends Thread {
 					doSleep = false;
 					int oldX = mDocument.mOffsetX;
 					int oldY = mDocument.mOffsetY;
+					int oldScroll = mDocument.mScrollY;
 					mDocument.offset(mScroller.getCurrX(), mScroller.getCurrY(), true);
-					if((oldX == mDocument.mOffsetX) && (oldY == mDocument.mOffsetY))
+					if((oldX == mDocument.mOffsetX) && (oldY == mDocument.mOffsetY)
+							&& (oldScroll == mDocument.mScrollY))
 						mScroller.abortAnimation();
 				} else {
 					mScroller.abortAnimation();
 				}
 			}
+			long start = System.nanoTime();
+			if(DroidReaderTrace.ON) DroidReaderTrace.begin("doDraw");
 			doDraw();
+			if(DroidReaderTrace.ON) DroidReaderTrace.end("doDraw");
+			DroidReaderMetrics.frameDrawn(start, !doSleep);
 			// if we're allowed, we will go to sleep now
 			if(doSleep) {
 				try {
@@ -169,21 +186,18 @@ class DroidReaderViewThread extends Thread {
 				// no page/document loaded
 				if(LOG) Log.d(TAG, "no page loaded.");
 				c.drawRect(0, 0, c.getWidth(), c.getHeight(), mNoPagePaint);
+			} else if(mDocument.mContinuous) {
+				if(LOG) Log.d(TAG, "page loaded, drawing continuous layout");
+				c.drawRect(0, 0, c.getWidth(), c.getHeight(), mEmptyPaint);
+				drawContinuous(c);
 			} else if(mDocument.havePixmap()) {
 				// we have both page and Pixmap, so draw:
 				// background:
 				if(LOG) Log.d(TAG, "page loaded, rendering pixmap");
 				c.drawRect(0, 0, c.getWidth(), c.getHeight(), mEmptyPaint);
-				c.drawBitmap(
-						mDocument.mView.mBuf,
-						0,
-						mDocument.mView.mViewBox.width(),
-						-mDocument.mOffsetX + mDocument.mView.mViewBox.left,
-						-mDocument.mOffsetY + mDocument.mView.mViewBox.top,
-						mDocument.mView.mViewBox.width(),
-						mDocument.mView.mViewBox.height(),
-						false,
-						null);
+				mDocument.mView.draw(c, -mDocument.mOffsetX, -mDocument.mOffsetY);
+				drawHighlights(c, mDocument.mPageMatrix,
+						-mDocument.mOffsetX, -mDocument.mOffsetY);
 			} else {
 				// page loaded, but no Pixmap yet
 				if(LOG) Log.d(TAG, "page loaded, but no active Pixmap.");
@@ -196,6 +210,42 @@ class DroidReaderViewThread extends Thread {
 		}
 	}
 
+	/**
+	 * draws the pages that are laid out below each other in continuous mode
+	 */
+	private void drawContinuous(Canvas c) {
+		int[] tops = mDocument.mPageTops;
+		if(tops == null)
+			return;
+		for(DroidReaderDocument.PageSlot slot : mDocument.mSlots) {
+			int no = slot.mPage.no;
+			if((no < 1) || (no >= tops.length) || !slot.mHavePixmap)
+				continue;
+			slot.mView.draw(c, -mDocument.mOffsetX, tops[no - 1] - mDocument.mScrollY);
+			if(no == mDocument.mHighlightPage)
+				drawHighlights(c, slot.mMatrix,
+						-mDocument.mOffsetX, tops[no - 1] - mDocument.mScrollY);
+		}
+	}
+
+	/**
+	 * marks where the search query was found on the current page
+	 * @param matrix the Matrix the page was rendered with
+	 * @param dx horizontal position of the page on the display
+	 * @param dy vertical position of the page on the display
+	 */
+	private void drawHighlights(Canvas c, Matrix matrix, int dx, int dy) {
+		ArrayList<RectF> highlights = mDocument.mHighlights;
+		if(highlights == null)
+			return;
+		RectF rect = new RectF();
+		for(RectF highlight : highlights) {
+			matrix.mapRect(rect, highlight);
+			rect.offset(dx, dy);
+			c.drawRect(rect, mHighlightPaint);
+		}
+	}
+
 	public void triggerRepaint() {
 		if(LOG) Log.d(TAG, "repaint triggered");
 		interrupt();
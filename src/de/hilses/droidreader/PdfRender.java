@@ -24,12 +24,18 @@ the Free Software Foundation, either version 3 of the License, or
 
 package de.hilses.droidreader;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
 import java.lang.String;
 import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 
 /**
  * An instance of this class will provide font file names, reading from Preferences
@@ -97,9 +103,30 @@ final class PdfRender {
 	 */
 	protected static int bytesPerPixel = 4;
 	/**
-	 * how much memory is the MuPDF backend allowed to use
+	 * how much memory is the MuPDF backend allowed to use, including
+	 * the render buffers. The memory governor in the native code
+	 * balances display lists, resources and glyphs against this.
+	 * The budget is for the whole process, only one document is
+	 * supported to be open at a time.
 	 */
-	protected static int fitzMemory = 512 * 1024;
+	protected static int fitzMemory = 32 * 1024 * 1024;
+
+	/**
+	 * indices into the array returned by getGlyphCacheStats()
+	 */
+	static final int GLYPHCACHE_HITS = 0;
+	static final int GLYPHCACHE_MISSES = 1;
+	static final int GLYPHCACHE_EVICTIONS = 2;
+	static final int GLYPHCACHE_BYTES = 3;
+	static final int GLYPHCACHE_ENTRIES = 4;
+	static final int GLYPHCACHE_LIMIT = 5;
+
+	/**
+	 * sets of pixel kernels, see setPixelKernels()
+	 */
+	static final int PIXEL_KERNELS_SCALAR = 0;
+	static final int PIXEL_KERNELS_SIMD = 1;
+	static final int PIXEL_KERNELS_AVX2 = 2;
 
 	/**
 	 * the FontProvider instance that is queried from JNI code
@@ -133,6 +160,170 @@ final class PdfRender {
 	 */
 	static void setFontProvider(FontProvider newProvider) {
 		fontProvider = newProvider;
+		flushFontCache();
+	}
+
+	/**
+	 * Maps the standard PDF fonts to the files in the font/ assets
+	 * that replace them
+	 * @param fontName the name of the font
+	 * @return the file name within font/, or null if there is none
+	 */
+	static String standardFontFile(String fontName) {
+		if(fontName.equals("Courier"))
+			return "NimbusMonL-Regu.cff";
+		if(fontName.equals("Courier-Bold"))
+			return "NimbusMonL-Bold.cff";
+		if(fontName.equals("Courier-Oblique"))
+			return "NimbusMonL-ReguObli.cff";
+		if(fontName.equals("Courier-BoldOblique"))
+			return "NimbusMonL-BoldObli.cff";
+		if(fontName.equals("Helvetica"))
+			return "NimbusSanL-Regu.cff";
+		if(fontName.equals("Helvetica-Bold"))
+			return "NimbusSanL-Bold.cff";
+		if(fontName.equals("Helvetica-Oblique"))
+			return "NimbusSanL-ReguItal.cff";
+		if(fontName.equals("Helvetica-BoldOblique"))
+			return "NimbusSanL-BoldItal.cff";
+		if(fontName.equals("Times-Roman"))
+			return "NimbusRomNo9L-Regu.cff";
+		if(fontName.equals("Times-Bold"))
+			return "NimbusRomNo9L-Medi.cff";
+		if(fontName.equals("Times-Italic"))
+			return "NimbusRomNo9L-ReguItal.cff";
+		if(fontName.equals("Times-BoldItalic"))
+			return "NimbusRomNo9L-MediItal.cff";
+		if(fontName.equals("Symbol"))
+			return "StandardSymL.cff";
+		if(fontName.equals("ZapfDingbats"))
+			return "Dingbats.cff";
+		if(fontName.equals("Chancery"))
+			return "URWChanceryL-MediItal.cff";
+		return null;
+	}
+
+	/**
+	 * drops the results of earlier FontProvider calls that the native
+	 * code keeps cached
+	 */
+	private static native void nativeFlushFontCache();
+
+	/**
+	 * Makes the native code ask the FontProvider again, e.g. after
+	 * font related Preferences have changed
+	 */
+	static void flushFontCache() {
+		nativeFlushFontCache();
+	}
+
+	/**
+	 * sets the size limit of the native glyph cache
+	 * @param bytes maximum number of bytes used for rasterized glyphs
+	 */
+	private static native void nativeSetGlyphCacheSize(int bytes);
+
+	/**
+	 * reads the glyph cache statistics
+	 * @param stats int[6] array that will be filled
+	 */
+	private static native void nativeGetGlyphCacheStats(int[] stats);
+
+	/**
+	 * Sets the memory budget for rasterized glyphs
+	 * @param bytes the new size limit
+	 */
+	static void setGlyphCacheSize(int bytes) {
+		nativeSetGlyphCacheSize(bytes);
+	}
+
+	/**
+	 * Gets statistics of the glyph cache, use the GLYPHCACHE_* constants
+	 * as indices into the result
+	 * @return hits, misses, evictions, bytes used, entries and size limit
+	 */
+	static int[] getGlyphCacheStats() {
+		int[] stats = new int[6];
+		nativeGetGlyphCacheStats(stats);
+		return stats;
+	}
+
+	/**
+	 * selects the pixel kernels
+	 * @param maxLevel the fastest set that may be used
+	 * @return the set that is used
+	 */
+	private static native int nativeSetPixelKernels(int maxLevel);
+
+	/**
+	 * Limits the loops that convert rendered pixels to a set of pixel
+	 * kernels. By default the fastest ones the CPU supports are used,
+	 * lower sets are there for comparing them.
+	 * @param maxLevel one of the PIXEL_KERNELS_* constants
+	 * @return the set that is used, which is lower if the CPU doesn't
+	 *         support maxLevel
+	 */
+	static int setPixelKernels(int maxLevel) {
+		return nativeSetPixelKernels(maxLevel);
+	}
+
+	/**
+	 * tells the memory governor about render buffers changing size
+	 * @param delta the number of bytes that were allocated (or freed, if negative)
+	 */
+	private static native void nativeAdjustPixelMemory(int delta);
+
+	/**
+	 * Accounts render buffer memory against the memory budget
+	 * @param delta number of bytes allocated (positive) or released (negative)
+	 */
+	static void adjustPixelMemory(int delta) {
+		if(delta != 0)
+			nativeAdjustPixelMemory(delta);
+	}
+
+	/**
+	 * turns recording of native trace events on or off
+	 * @param enabled true to record, enabling starts a new recording
+	 */
+	private static native void nativeSetTracing(boolean enabled);
+
+	/**
+	 * @return the names of the native trace events, indexed by name code
+	 */
+	private static native String[] nativeGetTraceNames();
+
+	/**
+	 * copies the recorded native trace events, oldest first
+	 * @param times the times of the events, as System.nanoTime()
+	 * @param tids the thread IDs of the events
+	 * @param codes the index of the event name shifted left by 8, or'ed
+	 *              with the phase character ('B' or 'E')
+	 * @return the number of events that were copied
+	 */
+	private static native int nativeGetTrace(long[] times, int[] tids, int[] codes);
+
+	/**
+	 * Turns the native trace recorder on or off
+	 * @param enabled true to record events
+	 */
+	static void setTracing(boolean enabled) {
+		nativeSetTracing(enabled);
+	}
+
+	/**
+	 * @return the names of native trace events, indexed by name code
+	 */
+	static String[] getTraceNames() {
+		return nativeGetTraceNames();
+	}
+
+	/**
+	 * Gets the native trace events, see nativeGetTrace()
+	 * @return the number of events that were copied
+	 */
+	static int getTrace(long[] times, int[] tids, int[] codes) {
+		return nativeGetTrace(times, tids, codes);
 	}
 }
 
@@ -212,6 +403,7 @@ class PdfDocument {
 			this.close();
 		mHandle = this.nativeOpen(
 				PdfRender.fitzMemory, filename, password);
+		mOutline = new PdfOutlineItem(null, 0, 0, 0, true);
 	}
 
 	/**
@@ -229,17 +421,141 @@ class PdfDocument {
 			this.nativeClose(mHandle);
 			mHandle = 0;
 			pagecount = 0;
+			mOutline = null;
 		}
 	}
 
 	/**
-	 * Find out if the current document is a memory hog.
+	 * sets the directory for display lists of pages
+	 * @param dochandle the handle that was returned upon opening the PDF
+	 * @param dir the directory, null to not keep display lists
+	 * @param limit how many bytes the files in the directory may take
+	 */
+	private native void nativeSetListCache(long dochandle, String dir, int limit);
+
+	/**
+	 * Keeps the display lists of pages opened for display in files in a
+	 * directory, so reopening them doesn't run their content again. The
+	 * directory must be used for this document only. Once its files take
+	 * limit bytes, no more lists are written.
+	 * @param dir an existing directory, or null to not use files
+	 * @param limit how many bytes the files in the directory may take
+	 */
+	public void setListCache(String dir, int limit) {
+		if(mHandle != 0)
+			this.nativeSetListCache(mHandle, dir, limit);
+	}
+
+	/**
+	 * the root of the outline, its children are the top level entries
+	 */
+	protected PdfOutlineItem mOutline = null;
+
+	/**
+	 * calls the native code to read the children of an outline item
+	 * @param dochandle the handle that was returned upon opening the PDF
+	 * @param num object number of the item, 0 for the outline root
+	 * @param gen generation number of the item
+	 * @param items element 0 will be set to object number, generation,
+	 *        page and whether there are children, for each child
+	 * @return the titles of the children, null if the item can't be read
+	 */
+	private native String[] nativeGetOutline(long dochandle, int num, int gen, int[][] items);
+
+	/**
+	 * Gets the root of the outline of the document. Entries are read
+	 * from the document when their parent is first asked for its
+	 * children, see PdfOutlineItem.getChildren().
+	 * @return the root item, null if no document is open
+	 */
+	public PdfOutlineItem getOutline() {
+		return mOutline;
+	}
+
+	/**
+	 * reads the children of an outline item
 	 */
-	private native int nativeIsMemoryHog(long dochandle);
+	PdfOutlineItem[] loadOutline(int num, int gen) {
+		int[][] items = new int[1][];
+		String[] titles = null;
+		if(mHandle != 0)
+			titles = this.nativeGetOutline(mHandle, num, gen, items);
+		if(titles == null)
+			return new PdfOutlineItem[0];
+		PdfOutlineItem[] children = new PdfOutlineItem[titles.length];
+		for(int i = 0; i < titles.length; i++)
+			children[i] = new PdfOutlineItem(titles[i],
+					items[0][i * 4], items[0][i * 4 + 1],
+					items[0][i * 4 + 2], items[0][i * 4 + 3] != 0);
+		return children;
+	}
+
+	/**
+	 * calls the native code to read the links of a page
+	 * @param dochandle the handle that was returned upon opening the PDF
+	 * @param page the page number
+	 * @param rects element 0 will be set to the rectangle of each link
+	 *        in page coordinates, as x0, y0, x1, y1
+	 * @param pages element 0 will be set to the page each link points to,
+	 *        0 if it doesn't point into the document
+	 * @return the URI of each link, null for links within the document
+	 */
+	private native String[] nativeGetLinks(long dochandle, int page, float[][] rects, int[][] pages);
+
+	/**
+	 * Reads the links of a page. The caller must make sure the document
+	 * is not used by another thread at the same time.
+	 * @param page the page number
+	 * @return the links, indexed for hit testing
+	 */
+	public PdfLinks getLinks(int page) {
+		float[][] rects = new float[1][];
+		int[][] pages = new int[1][];
+		String[] uris = null;
+		if(mHandle != 0)
+			uris = this.nativeGetLinks(mHandle, page, rects, pages);
+		if(uris == null)
+			return new PdfLinks(page, new PdfLink[0]);
+		PdfLink[] links = new PdfLink[uris.length];
+		for(int i = 0; i < uris.length; i++)
+			links[i] = new PdfLink(pages[0][i], uris[i], new RectF(
+					rects[0][i * 4], rects[0][i * 4 + 1],
+					rects[0][i * 4 + 2], rects[0][i * 4 + 3]));
+		return new PdfLinks(page, links);
+	}
 
-    public int isMemoryHog() {
-        return this.nativeIsMemoryHog(mHandle);
-    }
+	/**
+	 * indices into the array returned by getMemoryStats()
+	 */
+	static final int MEMORY_BUDGET = 0;
+	static final int MEMORY_LISTS = 1;
+	static final int MEMORY_GLYPHS = 2;
+	static final int MEMORY_STORE = 3;
+	static final int MEMORY_PIXELS = 4;
+	static final int MEMORY_USED = 5;
+	static final int MEMORY_PEAK = 6;
+
+	/**
+	 * reads the state of the memory governor
+	 * @param dochandle the handle that was returned upon opening the PDF
+	 * @param stats int[7] array that will be filled
+	 */
+	private native void nativeGetMemoryStats(long dochandle, int[] stats);
+
+	/**
+	 * Gets the memory the native code uses on behalf of this document,
+	 * use the MEMORY_* constants as indices into the result. This looks
+	 * at the pages and resources of the document, so it must be called
+	 * with the document lock held, like rendering.
+	 * @return budget, display lists, glyphs, resource store, render buffers,
+	 *         total and peak MuPDF allocations in bytes
+	 */
+	public int[] getMemoryStats() {
+		int[] stats = new int[7];
+		if(mHandle != 0)
+			this.nativeGetMemoryStats(mHandle, stats);
+		return stats;
+	}
 
 	/**
 	 * destructor, cleans up memory
@@ -261,15 +577,41 @@ class PdfPage {
 	 * the number of this page
 	 */
 	public int no;
+	/**
+	 * the zoom bucket the page was opened for, see zoomBucket()
+	 */
+	public int zoomBucket;
+	/**
+	 * the backend sets this to the size of the display list of the page
+	 * in bytes
+	 */
+	public int listSize;
+	/**
+	 * the backend sets this when the page was found in its page cache
+	 */
+	public boolean cached;
+
+	/**
+	 * the highest zoom bucket, images are never reduced for it
+	 */
+	static final int ZOOM_BUCKET_MAX = 7;
+
+	/**
+	 * flag for open(): the page does not go into the page cache and is
+	 * freed when it is closed
+	 */
+	static final int FLAG_TRANSIENT = 1;
 	/**
 	 * the MediaBox for the page, still as float[4]
 	 */
 	protected float[] mMediabox = {0, 0, 0, 0};
 
 	/**
-	 * the boundaries of the content for the page, still as float[4]
+	 * the boundaries of the content for the page, still as float[4].
+	 * Only valid when mHaveContentbox is set, see loadContentBox()
 	 */
 	protected float[] mContentbox = {0, 0, 0, 0};
+	protected boolean mHaveContentbox = false;
 
 	/**
 	 * this will be used to store a C Pointer (ick!) to the
@@ -282,24 +624,118 @@ class PdfPage {
 	 * @param dochandle the Handle (C pointer) for the document
 	 * @param mediabox this will be set to the mediabox of the page
 	 * @param no page number to open
+	 * @param flags options for loading the page
+	 * @param zoomBucket images are reduced to the resolution needed for this zoom bucket
 	 * @return handle for the opened page
 	 */
-	private native long nativeOpenPage(long dochandle, float[] mediabox, float[] contentbox, int no, int flags)
+	private native long nativeOpenPage(long dochandle, float[] mediabox, int no, int flags, int zoomBucket)
 		throws PageLoadException;
 
 	/**
 	 * constructs a new PdfPage object for a given page in a given document
 	 * @param doc the PdfDocument
 	 * @param no the number of the page (starting at 1) to open
-     * @param flags 1 if the document is a memory hog
+	 * @param flags options for loading the page, FLAG_TRANSIENT or 0
+	 * @param zoomBucket the zoom bucket for the current zoom, see zoomBucket(),
+	 *        or -1 to keep images at their full resolution
 	 */
-	public void open(PdfDocument doc, int no, int flags)
+	public void open(PdfDocument doc, int no, int flags, int zoomBucket)
 			throws PageLoadException
 	{
 		if(mHandle != 0)
 			this.close();
 		this.no = no;
-		mHandle = this.nativeOpenPage(doc.mHandle, mMediabox, mContentbox, no, flags);
+		this.zoomBucket = zoomBucket;
+		mHaveContentbox = false;
+		mHandle = this.nativeOpenPage(doc.mHandle, mMediabox, no, flags, zoomBucket);
+	}
+
+	/**
+	 * calls the native code to find the boundaries of the page content
+	 * @param pagehandle the handle we got upon opening the page
+	 * @param contentbox this will be set to the content box of the page
+	 */
+	private native void nativeGetContentBox(long pagehandle, float[] contentbox)
+		throws PageLoadException;
+
+	/**
+	 * Finds the boundaries of the content of this page, unless that
+	 * has already been done. This looks at all of the page content,
+	 * so it is only done when needed.
+	 */
+	public void loadContentBox() throws PageLoadException {
+		if(mHaveContentbox)
+			return;
+		this.nativeGetContentBox(mHandle, mContentbox);
+		mHaveContentbox = true;
+	}
+
+	/**
+	 * Sets the content box from an earlier call of loadContentBox()
+	 * @param contentbox float[4] content box
+	 */
+	public void setContentBox(float[] contentbox) {
+		System.arraycopy(contentbox, 0, mContentbox, 0, 4);
+		mHaveContentbox = true;
+	}
+
+	/**
+	 * calls the native code to check the colors of the page content
+	 * @param pagehandle the handle we got upon opening the page
+	 * @return true if the page only uses shades of gray
+	 */
+	private native boolean nativeIsGray(long pagehandle);
+
+	/**
+	 * Checks whether the page can be shown in shades of gray without
+	 * losing anything. Only the device color spaces are recognized,
+	 * pages using others count as colored.
+	 * @return true if the page has no colors
+	 */
+	public boolean isGray() {
+		return this.nativeIsGray(mHandle);
+	}
+
+	/**
+	 * Maps a resolution to a zoom bucket. Bucket b covers up to
+	 * 2^(b-3) pixels per point, so images decoded for a bucket are good
+	 * for all zoom levels up to twice the one of the bucket below.
+	 * @param pixelsPerPoint the resolution the page is displayed at
+	 * @return the zoom bucket
+	 */
+	static int zoomBucket(float pixelsPerPoint) {
+		int bucket = 0;
+		while((bucket < ZOOM_BUCKET_MAX) && ((1 << bucket) < pixelsPerPoint * 8))
+			bucket++;
+		return bucket;
+	}
+
+	/**
+	 * sets up the matrix that maps page coordinates to unscaled display
+	 * coordinates with the top left corner of the page at 0,0
+	 * @param matrix the Matrix to set
+	 * @param mediabox the MediaBox of the page
+	 * @param rotation rotation of the page in degrees
+	 */
+	static void setupPageMatrix(Matrix matrix, float[] mediabox, int rotation) {
+		float pageHeight = mediabox[3]-mediabox[1];
+		float pageWidth = mediabox[2]-mediabox[0];
+
+		matrix.reset();
+		// mirror on X-axis (because of different coord systems)
+		matrix.postScale(1, -1);
+		// move left by <left border> px and up by <"bottom" of page> pixels
+		matrix.postTranslate(-mediabox[0], mediabox[3]);
+		// now do the rotation
+		matrix.postRotate(rotation);
+		// correct offsets resulting from rotation
+		if((rotation % 360) == 90) {
+			matrix.postTranslate(pageHeight, 0);
+		} else if((rotation % 360) == 180) {
+			matrix.postTranslate(pageWidth, pageHeight);
+		} else if((rotation % 360) == 270) {
+			matrix.postTranslate(0, pageWidth);
+		}
 	}
 
 	/**
@@ -341,29 +777,387 @@ class PdfPage {
 	public RectF getContentBox() {
 		return new RectF(mContentbox[0], mContentbox[1], mContentbox[2], mContentbox[3]);
 	}
+
+	/**
+	 * calls the native code to extract the text of the page
+	 * @param pagehandle the handle we got upon opening the page
+	 * @param boxes element 0 will be set to the boxes of the characters
+	 * @return the text of the page
+	 */
+	private native String nativeGetText(long pagehandle, float[][] boxes)
+		throws PageLoadException;
+
+	/**
+	 * Extracts the text of the page along with the position of each
+	 * character
+	 * @return the text of the page
+	 */
+	public PdfText getText() throws PageLoadException {
+		float[][] boxes = new float[1][];
+		String text = this.nativeGetText(mHandle, boxes);
+		return new PdfText(no, text, boxes[0]);
+	}
+}
+
+/**
+ * An entry of the outline (table of contents) of a document
+ */
+class PdfOutlineItem {
+	/**
+	 * the title of the entry, null for the outline root
+	 */
+	public final String title;
+	/**
+	 * the page the entry points to, 0 if it doesn't point into the document
+	 */
+	public final int page;
+	/**
+	 * whether the entry has sub-entries
+	 */
+	public final boolean hasChildren;
+
+	/**
+	 * the PDF object of the entry
+	 */
+	protected final int mNum;
+	protected final int mGen;
+
+	protected PdfOutlineItem[] mChildren = null;
+
+	PdfOutlineItem(String title, int num, int gen, int page, boolean hasChildren) {
+		this.title = title;
+		this.page = page;
+		this.hasChildren = hasChildren;
+		mNum = num;
+		mGen = gen;
+	}
+
+	/**
+	 * Gets the sub-entries, they are read from the document on the
+	 * first call. The caller must make sure the document is not used
+	 * by another thread at the same time.
+	 * @param doc the PdfDocument the entry belongs to
+	 * @return the sub-entries
+	 */
+	public PdfOutlineItem[] getChildren(PdfDocument doc) {
+		if(mChildren == null) {
+			if(!hasChildren)
+				return new PdfOutlineItem[0];
+			mChildren = doc.loadOutline(mNum, mGen);
+		}
+		return mChildren;
+	}
+}
+
+/**
+ * A link on a page
+ */
+class PdfLink {
+	/**
+	 * the page the link points to, 0 if it doesn't point into the document
+	 */
+	public final int page;
+	/**
+	 * the URI the link points to, null for links within the document
+	 */
+	public final String uri;
+	/**
+	 * the area of the link in page coordinates
+	 */
+	public final RectF rect;
+
+	PdfLink(int page, String uri, RectF rect) {
+		this.page = page;
+		this.uri = uri;
+		this.rect = rect;
+	}
 }
 
 /**
- * Object that controls rendering parts of pages to a int[] pixmap buffer
+ * The links of a page, sorted into a grid of cells covering them, so
+ * a tap only needs to be checked against the links in its cell
+ */
+class PdfLinks {
+	/**
+	 * number of cells in each direction
+	 */
+	static final int GRID = 8;
+
+	/**
+	 * the number of the page the links are on
+	 */
+	public final int page;
+	public final PdfLink[] links;
+
+	protected final RectF mBounds = new RectF();
+	protected final float mCellX;
+	protected final float mCellY;
+	/**
+	 * for each cell, the indices of the links overlapping it
+	 */
+	protected final int[][] mCells = new int[GRID * GRID][];
+
+	PdfLinks(int page, PdfLink[] links) {
+		this.page = page;
+		this.links = links;
+		for(PdfLink link : links) {
+			if(mBounds.isEmpty())
+				mBounds.set(link.rect);
+			else
+				mBounds.union(link.rect);
+		}
+		mCellX = Math.max(mBounds.width() / GRID, 1);
+		mCellY = Math.max(mBounds.height() / GRID, 1);
+
+		int[] counts = new int[GRID * GRID];
+		for(PdfLink link : links)
+			for(int y = cellY(link.rect.top); y <= cellY(link.rect.bottom); y++)
+				for(int x = cellX(link.rect.left); x <= cellX(link.rect.right); x++)
+					counts[y * GRID + x]++;
+		for(int i = 0; i < mCells.length; i++) {
+			mCells[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for(int n = 0; n < links.length; n++) {
+			RectF rect = links[n].rect;
+			for(int y = cellY(rect.top); y <= cellY(rect.bottom); y++)
+				for(int x = cellX(rect.left); x <= cellX(rect.right); x++)
+					mCells[y * GRID + x][counts[y * GRID + x]++] = n;
+		}
+	}
+
+	private int cellX(float x) {
+		return Math.max(0, Math.min(GRID - 1, (int) ((x - mBounds.left) / mCellX)));
+	}
+
+	private int cellY(float y) {
+		return Math.max(0, Math.min(GRID - 1, (int) ((y - mBounds.top) / mCellY)));
+	}
+
+	/**
+	 * Finds the link at a point. Where links overlap, the smallest one wins.
+	 * @param x horizontal position in page coordinates
+	 * @param y vertical position in page coordinates
+	 * @return the link, null if there is none at the point
+	 */
+	public PdfLink find(float x, float y) {
+		if(!mBounds.contains(x, y))
+			return null;
+		PdfLink found = null;
+		float foundArea = 0;
+		for(int n : mCells[cellY(y) * GRID + cellX(x)]) {
+			RectF rect = links[n].rect;
+			if(!rect.contains(x, y))
+				continue;
+			float area = rect.width() * rect.height();
+			if((found == null) || (area < foundArea)) {
+				found = links[n];
+				foundArea = area;
+			}
+		}
+		return found;
+	}
+}
+
+/**
+ * The text of a page, with a box for each character
+ */
+class PdfText {
+	/**
+	 * the number of the page the text is from
+	 */
+	public final int page;
+	/**
+	 * the text, lines are separated by newlines
+	 */
+	public final String text;
+	/**
+	 * the box of each character in page coordinates, as x0, y0, x1, y1.
+	 * Spaces and newlines that were not in the page content have empty boxes.
+	 */
+	public final float[] boxes;
+
+	PdfText(int page, String text, float[] boxes) {
+		this.page = page;
+		this.text = text;
+		this.boxes = boxes;
+	}
+
+	/**
+	 * Finds a string at the start of words in the text, ignoring case
+	 * and treating line breaks like spaces. Matching at word starts
+	 * only is what the search index can tell about a page.
+	 * @param query the string to look for, runs of whitespace in it
+	 *        match a single space or line break
+	 * @return the start index of each occurrence
+	 */
+	public int[] find(String query) {
+		String needle = normalizeQuery(query);
+		String haystack = text.replace('\n', ' ');
+		int[] found = new int[8];
+		int count = 0;
+		int length = needle.length();
+		if(length == 0)
+			return new int[0];
+		for(int i = 0; i + length <= haystack.length(); i++) {
+			if((i > 0) && Character.isLetterOrDigit(haystack.charAt(i - 1))
+					&& Character.isLetterOrDigit(haystack.charAt(i)))
+				continue;
+			if(haystack.regionMatches(true, i, needle, 0, length)) {
+				if(count == found.length) {
+					int[] grown = new int[count * 2];
+					System.arraycopy(found, 0, grown, 0, count);
+					found = grown;
+				}
+				found[count++] = i;
+				i += length - 1;
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(found, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Brings a query into the form find() looks for
+	 * @param query the string to look for
+	 * @return the query without surrounding whitespace and with
+	 *         runs of whitespace replaced by a single space
+	 */
+	static String normalizeQuery(String query) {
+		return query.trim().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * Gets the boxes covering a range of characters, one box per run of
+	 * characters on the same line
+	 * @param start index of the first character
+	 * @param end index after the last character
+	 * @return the boxes in page coordinates
+	 */
+	public ArrayList<RectF> runs(int start, int end) {
+		ArrayList<RectF> runs = new ArrayList<RectF>();
+		RectF run = null;
+		for(int i = start; i < end; i++) {
+			if(text.charAt(i) == '\n') {
+				run = null;
+				continue;
+			}
+			float x0 = boxes[i * 4];
+			float y0 = boxes[i * 4 + 1];
+			float x1 = boxes[i * 4 + 2];
+			float y1 = boxes[i * 4 + 3];
+			if((x0 == x1) && (y0 == y1))
+				continue;
+			if(run == null) {
+				run = new RectF(x0, y0, x1, y1);
+				runs.add(run);
+			} else {
+				run.union(x0, y0, x1, y1);
+			}
+		}
+		return runs;
+	}
+}
+
+/**
+ * Object that controls rendering parts of pages to a pixmap buffer.
+ *
+ * Pixmaps are 32 bit ARGB in an int[] by default. They can also be kept
+ * in a Bitmap as RGB_565, for half the memory, or as ALPHA_8 for pages
+ * in shades of gray, for a quarter. An ALPHA_8 pixmap holds how much ink
+ * there is and is drawn over paper, see draw().
+ *
+ * A pixmap can be rendered at a reduced scale for a quick preview. It is
+ * stretched to its full size when it is drawn.
  */
 class PdfView {
 	protected static final long mInvertDisplayMask = 1;
+	protected static final long mLevelOfDetailMask = 2;
+	protected static final long mRGB565Mask = 4;
+	protected static final long mAlpha8Mask = 8;
 
 	/**
-	 * the pixmap we will render to
+	 * pixel formats, see setFormat()
+	 */
+	static final int FORMAT_ARGB_8888 = 0;
+	static final int FORMAT_RGB_565 = 1;
+	static final int FORMAT_ALPHA_8 = 2;
+	/**
+	 * ALPHA_8 for pages in shades of gray, RGB_565 for the others
+	 */
+	static final int FORMAT_AUTO = 3;
+
+	private static final Paint sPaper = new Paint();
+	private static final Paint sInk = new Paint();
+	private static final Paint sInvertedPaper = new Paint();
+	private static final Paint sInvertedInk = new Paint();
+	/**
+	 * for stretching pixmaps rendered at a reduced scale
+	 */
+	private static final Paint sStretch = new Paint();
+	static {
+		sPaper.setColor(Color.WHITE);
+		sInk.setColor(Color.BLACK);
+		sInk.setFilterBitmap(true);
+		sInvertedPaper.setColor(Color.BLACK);
+		sInvertedInk.setColor(Color.WHITE);
+		sInvertedInk.setFilterBitmap(true);
+		sStretch.setFilterBitmap(true);
+	}
+
+	/**
+	 * the native code renders RGB_565 and ALPHA_8 to these, then they
+	 * are copied to mBitmap. They are shared by all views.
+	 */
+	private static short[] sShorts = null;
+	private static byte[] sBytes = null;
+
+	/**
+	 * the pixmap we will render to, when it is in FORMAT_ARGB_8888
 	 */
 	public int[] mBuf;
 
+	/**
+	 * the pixmap in the other formats
+	 */
+	public Bitmap mBitmap;
+
+	/**
+	 * the format of the current pixmap
+	 */
+	public int mPixelFormat = FORMAT_ARGB_8888;
+
+	/**
+	 * the part of the page in the pixmap, in the coordinates of the
+	 * full scale
+	 */
 	public final Rect mViewBox = new Rect();
 
+	/**
+	 * the part of the page in the pixmap, in the pixels of the pixmap
+	 */
+	private final Rect mPixelBox = new Rect();
+
+	/**
+	 * the scale the pixmap was rendered at, 1 for full scale
+	 */
+	public float mScale = 1;
+
 	private int[] mRect = { 0, 0, 0, 0 };
 	private float[] mMatrixSource = {
 			0, 0, 0,
 			0, 0, 0,
 			0, 0, 0   };
 	private float[] mMatrix = { 0, 0, 0, 0, 0, 0 };
+	/**
+	 * the scale of the render that is being set up
+	 */
+	private float mRenderScale = 1;
 
 	protected boolean mDisplayInvert = false;
+	protected boolean mLevelOfDetail = false;
+	protected int mFormat = FORMAT_ARGB_8888;
 
 	/**
 	 * Call native code to render part of a page to a buffer
@@ -371,15 +1165,16 @@ class PdfView {
 	 * @param pagehandle the handle of the page for which we render
 	 * @param viewbox the excerpt that we should render, given as int[4] rectangle
 	 * @param matrix the transformation matrix used for rendering, MuPDF format (float[6])
-	 * @param buffer the int[] buffer we render to
+	 * @param buffer the buffer we render to: int[] for ARGB, short[] for
+	 *               RGB_565 and byte[] for ALPHA_8, as chosen by flags
 	 */
 	private native void nativeCreateView(
 			long dochandle, long pagehandle,
-			int[] viewbox, float[] matrix, int[] buffer, long flags)
+			int[] viewbox, float[] matrix, Object buffer, long flags)
 		throws PageRenderException;
 
 	/**
-	 * Render part of the page to a int[] buffer
+	 * Render part of the page to the pixmap
 	 * @param page the PdfPage we render for
 	 * @param viewbox the excerpt Rect that we should render (coordinates after applying the matrix)
 	 * @param matrix the Matrix used for rendering
@@ -387,38 +1182,242 @@ class PdfView {
 	public void render(PdfDocument doc, PdfPage page, Rect viewbox, Matrix matrix)
 			throws PageRenderException
 	{
-		int size = viewbox.width() * viewbox.height()
-				* ((PdfRender.bytesPerPixel * 8) / 32);
+		render(doc, page, viewbox, matrix, 1);
+	}
+
+	/**
+	 * Render part of the page to the pixmap at a reduced scale, which
+	 * takes about scale * scale the time and memory
+	 * @param page the PdfPage we render for
+	 * @param viewbox the excerpt Rect that we should render (coordinates after applying the matrix)
+	 * @param matrix the Matrix used for rendering
+	 * @param scale how much smaller than the matrix the pixmap is, 1 for full scale
+	 */
+	public void render(PdfDocument doc, PdfPage page, Rect viewbox, Matrix matrix, float scale)
+			throws PageRenderException
+	{
+		Rect box = viewbox;
+		if(scale != 1) {
+			box = new Rect(
+					(int) Math.floor(viewbox.left * scale),
+					(int) Math.floor(viewbox.top * scale),
+					(int) Math.ceil(viewbox.right * scale),
+					(int) Math.ceil(viewbox.bottom * scale));
+		}
+		setup(box, matrix, scale);
+
+		int format = mFormat;
+		if(format == FORMAT_AUTO)
+			format = page.isGray() ? FORMAT_ALPHA_8 : FORMAT_RGB_565;
+		if(format != FORMAT_ARGB_8888) {
+			renderBitmap(doc, page, box, format);
+		} else {
+			renderBuffer(doc, page, box);
+		}
+		mPixelBox.set(box);
+		mViewBox.set(viewbox);
+		mScale = scale;
+	}
+
+	/**
+	 * renders to mBuf in ARGB_8888
+	 */
+	private void renderBuffer(PdfDocument doc, PdfPage page, Rect box)
+			throws PageRenderException
+	{
+		releaseBitmap();
 
-		long tempflags;
+		int size = box.width() * box.height()
+				* ((PdfRender.bytesPerPixel * 8) / 32);
 
-		if((mBuf == null) || (mBuf.length != size))
+		if((mBuf == null) || (mBuf.length != size)) {
+			PdfRender.adjustPixelMemory(
+					(size - ((mBuf == null) ? 0 : mBuf.length)) * 4);
 			mBuf = new int[size];
+		}
 
+		this.nativeCreateView(
+				doc.mHandle, page.mHandle,
+				mRect, mMatrix, mBuf, flags());
+		mPixelFormat = FORMAT_ARGB_8888;
+	}
+
+	/**
+	 * renders to mBitmap in RGB_565 or ALPHA_8
+	 */
+	private void renderBitmap(PdfDocument doc, PdfPage page, Rect box, int format)
+			throws PageRenderException
+	{
+		int width = box.width();
+		int height = box.height();
+		int pixels = width * height;
+		Bitmap.Config config = (format == FORMAT_ALPHA_8)
+				? Bitmap.Config.ALPHA_8 : Bitmap.Config.RGB_565;
+
+		if(mBuf != null) {
+			PdfRender.adjustPixelMemory(-mBuf.length * 4);
+			mBuf = null;
+		}
+		Bitmap bitmap = mBitmap;
+		if((bitmap == null) || (bitmap.getWidth() != width)
+				|| (bitmap.getHeight() != height) || (bitmap.getConfig() != config)) {
+			releaseBitmap();
+			// the blit might still be drawing the old one, so it isn't recycled
+			bitmap = Bitmap.createBitmap(width, height, config);
+			PdfRender.adjustPixelMemory(bitmapSize(bitmap));
+		}
+
+		long tempflags = flags() | ((format == FORMAT_ALPHA_8) ? mAlpha8Mask : mRGB565Mask);
+		synchronized(PdfView.class) {
+			if(format == FORMAT_ALPHA_8) {
+				if((sBytes == null) || (sBytes.length < pixels))
+					sBytes = new byte[pixels];
+				this.nativeCreateView(
+						doc.mHandle, page.mHandle,
+						mRect, mMatrix, sBytes, tempflags);
+				bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(sBytes, 0, pixels));
+			} else {
+				if((sShorts == null) || (sShorts.length < pixels))
+					sShorts = new short[pixels];
+				this.nativeCreateView(
+						doc.mHandle, page.mHandle,
+						mRect, mMatrix, sShorts, tempflags);
+				bitmap.copyPixelsFromBuffer(ShortBuffer.wrap(sShorts, 0, pixels));
+			}
+		}
+		mBitmap = bitmap;
+		mPixelFormat = format;
+	}
+
+	/**
+	 * Gives the memory of the pixmap back to the memory budget. The
+	 * view can render again afterwards.
+	 */
+	public void release() {
+		if(mBuf != null) {
+			PdfRender.adjustPixelMemory(-mBuf.length * 4);
+			mBuf = null;
+		}
+		releaseBitmap();
+	}
+
+	private void releaseBitmap() {
+		if(mBitmap != null) {
+			PdfRender.adjustPixelMemory(-bitmapSize(mBitmap));
+			mBitmap = null;
+		}
+	}
+
+	private static int bitmapSize(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * sets up the viewbox and matrix for the native code, the matrix
+	 * is scaled by scale afterwards
+	 */
+	private void setup(Rect viewbox, Matrix matrix, float scale) {
 		mRect[0] = viewbox.left;
 		mRect[1] = viewbox.top;
 		mRect[2] = viewbox.right;
 		mRect[3] = viewbox.bottom;
+		mRenderScale = scale;
 
 		matrix.getValues(mMatrixSource);
-		mMatrix[0] = mMatrixSource[0];
-		mMatrix[1] = mMatrixSource[3];
-		mMatrix[2] = mMatrixSource[1];
-		mMatrix[3] = mMatrixSource[4];
-		mMatrix[4] = mMatrixSource[2];
-		mMatrix[5] = mMatrixSource[5];
-
-		tempflags = 0;
+		mMatrix[0] = mMatrixSource[0] * scale;
+		mMatrix[1] = mMatrixSource[3] * scale;
+		mMatrix[2] = mMatrixSource[1] * scale;
+		mMatrix[3] = mMatrixSource[4] * scale;
+		mMatrix[4] = mMatrixSource[2] * scale;
+		mMatrix[5] = mMatrixSource[5] * scale;
+	}
+
+	private long flags() {
+		long tempflags = 0;
 		if (mDisplayInvert)
 			tempflags |= mInvertDisplayMask;
+		// a preview is simplified as well
+		if (mLevelOfDetail || (mRenderScale < 1))
+			tempflags |= mLevelOfDetailMask;
+		return tempflags;
+	}
 
-		this.nativeCreateView(
-				doc.mHandle, page.mHandle,
-				mRect, mMatrix, mBuf, tempflags);
-		mViewBox.set(viewbox);
+	/**
+	 * Draws the pixmap
+	 * @param c the Canvas to draw to
+	 * @param x where the left edge of the page goes
+	 * @param y where the top edge of the page goes
+	 */
+	public void draw(Canvas c, int x, int y) {
+		// the render thread might be replacing the pixmap just now
+		Rect box = new Rect(mPixelBox);
+		float scale = mScale;
+		Paint stretch = null;
+		if(scale != 1) {
+			// draw in the pixels of the pixmap
+			c.save();
+			c.translate(x, y);
+			c.scale(1 / scale, 1 / scale);
+			x = 0;
+			y = 0;
+			stretch = sStretch;
+		}
+		if(mPixelFormat == FORMAT_ARGB_8888) {
+			int[] buf = mBuf;
+			if((buf != null) && (buf.length >= box.width() * box.height()))
+				c.drawBitmap(buf, 0, box.width(), x + box.left, y + box.top,
+						box.width(), box.height(), false, stretch);
+		} else {
+			Bitmap bitmap = mBitmap;
+			if((bitmap == null) || (bitmap.getWidth() != box.width())
+					|| (bitmap.getHeight() != box.height())) {
+				// nothing to draw
+			} else if(bitmap.getConfig() == Bitmap.Config.ALPHA_8) {
+				c.drawRect(x + box.left, y + box.top, x + box.right, y + box.bottom,
+						mDisplayInvert ? sInvertedPaper : sPaper);
+				c.drawBitmap(bitmap, x + box.left, y + box.top,
+						mDisplayInvert ? sInvertedInk : sInk);
+			} else {
+				c.drawBitmap(bitmap, x + box.left, y + box.top, stretch);
+			}
+		}
+		if(scale != 1)
+			c.restore();
 	}
 
 	public void setDisplayInvert(boolean invert) {
 		mDisplayInvert = invert;
 	}
+
+	/**
+	 * Lets small renders skip content below a pixel and draw tiny
+	 * text as bars, renders at 100% and more are not affected
+	 * @param lod true to simplify small renders
+	 */
+	public void setLevelOfDetail(boolean lod) {
+		mLevelOfDetail = lod;
+	}
+
+	/**
+	 * @param format one of the FORMAT_* constants except FORMAT_AUTO
+	 * @return the size of a pixel in that format
+	 */
+	static int bytesPerPixel(int format) {
+		switch(format) {
+		case FORMAT_RGB_565:
+			return 2;
+		case FORMAT_ALPHA_8:
+			return 1;
+		default:
+			return PdfRender.bytesPerPixel;
+		}
+	}
+
+	/**
+	 * Chooses the pixel format for the following renders
+	 * @param format one of the FORMAT_* constants
+	 */
+	public void setFormat(int format) {
+		mFormat = format;
+	}
 }
@@ -0,0 +1,24 @@
+# Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+#
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+# $(CLEAR_VARS) for reading jni/Android.mk in a host build
+
+LOCAL_MODULE :=
+LOCAL_SRC_FILES :=
+LOCAL_C_INCLUDES :=
+LOCAL_CFLAGS :=
+LOCAL_LDLIBS :=
+LOCAL_STATIC_LIBRARIES :=
+LOCAL_ARM_MODE :=
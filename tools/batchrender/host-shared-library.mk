@@ -0,0 +1,26 @@
+# Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+#
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+# $(BUILD_SHARED_LIBRARY) for reading jni/Android.mk in a host build:
+# links the module and the static libraries it uses into
+# build/lib<module>.so, which the JVM loads like the app does.
+
+include $(HOST_DIR)/host-static-library.mk
+
+$(BUILD)/lib$(LOCAL_MODULE).so: $($(LOCAL_MODULE)_OBJS) \
+		$(foreach lib,$(LOCAL_STATIC_LIBRARIES),$(BUILD)/lib$(lib).a)
+	$(CC) -shared -o $@ $^ $(HOST_LDLIBS)
+
+HOST_SHARED_LIBRARIES += $(BUILD)/lib$(LOCAL_MODULE).so
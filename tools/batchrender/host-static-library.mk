@@ -0,0 +1,31 @@
+# Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+#
+# This program is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or
+# (at your option) any later version.
+#
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+# $(BUILD_STATIC_LIBRARY) for reading jni/Android.mk in a host build:
+# compiles the sources of the module into build/lib<module>.a. Flags
+# that only make sense for ARM are dropped.
+
+$(LOCAL_MODULE)_OBJS := $(addprefix $(BUILD)/obj/$(LOCAL_MODULE)/,$(LOCAL_SRC_FILES:.c=.o))
+
+$(BUILD)/obj/$(LOCAL_MODULE)/%.o: MODULE_CFLAGS := \
+	$(filter-out $(ARM_ONLY_CFLAGS),$(LOCAL_CFLAGS)) \
+	$(addprefix -I,$(LOCAL_C_INCLUDES))
+
+$(BUILD)/obj/$(LOCAL_MODULE)/%.o: $(LOCAL_PATH)/%.c
+	@mkdir -p $(dir $@)
+	$(CC) $(CFLAGS) $(HOST_CFLAGS) $(MODULE_CFLAGS) -c $< -o $@
+
+$(BUILD)/lib$(LOCAL_MODULE).a: $($(LOCAL_MODULE)_OBJS)
+	$(AR) rcs $@ $^
@@ -0,0 +1,91 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+
+package android.graphics;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * The part of android.graphics.Bitmap that the rendering engine uses,
+ * for running it outside of Android. Pixels are kept in memory only.
+ */
+public final class Bitmap {
+	public enum Config {
+		ALPHA_8(1),
+		RGB_565(2),
+		ARGB_8888(4);
+
+		final int bytes;
+
+		Config(int bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	private final int mWidth;
+	private final int mHeight;
+	private final Config mConfig;
+	private final byte[] mPixels;
+
+	private Bitmap(int width, int height, Config config) {
+		mWidth = width;
+		mHeight = height;
+		mConfig = config;
+		mPixels = new byte[width * height * config.bytes];
+	}
+
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		return new Bitmap(width, height, config);
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public Config getConfig() {
+		return mConfig;
+	}
+
+	public int getRowBytes() {
+		return mWidth * mConfig.bytes;
+	}
+
+	public void copyPixelsFromBuffer(Buffer src) {
+		if(src instanceof ByteBuffer) {
+			((ByteBuffer) src).get(mPixels);
+		} else if(src instanceof ShortBuffer) {
+			ShortBuffer shorts = (ShortBuffer) src;
+			for(int i = 0; i < mPixels.length; i += 2) {
+				short s = shorts.get();
+				mPixels[i] = (byte) s;
+				mPixels[i + 1] = (byte) (s >> 8);
+			}
+		} else {
+			throw new IllegalArgumentException("unsupported buffer");
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+
+package android.graphics;
+
+/**
+ * The part of android.graphics.Canvas that the rendering engine uses,
+ * for running it outside of Android. Nothing is drawn.
+ */
+public class Canvas {
+	public int save() {
+		return 1;
+	}
+
+	public void restore() {
+	}
+
+	public void translate(float dx, float dy) {
+	}
+
+	public void scale(float sx, float sy) {
+	}
+
+	public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+	}
+
+	public void drawBitmap(int[] colors, int offset, int stride, int x, int y,
+			int width, int height, boolean hasAlpha, Paint paint) {
+	}
+
+	public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+	}
+}
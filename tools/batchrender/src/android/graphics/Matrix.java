@@ -0,0 +1,110 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package android.graphics;
+
+/**
+ * The part of android.graphics.Matrix that the rendering engine uses,
+ * for running it outside of Android. Affine transformations only.
+ */
+public class Matrix {
+	public static final int MSCALE_X = 0;
+	public static final int MSKEW_X = 1;
+	public static final int MTRANS_X = 2;
+	public static final int MSKEW_Y = 3;
+	public static final int MSCALE_Y = 4;
+	public static final int MTRANS_Y = 5;
+
+	private final float[] mValues = new float[6];
+
+	public Matrix() {
+		reset();
+	}
+
+	public void reset() {
+		mValues[MSCALE_X] = 1;
+		mValues[MSKEW_X] = 0;
+		mValues[MTRANS_X] = 0;
+		mValues[MSKEW_Y] = 0;
+		mValues[MSCALE_Y] = 1;
+		mValues[MTRANS_Y] = 0;
+	}
+
+	public boolean postScale(float sx, float sy) {
+		for(int i = 0; i < 3; i++) {
+			mValues[i] *= sx;
+			mValues[3 + i] *= sy;
+		}
+		return true;
+	}
+
+	public boolean postTranslate(float dx, float dy) {
+		mValues[MTRANS_X] += dx;
+		mValues[MTRANS_Y] += dy;
+		return true;
+	}
+
+	public boolean postRotate(float degrees) {
+		double radians = Math.toRadians(degrees);
+		float sin = snap((float) Math.sin(radians));
+		float cos = snap((float) Math.cos(radians));
+		for(int i = 0; i < 3; i++) {
+			float x = mValues[i];
+			float y = mValues[3 + i];
+			mValues[i] = cos * x - sin * y;
+			mValues[3 + i] = sin * x + cos * y;
+		}
+		return true;
+	}
+
+	/**
+	 * like Android, keeps rotations by multiples of 90 degrees exact
+	 */
+	private static float snap(float value) {
+		return (Math.abs(value) < 1e-6f) ? 0 : value;
+	}
+
+	public void getValues(float[] values) {
+		System.arraycopy(mValues, 0, values, 0, 6);
+		values[6] = 0;
+		values[7] = 0;
+		values[8] = 1;
+	}
+
+	public boolean mapRect(RectF rect) {
+		float[] corners = {
+				rect.left, rect.top, rect.right, rect.top,
+				rect.left, rect.bottom, rect.right, rect.bottom };
+		mapPoints(corners);
+		rect.set(corners[0], corners[1], corners[0], corners[1]);
+		for(int i = 2; i < 8; i += 2)
+			rect.union(corners[i], corners[i + 1]);
+		return true;
+	}
+
+	public void mapPoints(float[] points) {
+		for(int i = 0; i + 1 < points.length; i += 2) {
+			float x = points[i];
+			float y = points[i + 1];
+			points[i] = mValues[MSCALE_X] * x + mValues[MSKEW_X] * y + mValues[MTRANS_X];
+			points[i + 1] = mValues[MSKEW_Y] * x + mValues[MSCALE_Y] * y + mValues[MTRANS_Y];
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+
+package android.graphics;
+
+/**
+ * The part of android.graphics.Paint that the rendering engine uses,
+ * for running it outside of Android
+ */
+public class Paint {
+	private int mColor = Color.BLACK;
+	private boolean mFilterBitmap = false;
+
+	public void setColor(int color) {
+		mColor = color;
+	}
+
+	public int getColor() {
+		return mColor;
+	}
+
+	public void setFilterBitmap(boolean filter) {
+		mFilterBitmap = filter;
+	}
+
+	public boolean isFilterBitmap() {
+		return mFilterBitmap;
+	}
+}
@@ -0,0 +1,91 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package android.graphics;
+
+/**
+ * The part of android.graphics.RectF that the rendering engine uses,
+ * for running it outside of Android
+ */
+public class RectF {
+	public float left;
+	public float top;
+	public float right;
+	public float bottom;
+
+	public RectF() {
+	}
+
+	public RectF(float left, float top, float right, float bottom) {
+		set(left, top, right, bottom);
+	}
+
+	public void set(float left, float top, float right, float bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public void set(RectF src) {
+		set(src.left, src.top, src.right, src.bottom);
+	}
+
+	public float width() {
+		return right - left;
+	}
+
+	public float height() {
+		return bottom - top;
+	}
+
+	public boolean isEmpty() {
+		return (left >= right) || (top >= bottom);
+	}
+
+	public boolean contains(float x, float y) {
+		return (left < right) && (top < bottom)
+			&& (x >= left) && (x < right) && (y >= top) && (y < bottom);
+	}
+
+	public void union(float left, float top, float right, float bottom) {
+		if((left >= right) || (top >= bottom))
+			return;
+		if((this.left < this.right) && (this.top < this.bottom)) {
+			this.left = Math.min(this.left, left);
+			this.top = Math.min(this.top, top);
+			this.right = Math.max(this.right, right);
+			this.bottom = Math.max(this.bottom, bottom);
+		} else {
+			set(left, top, right, bottom);
+		}
+	}
+
+	public void union(RectF r) {
+		union(r.left, r.top, r.right, r.bottom);
+	}
+
+	public void union(float x, float y) {
+		left = Math.min(left, x);
+		top = Math.min(top, y);
+		right = Math.max(right, x);
+		bottom = Math.max(bottom, y);
+	}
+}
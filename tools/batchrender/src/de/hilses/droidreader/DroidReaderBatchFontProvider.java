@@ -0,0 +1,101 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * FontProvider for running the rendering engine outside of Android. It
+ * reads the same font and cmap files that the app has in its assets.
+ */
+class DroidReaderBatchFontProvider implements FontProvider {
+	/**
+	 * the directory with the font/ and cmap/ directories
+	 */
+	protected final File mAssets;
+	/**
+	 * the file for CID fonts, null if there is none
+	 */
+	protected final String mCidFont;
+
+	protected final HashMap<String,ByteBuffer> mBuffers = new HashMap<String,ByteBuffer>();
+
+	DroidReaderBatchFontProvider(File assets, String cidFont) {
+		mAssets = assets;
+		mCidFont = cidFont;
+	}
+
+	@Override
+	public String getFontFile(String fontName, String collection, int flags) {
+		if(fontName.equals("CID-Substitute"))
+			return mCidFont;
+		return null;
+	}
+
+	@Override
+	public synchronized ByteBuffer getFontBuffer(String fontName, String collection, int flags) {
+		String fontFile = PdfRender.standardFontFile(fontName);
+		if(fontFile == null)
+			return null;
+		return read("font/" + fontFile);
+	}
+
+	@Override
+	public synchronized ByteBuffer getCMapBuffer(String cmapName) {
+		return read("cmap/" + cmapName);
+	}
+
+	/**
+	 * reads an asset into a direct buffer, the native code keeps
+	 * pointing into it
+	 */
+	private ByteBuffer read(String name) {
+		ByteBuffer buffer = mBuffers.get(name);
+		if(buffer != null)
+			return buffer;
+		File file = new File(mAssets, name);
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			buffer = ByteBuffer.allocateDirect((int) channel.size());
+			while(buffer.hasRemaining() && (channel.read(buffer) >= 0))
+				;
+			mBuffers.put(name, buffer);
+			return buffer;
+		} catch (IOException e) {
+			System.err.println("cannot read " + file + ": " + e.getMessage());
+			return null;
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+/**
+ * Renders pages of PDF files to image files, without a display. It uses
+ * the same PdfDocument, PdfPage and PdfView classes and native code as
+ * the app, so it can pre-render pages or check that documents render,
+ * e.g. on a server.
+ *
+ * The native code handles one call at a time, just like on a device,
+ * where DroidReaderDocument.mDocumentLock takes care of that. The pool
+ * threads take turns at rendering and encode and write the images in
+ * parallel.
+ */
+public class DroidReaderBatchRender {
+	static final String USAGE =
+		"usage: java -Djava.library.path=<dir of libpdfrender.so> -jar batchrender.jar\n" +
+		"         [options] file.pdf...\n" +
+		"  --pages <list>     pages to render, e.g. 1-5,8 (default: all)\n" +
+		"  --dpi <n>          resolution (default: 72)\n" +
+		"  --format png|raw   PNG, or 32 bit ARGB pixels row by row (default: png)\n" +
+		"  --out <dir>        where to put the files (default: .)\n" +
+		"  --check            render, but don't write anything\n" +
+		"  --threads <n>      number of threads (default: number of CPUs)\n" +
+		"  --password <pw>    password for encrypted documents\n" +
+		"  --assets <dir>     the app's assets with font/ and cmap/ (default: assets)\n" +
+		"  --cid-font <file>  font for CJK text\n" +
+		"  --memory <mb>      memory for the native code (default: 256)\n" +
+		"  --invert           render white on black, like the app's night mode";
+
+	static final Object sNativeLock = new Object();
+
+	protected String mPages = null;
+	protected float mDpi = 72;
+	protected boolean mRaw = false;
+	protected File mOut = new File(".");
+	protected boolean mCheck = false;
+	protected int mThreads = Runtime.getRuntime().availableProcessors();
+	protected String mPassword = "";
+	protected boolean mInvert = false;
+
+	/**
+	 * the outcome of rendering one page
+	 */
+	static class Result {
+		int page;
+		int pixels;
+		long renderNanos;
+		long writeNanos;
+		String error;
+	}
+
+	/**
+	 * the PdfView each pool thread renders with, so its buffer is reused
+	 */
+	private final ThreadLocal<PdfView> mViews = new ThreadLocal<PdfView>() {
+		@Override
+		protected PdfView initialValue() {
+			PdfView view = new PdfView();
+			view.setDisplayInvert(mInvert);
+			return view;
+		}
+	};
+
+	public static void main(String[] args) {
+		DroidReaderBatchRender batch = new DroidReaderBatchRender();
+		ArrayList<String> files = new ArrayList<String>();
+		File assets = new File("assets");
+		String cidFont = null;
+		int memory = 256;
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--pages"))
+					batch.mPages = args[++i];
+				else if(arg.equals("--dpi"))
+					batch.mDpi = Float.parseFloat(args[++i]);
+				else if(arg.equals("--format"))
+					batch.mRaw = args[++i].equals("raw");
+				else if(arg.equals("--out"))
+					batch.mOut = new File(args[++i]);
+				else if(arg.equals("--check"))
+					batch.mCheck = true;
+				else if(arg.equals("--threads"))
+					batch.mThreads = Math.max(1, Integer.parseInt(args[++i]));
+				else if(arg.equals("--password"))
+					batch.mPassword = args[++i];
+				else if(arg.equals("--assets"))
+					assets = new File(args[++i]);
+				else if(arg.equals("--cid-font"))
+					cidFont = args[++i];
+				else if(arg.equals("--memory"))
+					memory = Integer.parseInt(args[++i]);
+				else if(arg.equals("--invert"))
+					batch.mInvert = true;
+				else if(arg.startsWith("-"))
+					throw new IllegalArgumentException(arg);
+				else
+					files.add(arg);
+			}
+			pageList(batch.mPages, 0);
+		} catch (RuntimeException e) {
+			// unknown options, missing or malformed values
+			files.clear();
+		}
+		if(files.isEmpty()) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		// pages are rendered as a whole, that needs more than on a device
+		PdfRender.fitzMemory = memory * 1024 * 1024;
+		PdfRender.setFontProvider(new DroidReaderBatchFontProvider(assets, cidFont));
+		System.exit(batch.run(files) ? 0 : 1);
+	}
+
+	/**
+	 * Renders the pages of some documents and prints a report
+	 * @param files the PDF files
+	 * @return whether all pages of all documents could be rendered
+	 */
+	boolean run(List<String> files) {
+		ExecutorService pool = Executors.newFixedThreadPool(mThreads);
+		long start = System.nanoTime();
+		int pages = 0;
+		int failed = 0;
+		long pixels = 0;
+		long renderNanos = 0;
+		long writeNanos = 0;
+		try {
+			for(String filename : files) {
+				List<Result> results = render(pool, filename);
+				if(results == null) {
+					failed++;
+					continue;
+				}
+				for(Result result : results) {
+					if(result.error != null) {
+						System.err.println(filename + ": page " + result.page + ": " + result.error);
+						failed++;
+						continue;
+					}
+					pages++;
+					pixels += result.pixels;
+					renderNanos += result.renderNanos;
+					writeNanos += result.writeNanos;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(
+				"%d pages of %d documents in %.2fs: %.1f pages/s, %.1f Mpixel/s, %d threads",
+				pages, files.size(), seconds, pages / seconds, pixels / seconds / 1e6, mThreads));
+		System.out.println(String.format(
+				"native rendering %.2fs, encoding and writing %.2fs (over all threads)",
+				renderNanos / 1e9, writeNanos / 1e9));
+		if(failed > 0)
+			System.out.println(failed + " pages or documents failed");
+		return failed == 0;
+	}
+
+	/**
+	 * renders the pages of one document in the pool
+	 * @return the results in page order, null if the document can't be opened
+	 */
+	private List<Result> render(ExecutorService pool, final String filename) {
+		final PdfDocument doc = new PdfDocument();
+		try {
+			synchronized(sNativeLock) {
+				doc.open(filename, mPassword);
+			}
+		} catch (Exception e) {
+			System.err.println(filename + ": cannot open: " + e);
+			return null;
+		}
+
+		final String base = new File(filename).getName().replaceFirst("(?i)\\.pdf$", "");
+		ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for(final int no : pageList(mPages, doc.pagecount)) {
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return renderPage(doc, no, base);
+				}
+			}));
+		}
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		try {
+			for(Future<Result> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					Result result = new Result();
+					result.error = e.getCause().toString();
+					results.add(result);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			synchronized(sNativeLock) {
+				doc.close();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * renders a page as a whole and writes it to a file
+	 */
+	private Result renderPage(PdfDocument doc, int no, String base) {
+		Result result = new Result();
+		result.page = no;
+		PdfView view = mViews.get();
+		PdfPage page = new PdfPage();
+		Matrix matrix = new Matrix();
+		int width, height;
+
+		long start = System.nanoTime();
+		synchronized(sNativeLock) {
+			try {
+				float zoom = mDpi / 72;
+				page.open(doc, no, PdfPage.FLAG_TRANSIENT, PdfPage.zoomBucket(zoom));
+				float[] box = page.mMediabox;
+				PdfPage.setupPageMatrix(matrix, box, page.rotate);
+				matrix.postScale(zoom, zoom);
+				boolean swap = (page.rotate % 180) == 90;
+				width = Math.max(1, (int) ((swap ? box[3] - box[1] : box[2] - box[0]) * zoom));
+				height = Math.max(1, (int) ((swap ? box[2] - box[0] : box[3] - box[1]) * zoom));
+				view.render(doc, page, new Rect(0, 0, width, height), matrix);
+			} catch (PageLoadException e) {
+				result.error = "cannot load: " + e.getMessage();
+				return result;
+			} catch (PageRenderException e) {
+				result.error = "cannot render: " + e.getMessage();
+				return result;
+			} finally {
+				page.close();
+			}
+		}
+		result.renderNanos = System.nanoTime() - start;
+		result.pixels = width * height;
+
+		if(!mCheck) {
+			start = System.nanoTime();
+			String name = String.format("%s-%04d", base, no);
+			try {
+				if(mRaw)
+					writeRaw(new File(mOut, name + "-" + width + "x" + height + ".argb"),
+							view.mBuf, width * height);
+				else
+					writePng(new File(mOut, name + ".png"), view.mBuf, width, height);
+			} catch (IOException e) {
+				result.error = "cannot write: " + e.getMessage();
+			}
+			result.writeNanos = System.nanoTime() - start;
+		}
+		return result;
+	}
+
+	private static void writePng(File file, int[] pixels, int width, int height)
+			throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		if(!ImageIO.write(image, "png", file))
+			throw new IOException("no PNG encoder");
+	}
+
+	private static void writeRaw(File file, int[] pixels, int count) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 65536));
+		try {
+			for(int i = 0; i < count; i++)
+				out.writeInt(pixels[i]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * parses a list of pages like "1-5,8"
+	 * @param list the list, null for all pages
+	 * @param pagecount the number of pages of the document
+	 * @return the page numbers that exist in the document
+	 */
+	static List<Integer> pageList(String list, int pagecount) {
+		ArrayList<Integer> pages = new ArrayList<Integer>();
+		if(list == null)
+			list = "1-" + pagecount;
+		for(String range : list.split(",")) {
+			String[] ends = range.trim().split("-", 2);
+			int first = Integer.parseInt(ends[0].trim());
+			int last = (ends.length > 1) ? Integer.parseInt(ends[1].trim()) : first;
+			for(int no = Math.max(1, first); no <= Math.min(last, pagecount); no++)
+				pages.add(no);
+		}
+		return pages;
+	}
+}
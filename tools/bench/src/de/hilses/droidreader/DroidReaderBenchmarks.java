@@ -0,0 +1,257 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+/**
+ * Benchmarks of the rendering engine: opening documents, opening pages
+ * from the page cache and without it, rendering tiles, and loading
+ * fonts through the FontProvider. They run against the test cases in
+ * test-cases/ and the documents of DroidReaderStressDocuments.
+ *
+ * Drawing the rendered tiles onto the display needs Android, the tile
+ * conversion that precedes it (e.g. for invert mode) is part of render.
+ * The pixel kernels doing it can be compared with "-p kernels=0,1,2".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DroidReaderBenchmarks {
+	private static boolean sEngineReady = false;
+
+	/**
+	 * sets up the engine like the app does, with fonts from its assets
+	 */
+	static synchronized void setupEngine() {
+		if(sEngineReady)
+			return;
+		PdfRender.fitzMemory = 64 * 1024 * 1024;
+		PdfRender.setFontProvider(new DroidReaderBatchFontProvider(
+				new File(top(), "assets"), null));
+		sEngineReady = true;
+	}
+
+	static File top() {
+		return new File(System.getProperty("droidreader.top", "."));
+	}
+
+	/**
+	 * finds a document by name, stress documents are written when needed
+	 */
+	static String document(String name) throws IOException {
+		if(name.startsWith("stress-"))
+			return DroidReaderStressDocuments.ensure(
+					new File(System.getProperty("droidreader.stress", "stress")), name).getPath();
+		return new File(new File(top(), "test-cases"), name).getPath();
+	}
+
+	/**
+	 * the file name of a document
+	 */
+	@State(Scope.Thread)
+	public static class DocumentState {
+		@Param({ "testcase-rotation.pdf", "stress-text.pdf", "stress-image.pdf", "stress-pages.pdf" })
+		public String document;
+
+		String mFilename;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			setupEngine();
+			mFilename = document(document);
+		}
+	}
+
+	/**
+	 * an open document and a page of it
+	 */
+	@State(Scope.Thread)
+	public static class PageState {
+		@Param({ "testcase-rotation.pdf", "stress-text.pdf", "stress-vector.pdf", "stress-image.pdf" })
+		public String document;
+
+		final PdfDocument mDocument = new PdfDocument();
+		final PdfPage mPage = new PdfPage();
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			setupEngine();
+			mDocument.open(document(document), "");
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			mPage.close();
+			mDocument.close();
+		}
+	}
+
+	/**
+	 * a tile of a page, rendered at a zoom level
+	 */
+	@State(Scope.Thread)
+	public static class RenderState {
+		@Param({ "testcase-rotation.pdf", "stress-text.pdf", "stress-vector.pdf", "stress-image.pdf" })
+		public String document;
+		/**
+		 * pixels per point
+		 */
+		@Param({ "0.5", "1", "2" })
+		public float zoom;
+		/**
+		 * width and height of the tile
+		 */
+		@Param({ "256", "1024" })
+		public int tile;
+		@Param({ "false", "true" })
+		public boolean invert;
+		/**
+		 * the pixel format, see PdfView.setFormat()
+		 */
+		@Param({ "0" })
+		public int format;
+		/**
+		 * the fastest pixel kernels to use, see PdfRender.setPixelKernels()
+		 */
+		@Param({ "2" })
+		public int kernels;
+
+		final PdfDocument mDocument = new PdfDocument();
+		final PdfPage mPage = new PdfPage();
+		final PdfView mView = new PdfView();
+		final Matrix mMatrix = new Matrix();
+		Rect mBox;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			setupEngine();
+			mDocument.open(document(document), "");
+			mPage.open(mDocument, 1, 0, PdfPage.zoomBucket(zoom));
+			PdfPage.setupPageMatrix(mMatrix, mPage.mMediabox, mPage.rotate);
+			mMatrix.postScale(zoom, zoom);
+			mView.setDisplayInvert(invert);
+			mView.setFormat(format);
+			PdfRender.setPixelKernels(kernels);
+
+			// the tile in the middle of the page
+			boolean swap = (mPage.rotate % 180) == 90;
+			float[] box = mPage.mMediabox;
+			int width = (int) ((swap ? box[3] - box[1] : box[2] - box[0]) * zoom);
+			int height = (int) ((swap ? box[2] - box[0] : box[3] - box[1]) * zoom);
+			int left = Math.max(0, (width - tile) / 2);
+			int top = Math.max(0, (height - tile) / 2);
+			mBox = new Rect(left, top, Math.min(width, left + tile), Math.min(height, top + tile));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			mPage.close();
+			mDocument.close();
+		}
+	}
+
+	@Benchmark
+	public int documentOpen(DocumentState state) throws Exception {
+		PdfDocument doc = new PdfDocument();
+		doc.open(state.mFilename, "");
+		int pages = doc.pagecount;
+		doc.close();
+		return pages;
+	}
+
+	/**
+	 * opening a page that is in the page cache of the native code
+	 */
+	@Benchmark
+	public int pageOpenCached(PageState state) throws Exception {
+		state.mPage.open(state.mDocument, 1, 0, PdfPage.ZOOM_BUCKET_MAX);
+		return state.mPage.rotate;
+	}
+
+	/**
+	 * loading a page, resources shared between pages may still be in
+	 * the resource store
+	 */
+	@Benchmark
+	public int pageOpenUncached(PageState state) throws Exception {
+		state.mPage.open(state.mDocument, 1, PdfPage.FLAG_TRANSIENT, PdfPage.ZOOM_BUCKET_MAX);
+		int rotate = state.mPage.rotate;
+		state.mPage.close();
+		return rotate;
+	}
+
+	@Benchmark
+	public int render(RenderState state) throws Exception {
+		state.mView.render(state.mDocument, state.mPage, state.mBox, state.mMatrix);
+		return (state.mView.mBuf != null) ? state.mView.mBuf[0] : state.mView.mPixelFormat;
+	}
+
+	/**
+	 * the FontProvider reading a font and a cmap, as it does the first
+	 * time the native code asks for them
+	 */
+	@Benchmark
+	public int fontProviderLoad() {
+		setupEngine();
+		FontProvider provider = new DroidReaderBatchFontProvider(new File(top(), "assets"), null);
+		return provider.getFontBuffer("Helvetica", "", 0).capacity()
+			+ provider.getCMapBuffer("UniGB-UCS2-H").capacity();
+	}
+
+	/**
+	 * the first page of a text document with nothing cached: the native
+	 * font cache is flushed, so fonts come from the FontProvider again
+	 */
+	@Benchmark
+	public int fontPageOpenCold(DocumentState state) throws Exception {
+		PdfDocument doc = new PdfDocument();
+		PdfPage page = new PdfPage();
+		PdfRender.flushFontCache();
+		doc.open(state.mFilename, "");
+		page.open(doc, 1, PdfPage.FLAG_TRANSIENT, PdfPage.ZOOM_BUCKET_MAX);
+		int rotate = page.rotate;
+		page.close();
+		doc.close();
+		return rotate;
+	}
+}
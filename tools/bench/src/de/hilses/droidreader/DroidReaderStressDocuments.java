@@ -0,0 +1,229 @@
+/*
+
+Copyright (C) 2010 Hans-Werner Hilse <hilse@web.de>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+
+package de.hilses.droidreader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Writes PDF files that put load on one part of the renderer each:
+ * lots of text, lots of vector paths, a large image shared by all
+ * pages, and many simple pages. The content is generated from a fixed
+ * seed, so the files are the same on every machine.
+ */
+class DroidReaderStressDocuments {
+	static final String TEXT = "stress-text.pdf";
+	static final String VECTOR = "stress-vector.pdf";
+	static final String IMAGE = "stress-image.pdf";
+	static final String PAGES = "stress-pages.pdf";
+
+	static final String[] ALL = { TEXT, VECTOR, IMAGE, PAGES };
+
+	/**
+	 * writes the stress documents into a directory
+	 */
+	public static void main(String[] args) throws IOException {
+		File dir = new File((args.length > 0) ? args[0] : ".");
+		for(String name : ALL)
+			System.out.println(ensure(dir, name));
+	}
+
+	/**
+	 * Gets a stress document, writing it if it doesn't exist yet
+	 * @param dir the directory for the documents
+	 * @param name one of the names above
+	 * @return the file
+	 */
+	static synchronized File ensure(File dir, String name) throws IOException {
+		File file = new File(dir, name);
+		if(file.exists())
+			return file;
+		dir.mkdirs();
+		byte[] data;
+		if(name.equals(TEXT))
+			data = text(10, 90, 110);
+		else if(name.equals(VECTOR))
+			data = vector(5, 5000);
+		else if(name.equals(IMAGE))
+			data = image(5, 2000);
+		else if(name.equals(PAGES))
+			data = text(1000, 3, 40);
+		else
+			throw new IllegalArgumentException(name);
+		File temp = new File(dir, name + ".new");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(file))
+			throw new IOException("cannot create " + file);
+		return file;
+	}
+
+	/**
+	 * pages full of small Helvetica text
+	 */
+	private static byte[] text(int pages, int lines, int columns) {
+		Random random = new Random(1);
+		Writer w = new Writer(pages);
+		for(int p = 0; p < pages; p++) {
+			StringBuilder content = new StringBuilder("BT /F1 7 Tf 8 TL 36 756 Td\n");
+			for(int l = 0; l < lines; l++) {
+				content.append('(');
+				for(int c = 0; c < columns; c++)
+					content.append(((c % 7) == 6) ? ' ' : (char) ('a' + random.nextInt(26)));
+				content.append(") '\n");
+			}
+			content.append("ET\n");
+			w.page(p, content.toString());
+		}
+		return w.finish();
+	}
+
+	/**
+	 * pages with many short filled and stroked curves
+	 */
+	private static byte[] vector(int pages, int paths) {
+		Random random = new Random(2);
+		Writer w = new Writer(pages);
+		for(int p = 0; p < pages; p++) {
+			StringBuilder content = new StringBuilder("0.5 w\n");
+			for(int i = 0; i < paths; i++) {
+				float x = random.nextFloat() * 560 + 26;
+				float y = random.nextFloat() * 740 + 26;
+				content.append(String.format(Locale.US, "%.3f %.3f %.3f rg %.3f %.3f %.3f RG\n",
+						random.nextFloat(), random.nextFloat(), random.nextFloat(),
+						random.nextFloat(), random.nextFloat(), random.nextFloat()));
+				content.append(String.format(Locale.US, "%.1f %.1f m %.1f %.1f %.1f %.1f %.1f %.1f c h %s\n",
+						x, y, x + 20, y + 10, x - 10, y + 30, x + 5, y + 15,
+						((i & 1) == 0) ? "B" : "S"));
+			}
+			w.page(p, content.toString());
+		}
+		return w.finish();
+	}
+
+	/**
+	 * pages that each draw the same large RGB image
+	 */
+	private static byte[] image(int pages, int size) {
+		byte[] pixels = new byte[size * size * 3];
+		Random random = new Random(3);
+		for(int y = 0, i = 0; y < size; y++) {
+			for(int x = 0; x < size; x++) {
+				// gradients with some noise, like a scan
+				pixels[i++] = (byte) ((x * 255 / size) ^ random.nextInt(16));
+				pixels[i++] = (byte) ((y * 255 / size) ^ random.nextInt(16));
+				pixels[i++] = (byte) (((x + y) * 127 / size) ^ random.nextInt(16));
+			}
+		}
+		Writer w = new Writer(pages);
+		int image = w.stream("/Type /XObject /Subtype /Image /Width " + size + " /Height " + size
+				+ " /ColorSpace /DeviceRGB /BitsPerComponent 8", pixels);
+		w.resources = "/XObject << /Im1 " + image + " 0 R >>";
+		for(int p = 0; p < pages; p++)
+			w.page(p, "q 540 0 0 720 36 36 cm /Im1 Do Q\n");
+		return w.finish();
+	}
+
+	/**
+	 * collects the objects of a PDF file and writes the cross reference
+	 * table for them. Object 1 is the catalog, 2 the page tree and 3 the
+	 * font, pages are added in order.
+	 */
+	private static class Writer {
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+		private final ArrayList<Integer> mOffsets = new ArrayList<Integer>();
+		private final int[] mPages;
+		String resources = "";
+
+		Writer(int pages) {
+			mPages = new int[pages];
+			write("%PDF-1.4\n");
+			object("/Type /Catalog /Pages 2 0 R");
+			mOffsets.add(-1); // the page tree, written last
+			object("/Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding");
+		}
+
+		void page(int no, String content) {
+			int contents = stream("", content.getBytes());
+			mPages[no] = object("/Type /Page /Parent 2 0 R /MediaBox [0 0 612 792]"
+					+ " /Resources << /Font << /F1 3 0 R >> " + resources + " >>"
+					+ " /Contents " + contents + " 0 R");
+		}
+
+		int object(String dict) {
+			mOffsets.add(mOut.size());
+			int num = mOffsets.size();
+			write(num + " 0 obj\n<< " + dict + " >>\nendobj\n");
+			return num;
+		}
+
+		int stream(String dict, byte[] data) {
+			Deflater deflater = new Deflater();
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			byte[] buf = new byte[65536];
+			while(!deflater.finished())
+				compressed.write(buf, 0, deflater.deflate(buf));
+			deflater.end();
+
+			mOffsets.add(mOut.size());
+			int num = mOffsets.size();
+			write(num + " 0 obj\n<< " + dict + " /Filter /FlateDecode /Length "
+					+ compressed.size() + " >>\nstream\n");
+			mOut.write(compressed.toByteArray(), 0, compressed.size());
+			write("\nendstream\nendobj\n");
+			return num;
+		}
+
+		byte[] finish() {
+			StringBuilder kids = new StringBuilder();
+			for(int page : mPages)
+				kids.append(page).append(" 0 R ");
+			mOffsets.set(1, mOut.size());
+			write("2 0 obj\n<< /Type /Pages /Count " + mPages.length
+					+ " /Kids [ " + kids + "] >>\nendobj\n");
+
+			int xref = mOut.size();
+			write("xref\n0 " + (mOffsets.size() + 1) + "\n0000000000 65535 f \n");
+			for(int offset : mOffsets)
+				write(String.format(Locale.US, "%010d 00000 n \n", offset));
+			write("trailer\n<< /Size " + (mOffsets.size() + 1) + " /Root 1 0 R >>\n"
+					+ "startxref\n" + xref + "\n%%EOF\n");
+			return mOut.toByteArray();
+		}
+
+		private void write(String s) {
+			byte[] bytes = s.getBytes();
+			mOut.write(bytes, 0, bytes.length);
+		}
+	}
+}